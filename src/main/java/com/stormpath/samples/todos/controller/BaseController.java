@@ -15,16 +15,103 @@
  */
 package com.stormpath.samples.todos.controller;
 
+import com.stormpath.samples.todos.http.MediaTypes;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Variant;
+import javax.ws.rs.ext.ContextResolver;
+import javax.ws.rs.ext.Providers;
 import java.net.URI;
+import java.util.Date;
+import java.util.List;
 
 @SuppressWarnings("MismatchedQueryAndUpdateOfCollection")
 public abstract class BaseController {
 
+    /**
+     * The representations of resources that controllers serialize themselves, in order of preference.
+     */
+    private static final List<Variant> VARIANTS =
+            Variant.mediaTypes(MediaType.APPLICATION_JSON_TYPE, MediaTypes.APPLICATION_SMILE_TYPE).add().build();
+
+    @Context
+    private Providers providers;
+
+    @Context
+    private Request request;
+
+    @Context
+    private HttpHeaders headers;
+
     protected Response created(Link resource) {
-        String href = (String)resource.get("href");
+        String href = resource.getHref();
         URI uri = URI.create(href);
         return Response.created(uri).entity(resource).build();
     }
 
+    /**
+     * Returns the strong entity tag of the representation of a resource with the specified version.
+     */
+    protected static EntityTag entityTag(long version) {
+        return new EntityTag(Long.toString(version, Character.MAX_RADIX));
+    }
+
+    /**
+     * Evaluates the request's conditional headers against the current state of the requested resource.
+     * <p/>
+     * {@code If-None-Match} takes precedence over {@code If-Modified-Since} as per RFC 2616, section 14.26: dates only
+     * have a resolution of one second, so two changes within the same second can only be told apart by the tag.
+     *
+     * @param lastModified when the resource was last modified
+     * @param tag          the entity tag of the current representation of the resource
+     * @return a builder for the response to return instead of the resource ({@code 304 Not Modified} or
+     *         {@code 412 Precondition Failed}), or {@code null} if the request should be processed.
+     */
+    protected Response.ResponseBuilder evaluatePreconditions(Date lastModified, EntityTag tag) {
+        if (headers.getRequestHeader(HttpHeaders.IF_NONE_MATCH) != null) {
+            return request.evaluatePreconditions(tag);
+        }
+        return request.evaluatePreconditions(lastModified, tag);
+    }
+
+    /**
+     * Returns {@code true} if the request is conditional on the current entity tag of the resource.
+     */
+    protected boolean isIfMatch() {
+        return headers.getRequestHeader(HttpHeaders.IF_MATCH) != null;
+    }
+
+    /**
+     * Selects the media type of the response from the request's {@code Accept} header: JSON, unless the client
+     * prefers Smile.
+     */
+    protected MediaType selectMediaType() {
+        return selectMediaType(VARIANTS);
+    }
+
+    /**
+     * Selects the media type of the response from the request's {@code Accept} header among the specified variants,
+     * which are in order of preference.  The first one is used if the client accepts none of them.
+     */
+    protected MediaType selectMediaType(List<Variant> variants) {
+        Variant variant = request.selectVariant(variants);
+        return variant != null ? variant.getMediaType() : variants.get(0).getMediaType();
+    }
+
+    /**
+     * Returns the {@link ObjectMapper} used by the message body writers of the specified media type, for responses
+     * that are serialized by the controller itself rather than returned as an entity.
+     */
+    protected ObjectMapper getObjectMapper(MediaType mediaType) {
+        ContextResolver<ObjectMapper> resolver = providers.getContextResolver(ObjectMapper.class, mediaType);
+        ObjectMapper mapper = resolver != null ? resolver.getContext(ObjectMapper.class) : null;
+        return mapper != null ? mapper : new ObjectMapper();
+    }
+
 }
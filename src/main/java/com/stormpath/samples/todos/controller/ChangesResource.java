@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.controller;
+
+import com.stormpath.samples.todos.entity.Todo;
+import com.stormpath.samples.todos.service.ChangeSet;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.SerializerProvider;
+
+import javax.ws.rs.core.UriInfo;
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * The todos that changed since a client's last sync: the full representation of each created or updated todo, and a
+ * link to each deleted one.  {@code next} is where to ask for the changes after these.
+ */
+public class ChangesResource extends Link {
+
+    private final String fqBasePath;
+    private final ChangeSet changes;
+    private final Link next;
+
+    public ChangesResource(UriInfo info, ChangeSet changes) {
+        this(getFullyQualifiedContextPath(info), info.getRequestUri(),
+                info.getRequestUriBuilder().replaceQueryParam("since", changes.getSeq()).build(), changes);
+    }
+
+    /**
+     * @param fqBasePath the fully qualified base path of the todo links
+     * @param href       the href of this resource
+     * @param next       the href to ask for the changes after these
+     * @param changes    the changes to write
+     */
+    public ChangesResource(String fqBasePath, URI href, URI next, ChangeSet changes) {
+        super(href);
+        this.fqBasePath = fqBasePath;
+        this.changes = changes;
+        this.next = new Link(next);
+    }
+
+    @Override
+    protected void writeFields(JsonGenerator gen, SerializerProvider provider) throws IOException {
+        super.writeFields(gen, provider);
+        gen.writeFieldName(ResourceSerializer.SINCE);
+        gen.writeNumber(changes.getSince());
+        gen.writeFieldName(ResourceSerializer.SEQ);
+        gen.writeNumber(changes.getSeq());
+        gen.writeFieldName(ResourceSerializer.ITEMS);
+        gen.writeStartArray();
+        for (Todo todo : changes.getChanged()) {
+            provider.defaultSerializeValue(new TodoResource(fqBasePath, todo), gen);
+        }
+        gen.writeEndArray();
+        gen.writeFieldName(ResourceSerializer.DELETED);
+        gen.writeStartArray();
+        for (String id : changes.getDeletedIds()) {
+            provider.defaultSerializeValue(new Link(fqBasePath, TODOS + PATH_SEPARATOR + id), gen);
+        }
+        gen.writeEndArray();
+        gen.writeFieldName(ResourceSerializer.NEXT);
+        provider.defaultSerializeValue(next, gen);
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.controller;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.SerializerProvider;
+
+import javax.ws.rs.core.UriInfo;
+import java.io.IOException;
+
+/**
+ * The number of items in a collection, returned instead of the items themselves.
+ */
+public class CountResource extends Link {
+
+    private final int size;
+
+    public CountResource(UriInfo info, String subPath, int size) {
+        super(info, subPath);
+        this.size = size;
+    }
+
+    @Override
+    protected void writeFields(JsonGenerator gen, SerializerProvider provider) throws IOException {
+        super.writeFields(gen, provider);
+        gen.writeFieldName(ResourceSerializer.SIZE);
+        gen.writeNumber(size);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.controller;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.SerializerProvider;
+
+import javax.ws.rs.core.UriInfo;
+import java.io.IOException;
+
+/**
+ * The outcome of a bulk import: how many lines were read, how many todos were created, and why lines failed.
+ */
+public class ImportResource extends Link {
+
+    public static final String IMPORT = PATH_SEPARATOR + "import";
+
+    private final TodoImporter importer;
+
+    public ImportResource(UriInfo info, TodoImporter importer) {
+        super(info, TODOS + IMPORT);
+        this.importer = importer;
+    }
+
+    @Override
+    protected void writeFields(JsonGenerator gen, SerializerProvider provider) throws IOException {
+        super.writeFields(gen, provider);
+        gen.writeFieldName(ResourceSerializer.LINES);
+        gen.writeNumber(importer.getLines());
+        gen.writeFieldName(ResourceSerializer.IMPORTED);
+        gen.writeNumber(importer.getImported());
+        gen.writeFieldName(ResourceSerializer.FAILED);
+        gen.writeNumber(importer.getFailed());
+        gen.writeFieldName(ResourceSerializer.ERRORS);
+        gen.writeStartArray();
+        for (TodoImporter.LineError error : importer.getErrors()) {
+            gen.writeStartObject();
+            gen.writeFieldName(ResourceSerializer.LINE);
+            gen.writeNumber(error.getLine());
+            gen.writeFieldName(ResourceSerializer.MESSAGE);
+            gen.writeString(error.getMessage());
+            gen.writeEndObject();
+        }
+        gen.writeEndArray();
+        gen.writeFieldName(ResourceSerializer.MILLIS);
+        gen.writeNumber(importer.getMillis());
+        gen.writeFieldName(ResourceSerializer.TODOS_PER_SECOND);
+        gen.writeNumber(importer.getTodosPerSecond());
+    }
+}
@@ -16,25 +16,30 @@
 package com.stormpath.samples.todos.controller;
 
 import com.stormpath.samples.todos.entity.Entity;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.SerializerProvider;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
 
 import javax.ws.rs.core.UriInfo;
-import java.util.LinkedHashMap;
+import java.io.IOException;
+import java.net.URI;
 
-@SuppressWarnings("unchecked")
-public class Link extends LinkedHashMap {
+@JsonSerialize(using = ResourceSerializer.class)
+public class Link {
 
     public static final String PATH_SEPARATOR = "/";
 
     public static final String TODOS = PATH_SEPARATOR + "todos";
     public static final String USERS = PATH_SEPARATOR + "users";
 
+    private final String href;
+
     public Link(UriInfo info, Entity entity) {
         this(getFullyQualifiedContextPath(info), entity);
     }
 
     public Link(String fqBasePath, Entity entity) {
-        String href = createHref(fqBasePath, entity);
-        put("href", href);
+        this.href = createHref(fqBasePath, entity);
     }
 
     public Link(UriInfo info, String subPath) {
@@ -42,8 +47,11 @@ public class Link extends LinkedHashMap {
     }
 
     public Link(String fqBasePath, String subPath) {
-        String href = fqBasePath + subPath;
-        put("href", href);
+        this.href = fqBasePath + subPath;
+    }
+
+    public Link(URI href) {
+        this.href = href.toString();
     }
 
     protected static String getFullyQualifiedContextPath(UriInfo info) {
@@ -62,7 +70,16 @@ public class Link extends LinkedHashMap {
     }
 
     public String getHref() {
-        return (String)get("href");
+        return href;
+    }
+
+    /**
+     * Writes this resource's fields, in order, into the current JSON object.  Subclasses call {@code super} first and
+     * then append their own fields.
+     */
+    protected void writeFields(JsonGenerator gen, SerializerProvider provider) throws IOException {
+        gen.writeFieldName(ResourceSerializer.HREF);
+        gen.writeString(href);
     }
 
 }
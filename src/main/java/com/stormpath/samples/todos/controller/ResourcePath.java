@@ -24,6 +24,9 @@ public enum ResourcePath {
     todos(Link.TODOS, Todo.class),
     users(Link.USERS, User.class);
 
+    //values() returns a new copy on every call:
+    private static final ResourcePath[] VALUES = values();
+
     final String path;
     final Class<? extends Entity> associatedClass;
 
@@ -33,7 +36,7 @@ public enum ResourcePath {
     }
 
     public static ResourcePath forClass(Class<? extends Entity> clazz) {
-        for (ResourcePath rp : values()) {
+        for (ResourcePath rp : VALUES) {
             //Cannot use equals because of hibernate proxied object
             //Cannot use instanceof because type not fixed at compile time
             if (rp.associatedClass.isAssignableFrom(clazz)) {
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.controller;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.io.SerializedString;
+import org.codehaus.jackson.map.JsonSerializer;
+import org.codehaus.jackson.map.SerializerProvider;
+
+import java.io.IOException;
+
+/**
+ * Serializes {@link Link} and its subclasses as JSON objects.
+ * <p/>
+ * Resources write their own fields in a fixed order, with field names that are encoded once up front, so there is no
+ * per-request introspection, map iteration or boxing involved.
+ */
+public class ResourceSerializer extends JsonSerializer<Link> {
+
+    static final SerializedString HREF = new SerializedString("href");
+    static final SerializedString NAME = new SerializedString("name");
+    static final SerializedString DONE = new SerializedString("done");
+    static final SerializedString CREATED = new SerializedString("created");
+    static final SerializedString USER = new SerializedString("user");
+    static final SerializedString OFFSET = new SerializedString("offset");
+    static final SerializedString LIMIT = new SerializedString("limit");
+    static final SerializedString ITEMS = new SerializedString("items");
+    static final SerializedString NEXT = new SerializedString("next");
+    static final SerializedString PREV = new SerializedString("prev");
+    static final SerializedString SIZE = new SerializedString("size");
+    static final SerializedString TOTAL = new SerializedString("total");
+    static final SerializedString OPEN = new SerializedString("open");
+    static final SerializedString USERS = new SerializedString("users");
+    static final SerializedString CREATED_PER_DAY = new SerializedString("createdPerDay");
+    static final SerializedString SEQ = new SerializedString("seq");
+    static final SerializedString SINCE = new SerializedString("since");
+    static final SerializedString DELETED = new SerializedString("deleted");
+    static final SerializedString REPRESENTATION_CACHE = new SerializedString("representationCache");
+    static final SerializedString UPDATES = new SerializedString("updates");
+    static final SerializedString LINES = new SerializedString("lines");
+    static final SerializedString IMPORTED = new SerializedString("imported");
+    static final SerializedString FAILED = new SerializedString("failed");
+    static final SerializedString ERRORS = new SerializedString("errors");
+    static final SerializedString LINE = new SerializedString("line");
+    static final SerializedString MESSAGE = new SerializedString("message");
+    static final SerializedString MILLIS = new SerializedString("millis");
+    static final SerializedString TODOS_PER_SECOND = new SerializedString("todosPerSecond");
+
+    @Override
+    public void serialize(Link value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        gen.writeStartObject();
+        value.writeFields(gen, provider);
+        gen.writeEndObject();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.controller;
+
+import com.stormpath.samples.todos.service.TodoStats;
+import com.stormpath.samples.todos.service.UpdateStats;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.SerializerProvider;
+
+import javax.ws.rs.core.UriInfo;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.TimeZone;
+
+public class StatsResource extends Link {
+
+    public static final String STATS = PATH_SEPARATOR + "stats";
+
+    private final String fqBasePath;
+    private final TodoStats stats;
+    private final UpdateStats updateStats;
+    private final TodoRepresentationCache.Stats cacheStats;
+
+    public StatsResource(UriInfo info, TodoStats stats, UpdateStats updateStats,
+                         TodoRepresentationCache.Stats cacheStats) {
+        this(getFullyQualifiedContextPath(info), stats, updateStats, cacheStats);
+    }
+
+    public StatsResource(String fqBasePath, TodoStats stats, UpdateStats updateStats,
+                         TodoRepresentationCache.Stats cacheStats) {
+        super(fqBasePath, TODOS + STATS);
+        this.fqBasePath = fqBasePath;
+        this.stats = stats;
+        this.updateStats = updateStats;
+        this.cacheStats = cacheStats;
+    }
+
+    @Override
+    protected void writeFields(JsonGenerator gen, SerializerProvider provider) throws IOException {
+        super.writeFields(gen, provider);
+        gen.writeFieldName(ResourceSerializer.TOTAL);
+        gen.writeNumber(stats.getTotal());
+        gen.writeFieldName(ResourceSerializer.DONE);
+        gen.writeNumber(stats.getDone());
+        gen.writeFieldName(ResourceSerializer.OPEN);
+        gen.writeNumber(stats.getOpen());
+
+        gen.writeFieldName(ResourceSerializer.USERS);
+        gen.writeStartArray();
+        for (Map.Entry<String, Integer> entry : stats.getTotalByUser().entrySet()) {
+            gen.writeStartObject();
+            gen.writeFieldName(ResourceSerializer.HREF);
+            gen.writeString(fqBasePath + USERS + PATH_SEPARATOR + entry.getKey());
+            gen.writeFieldName(ResourceSerializer.TOTAL);
+            gen.writeNumber(entry.getValue());
+            gen.writeEndObject();
+        }
+        gen.writeEndArray();
+
+        DateFormat day = new SimpleDateFormat("yyyy-MM-dd");
+        day.setTimeZone(TimeZone.getTimeZone("UTC"));
+        gen.writeFieldName(ResourceSerializer.CREATED_PER_DAY);
+        gen.writeStartObject();
+        for (Map.Entry<Date, Integer> entry : stats.getCreatedPerDay().entrySet()) {
+            gen.writeFieldName(day.format(entry.getKey()));
+            gen.writeNumber(entry.getValue());
+        }
+        gen.writeEndObject();
+
+        gen.writeFieldName(ResourceSerializer.UPDATES);
+        gen.writeStartObject();
+        gen.writeNumberField("updates", updateStats.getUpdates());
+        gen.writeNumberField("retries", updateStats.getRetries());
+        gen.writeNumberField("retryRatio", updateStats.getRetryRatio());
+        gen.writeNumberField("maxRetries", updateStats.getMaxRetries());
+        gen.writeNumberField("lockedUpdates", updateStats.getLockedUpdates());
+        gen.writeEndObject();
+
+        gen.writeFieldName(ResourceSerializer.REPRESENTATION_CACHE);
+        gen.writeStartObject();
+        gen.writeNumberField("hits", cacheStats.getHits());
+        gen.writeNumberField("misses", cacheStats.getMisses());
+        gen.writeNumberField("hitRatio", cacheStats.getHitRatio());
+        gen.writeNumberField("evictions", cacheStats.getEvictions());
+        gen.writeNumberField("invalidations", cacheStats.getInvalidations());
+        gen.writeNumberField("entries", cacheStats.getEntries());
+        gen.writeNumberField("bytes", cacheStats.getBytes());
+        gen.writeNumberField("maxBytes", cacheStats.getMaxBytes());
+        gen.writeEndObject();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.controller;
+
+import com.stormpath.samples.todos.entity.Todo;
+import com.stormpath.samples.todos.service.PagedIterator;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.SerializationConfig;
+import org.codehaus.jackson.map.SerializerProvider;
+
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.UriInfo;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Set;
+
+/**
+ * Writes a page of todos as a collection document - its {@code href}, {@code offset}, {@code limit}, {@code seq}, the
+ * {@code items} and the {@code next} and {@code prev} links - directly to the response stream, in the format of the
+ * mapper's factory (JSON or Smile).
+ * <p/>
+ * Each todo is read from the service, serialized and discarded before the next one is read, so memory use does not
+ * depend on the page size and the first bytes go out before the last todo has been read.  Items are serialized with
+ * the same {@link ObjectMapper} and resource classes as the rest of the API, so every item is identical to the
+ * representation of the todo on its own.
+ * <p/>
+ * When todos are expanded and the output is compact JSON, the items are not serialized at all: the document is
+ * spliced together from the cached JSON of each todo (see {@link TodoRepresentationCache}).  Pretty-printed output
+ * cannot be spliced, because the cached JSON is not indented for its position in the document, and neither can
+ * Smile, whose documents start with a header and refer back to names written earlier in the same document.
+ */
+public class TodoCollectionOutput implements StreamingOutput {
+
+    public static final int DEFAULT_LIMIT = 25;
+
+    /**
+     * The largest page a client may ask for.  Every page is read and written in a single request, so larger pages
+     * would let one request hold a snapshot of the store and a response thread for as long as it likes.
+     */
+    public static final int MAX_LIMIT = 1000;
+
+    private final ObjectMapper mapper;
+    private final UriInfo info;
+    private final PagedIterator<Todo> todos;
+    private final Set<TodoField> fields;
+    private final int offset;
+    private final int limit;
+    private final boolean keyset;
+    private final long seq;
+    private final TodoRepresentationCache cache;
+
+    /**
+     * @param fields the fields of expanded items, or {@code null} to only write links to the todos
+     * @param seq    the change sequence number of the service when the todos started to be read, which clients can
+     *              later ask for the changes since
+     * @param cache  the cache of serialized todos to splice expanded items from, or {@code null} to serialize them
+     */
+    public TodoCollectionOutput(ObjectMapper mapper, UriInfo info, PagedIterator<Todo> todos, Set<TodoField> fields,
+                                int offset, int limit, boolean keyset, long seq, TodoRepresentationCache cache) {
+        this.mapper = mapper;
+        this.info = info;
+        this.todos = todos;
+        this.fields = fields;
+        this.offset = offset;
+        this.limit = limit;
+        this.keyset = keyset;
+        this.seq = seq;
+        this.cache = cache;
+    }
+
+    @Override
+    public void write(OutputStream out) throws IOException {
+        SerializationConfig config = mapper.copySerializationConfig();
+        JsonFactory factory = mapper.getJsonFactory();
+        JsonGenerator gen = factory.createJsonGenerator(out, JsonEncoding.UTF8);
+        boolean pretty = config.isEnabled(SerializationConfig.Feature.INDENT_OUTPUT);
+        if (pretty) {
+            gen.useDefaultPrettyPrinter();
+        }
+        boolean json = JsonFactory.FORMAT_NAME_JSON.equals(factory.getFormatName());
+        OutputStream splice = fields != null && cache != null && json && !pretty ? out : null;
+        try {
+            //a single serialization pass for the whole document, so serializer lookups are shared by all items:
+            mapper.writeValue(gen, new Document(Link.getFullyQualifiedContextPath(info), splice), config);
+            gen.flush();
+        } finally {
+            todos.close();
+        }
+    }
+
+    private class Document extends Link {
+
+        private final String fqBasePath;
+        //the stream to splice cached items into, or null if items are serialized:
+        private final OutputStream splice;
+
+        Document(String fqBasePath, OutputStream splice) {
+            super(fqBasePath, Link.TODOS);
+            this.fqBasePath = fqBasePath;
+            this.splice = splice;
+        }
+
+        @Override
+        protected void writeFields(JsonGenerator gen, SerializerProvider provider) throws IOException {
+            super.writeFields(gen, provider);
+            gen.writeFieldName(ResourceSerializer.OFFSET);
+            gen.writeNumber(keyset ? 0 : offset);
+            gen.writeFieldName(ResourceSerializer.LIMIT);
+            gen.writeNumber(limit);
+            gen.writeFieldName(ResourceSerializer.SEQ);
+            gen.writeNumber(seq);
+            gen.writeFieldName(ResourceSerializer.ITEMS);
+            gen.writeStartArray();
+            if (splice != null) {
+                //the generator has written '[' and will only write the matching ']', so the compact items and their
+                //separators can go straight to the stream in between:
+                gen.flush();
+                for (boolean first = true; todos.hasNext(); first = false) {
+                    if (!first) {
+                        splice.write(',');
+                    }
+                    splice.write(cache.get(mapper, fqBasePath, todos.next(), fields));
+                }
+            } else {
+                while (todos.hasNext()) {
+                    Todo todo = todos.next();
+                    Link item = fields != null ?
+                            new TodoResource(fqBasePath, todo, fields) : new Link(fqBasePath, todo);
+                    provider.defaultSerializeValue(item, gen);
+                }
+            }
+            gen.writeEndArray();
+
+            String nextCursor = todos.getNextCursor();
+            if (nextCursor != null) {
+                UriBuilder next = info.getRequestUriBuilder().replaceQueryParam("limit", limit);
+                if (keyset) {
+                    //keyset paging stays in keyset mode - its cost does not depend on how deep the client pages:
+                    next.replaceQueryParam("after", nextCursor);
+                } else {
+                    next.replaceQueryParam("offset", offset + limit);
+                }
+                gen.writeFieldName(ResourceSerializer.NEXT);
+                provider.defaultSerializeValue(new Link(next.build()), gen);
+            }
+            if (!keyset && offset > 0) {
+                UriBuilder prev = info.getRequestUriBuilder().replaceQueryParam("limit", limit);
+                prev.replaceQueryParam("offset", Math.max(0, offset - limit));
+                gen.writeFieldName(ResourceSerializer.PREV);
+                provider.defaultSerializeValue(new Link(prev.build()), gen);
+            }
+        }
+    }
+}
@@ -16,90 +16,284 @@
 package com.stormpath.samples.todos.controller;
 
 import com.stormpath.samples.todos.entity.Todo;
-import com.stormpath.samples.todos.service.DefaultTodoService;
+import com.stormpath.samples.todos.http.MediaTypes;
+import com.stormpath.samples.todos.lang.Iso8601;
+import com.stormpath.samples.todos.service.PagedIterator;
+import com.stormpath.samples.todos.service.TodoFilter;
+import com.stormpath.samples.todos.service.TodoMutator;
 import com.stormpath.samples.todos.service.TodoService;
+import com.stormpath.samples.todos.service.TodoServices;
+import com.stormpath.samples.todos.service.TodoSnapshot;
+import com.stormpath.samples.todos.service.VersionConflictException;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
+import javax.ws.rs.core.Variant;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 @Path(Link.TODOS)
 public class TodoController extends BaseController {
 
-    private TodoService todoService = DefaultTodoService.getInstance();
+    private static final List<Variant> EXPORT_VARIANTS =
+            Variant.mediaTypes(MediaTypes.APPLICATION_NDJSON_TYPE, MediaTypes.TEXT_CSV_TYPE).add().build();
+
+    private TodoService todoService = TodoServices.getInstance();
+
+    private TodoRepresentationCache cache = TodoRepresentationCache.getInstance();
 
     @GET
-    @Produces(MediaType.APPLICATION_JSON)
-    @SuppressWarnings("unchecked")
-    public CollectionResource list(@Context UriInfo info,
-                                   @DefaultValue("false") @QueryParam("expand") boolean expand) {
-        Collection<Todo> todos = todoService.getTodos();
-        if (todos == null || todos.size() == 0) {
-            return new CollectionResource(info, Link.TODOS, Collections.emptyList());
-        }
-        Collection items = new ArrayList(todos.size());
-        for( Todo todo : todos) {
-            if (expand) {
-                items.add(new TodoResource(info, todo));
-            } else {
-                items.add(new Link(info, todo));
+    @Produces({MediaType.APPLICATION_JSON, MediaTypes.APPLICATION_SMILE})
+    public Response list(@Context UriInfo info,
+                         @DefaultValue("false") @QueryParam("expand") boolean expand,
+                         @QueryParam("fields") String fields,
+                         @DefaultValue("0") @QueryParam("offset") int offset,
+                         @DefaultValue("" + TodoCollectionOutput.DEFAULT_LIMIT) @QueryParam("limit") int limit,
+                         @QueryParam("after") String after,
+                         @QueryParam("done") String done,
+                         @QueryParam("createdAfter") String createdAfter,
+                         @QueryParam("createdBefore") String createdBefore,
+                         @DefaultValue("false") @QueryParam("countOnly") boolean countOnly,
+                         @QueryParam("since") Long since) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("The offset query parameter must be greater than or equal to zero.");
+        }
+        if (limit < 1 || limit > TodoCollectionOutput.MAX_LIMIT) {
+            throw new IllegalArgumentException("The limit query parameter must be between 1 and " +
+                    TodoCollectionOutput.MAX_LIMIT + ".");
+        }
+
+        //a field list implies expanded items - only the listed fields of each todo are read and serialized:
+        Set<TodoField> itemFields = fields != null ? TodoField.parse(fields) : expand ? TodoField.ALL : null;
+        TodoFilter filter = new TodoFilter(parseBoolean("done", done), parseDate("createdAfter", createdAfter),
+                parseDate("createdBefore", createdBefore));
+
+        if (since != null && (!filter.isEmpty() || after != null || countOnly)) {
+            throw new IllegalArgumentException("The since query parameter cannot be combined with filtering, " +
+                    "paging or counting parameters.");
+        }
+
+        //pages are read from a snapshot of the store, and a page with a cursor from the snapshot of the previous page,
+        //so the page is opened first and its representation is the one of the snapshot's version:
+        boolean keyset = after != null;
+        PagedIterator<Todo> todos = null;
+        if (since == null && !countOnly) {
+            todos = keyset ? todoService.iterateTodosAfter(filter, after, limit) :
+                    todoService.iterateTodos(filter, offset, limit);
+        }
+
+        //every representation of the collection is derived from the state of the whole store, so nothing needs to be
+        //read if the client already has the one for the current store version.  Otherwise the version is read before
+        //the changes or counts, so that clients syncing from it see anything that changes while they are read:
+        long seq = todos != null ? todos.getSeq() : todoService.getChangeSeq();
+        Date lastModified = todoService.getLastModified();
+        EntityTag tag = entityTag(seq);
+        Response.ResponseBuilder notModified = evaluatePreconditions(lastModified, tag);
+        if (notModified != null) {
+            if (todos != null) {
+                todos.close();
             }
+            return notModified.build();
+        }
+        MediaType mediaType = selectMediaType();
+
+        if (since != null) {
+            return Response.ok(new ChangesResource(info, todoService.getChangesSince(since)), mediaType)
+                    .tag(tag).lastModified(lastModified).build();
+        }
+
+        if (countOnly) {
+            //answered from the service's counters, without reading any todos unless a creation date is given:
+            return Response.ok(new CountResource(info, Link.TODOS, todoService.countTodos(filter)), mediaType)
+                    .tag(tag).lastModified(lastModified).build();
+        }
+
+        //items are streamed straight from the service to the response instead of being collected first:
+        StreamingOutput output = new TodoCollectionOutput(getObjectMapper(mediaType), info, todos, itemFields,
+                offset, limit, keyset, seq, cache);
+        return Response.ok(output, mediaType).tag(tag).lastModified(lastModified).build();
+    }
+
+    @Path(StatsResource.STATS)
+    @GET
+    @Produces({MediaType.APPLICATION_JSON, MediaTypes.APPLICATION_SMILE})
+    public StatsResource stats(@Context UriInfo info) {
+        return new StatsResource(info, todoService.getStats(), todoService.getUpdateStats(), cache.getStats());
+    }
+
+    private static Boolean parseBoolean(String param, String value) {
+        if (value == null) {
+            return null;
+        }
+        if (value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false")) {
+            return Boolean.valueOf(value);
         }
-        return new CollectionResource(info, Link.TODOS, items);
+        throw new IllegalArgumentException("The " + param + " query parameter must be either true or false.");
+    }
+
+    /**
+     * Parses a date query parameter given either as epoch milliseconds or as an ISO-8601 UTC date or date-time, e.g.
+     * {@code 2012-11-05}, {@code 2012-11-05T13:15:30Z} or {@code 2012-11-05T13:15:30.000Z}.
+     */
+    private static Date parseDate(String param, String value) {
+        if (value == null) {
+            return null;
+        }
+        if (value.matches("-?\\d+")) {
+            try {
+                return new Date(Long.parseLong(value));
+            } catch (NumberFormatException e) {
+                //fall through to the error below
+            }
+        }
+        try {
+            return new Date(Iso8601.parse(value));
+        } catch (IllegalArgumentException e) {
+            //fall through to the error below
+        }
+        throw new IllegalArgumentException("The " + param + " query parameter must be an ISO-8601 date or a number " +
+                "of milliseconds since the epoch.");
     }
 
     @POST
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, MediaTypes.APPLICATION_SMILE})
+    @Produces({MediaType.APPLICATION_JSON, MediaTypes.APPLICATION_SMILE})
     public Response create(@Context UriInfo info, Todo todo) {
         todo = todoService.save(todo);
         TodoResource resource = new TodoResource(info, todo);
         return created(resource);
     }
 
+    /**
+     * Creates a todo for every line of a newline-delimited JSON upload, which is read as it arrives rather than
+     * buffered, so uploads of any size are imported in the same amount of memory.
+     */
+    @Path(ImportResource.IMPORT)
+    @POST
+    @Consumes(MediaTypes.APPLICATION_NDJSON)
+    @Produces({MediaType.APPLICATION_JSON, MediaTypes.APPLICATION_SMILE})
+    public Response importTodos(@Context UriInfo info, InputStream in) throws IOException {
+        TodoImporter importer = new TodoImporter(todoService, getObjectMapper(MediaType.APPLICATION_JSON_TYPE)
+                .getJsonFactory());
+        importer.read(in);
+        return Response.ok(new ImportResource(info, importer), selectMediaType()).build();
+    }
+
+    /**
+     * Streams every todo to the client from a single consistent snapshot of the service, as newline-delimited JSON or,
+     * if the client prefers it, as CSV.  Long exports see none of the changes made while they are written.
+     */
+    @Path(TodoExportOutput.EXPORT)
+    @GET
+    @Produces({MediaTypes.APPLICATION_NDJSON, MediaTypes.TEXT_CSV})
+    public Response export(@Context UriInfo info) {
+        TodoSnapshot snapshot = todoService.openSnapshot();
+        EntityTag tag = entityTag(snapshot.getSeq());
+        Response.ResponseBuilder notModified = evaluatePreconditions(snapshot.getLastModified(), tag);
+        if (notModified != null) {
+            snapshot.close();
+            return notModified.build();
+        }
+        MediaType mediaType = selectMediaType(EXPORT_VARIANTS);
+        TodoExportOutput.Format format = mediaType.isCompatible(MediaTypes.TEXT_CSV_TYPE) ?
+                TodoExportOutput.Format.CSV : TodoExportOutput.Format.NDJSON;
+        //the snapshot is closed by the output once it has been written:
+        StreamingOutput output = new TodoExportOutput(getObjectMapper(MediaType.APPLICATION_JSON_TYPE),
+                Link.getFullyQualifiedContextPath(info), snapshot, format);
+        return Response.ok(output, mediaType).tag(tag).lastModified(snapshot.getLastModified())
+                .header("Content-Disposition", "attachment; filename=\"todos-" +
+                        Long.toString(snapshot.getSeq(), Character.MAX_RADIX) + "." + format.getExtension() + "\"")
+                .build();
+    }
+
     @Path("/{id}")
     @GET
-    @Produces(MediaType.APPLICATION_JSON)
-    public TodoResource getTodo(@Context UriInfo info, @PathParam("id") String id) {
+    @Produces({MediaType.APPLICATION_JSON, MediaTypes.APPLICATION_SMILE})
+    public Response getTodo(@Context UriInfo info, @PathParam("id") String id, @QueryParam("fields") String fields)
+            throws IOException {
+        Set<TodoField> todoFields = fields != null ? TodoField.parse(fields) : TodoField.ALL;
         Todo todo = todoService.getById(id);
         if (todo == null) {
             throw new UnknownResourceException();
         }
-        return new TodoResource(info, todo);
+        EntityTag tag = entityTag(todo.getVersion());
+        Response.ResponseBuilder notModified = evaluatePreconditions(todo.getModified(), tag);
+        if (notModified != null) {
+            return notModified.build();
+        }
+        //written as is - the todo is only serialized if its current version is not cached yet:
+        MediaType mediaType = selectMediaType();
+        byte[] body = cache.get(getObjectMapper(mediaType), Link.getFullyQualifiedContextPath(info), todo, todoFields);
+        return Response.ok(body, mediaType).tag(tag).lastModified(todo.getModified()).build();
     }
 
     @Path("/{id}")
     @POST
-    @Consumes(MediaType.APPLICATION_JSON)
-    public Response updateTodo(@Context UriInfo info, @PathParam("id") String id, Map map) {
+    @Consumes({MediaType.APPLICATION_JSON, MediaTypes.APPLICATION_SMILE})
+    @Produces({MediaType.APPLICATION_JSON, MediaTypes.APPLICATION_SMILE})
+    public Response updateTodo(@Context UriInfo info, @PathParam("id") final String id, final Map map) {
         Todo existing = todoService.getById(id);
         if (existing == null) {
             throw new UnknownResourceException();
         }
-        //typically done via a framework call to automate this for any type of entity:
-        if (map.containsKey("name")) {
-            existing.setName(String.valueOf(map.get("name")));
+        Response.ResponseBuilder failed =
+                evaluatePreconditions(existing.getModified(), entityTag(existing.getVersion()));
+        if (failed != null) {
+            return failed.build();
         }
-        if (map.containsKey("done")) {
-            existing.setDone(Boolean.valueOf(String.valueOf(map.get("done"))));
+        final long checkedVersion = isIfMatch() ? existing.getVersion() : TodoService.ANY_VERSION;
+        Todo updated = todoService.update(id, new TodoMutator() {
+            @Override
+            public void mutate(Todo todo) {
+                //an If-Match request must not overwrite changes made since the version it was checked against:
+                if (checkedVersion != TodoService.ANY_VERSION && todo.getVersion() != checkedVersion) {
+                    throw new VersionConflictException("Todo " + id + " has been modified by someone else.");
+                }
+                //typically done via a framework call to automate this for any type of entity:
+                if (map.containsKey("name")) {
+                    todo.setName(String.valueOf(map.get("name")));
+                }
+                if (map.containsKey("done")) {
+                    todo.setDone(Boolean.valueOf(String.valueOf(map.get("done"))));
+                }
+            }
+        });
+        if (updated == null) {
+            throw new UnknownResourceException();
         }
-        existing = todoService.save(existing);
-        return Response.ok(new TodoResource(info, existing), MediaType.APPLICATION_JSON).build();
+        return Response.ok(new TodoResource(info, updated), selectMediaType())
+                .tag(entityTag(updated.getVersion())).lastModified(updated.getModified()).build();
     }
 
     @Path("/{id}")
     @DELETE
-    public void deleteTodo(@PathParam("id") String id) {
-        Todo todo = todoService.deleteById(id);
+    public Response deleteTodo(@PathParam("id") String id) {
+        long expectedVersion = TodoService.ANY_VERSION;
+        if (isIfMatch()) {
+            Todo existing = todoService.getById(id);
+            if (existing == null) {
+                throw new UnknownResourceException();
+            }
+            Response.ResponseBuilder failed =
+                    evaluatePreconditions(existing.getModified(), entityTag(existing.getVersion()));
+            if (failed != null) {
+                return failed.build();
+            }
+            expectedVersion = existing.getVersion();
+        }
+        Todo todo = todoService.deleteById(id, expectedVersion);
         if (todo == null) {
             throw new UnknownResourceException();
         }
+        return Response.noContent().build();
     }
-
-
 }
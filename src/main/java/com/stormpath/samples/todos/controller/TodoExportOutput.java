@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.controller;
+
+import com.stormpath.samples.todos.entity.Todo;
+import com.stormpath.samples.todos.lang.Iso8601;
+import com.stormpath.samples.todos.service.TodoSnapshot;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.SerializationConfig;
+import org.codehaus.jackson.util.MinimalPrettyPrinter;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes every todo of a {@link TodoSnapshot} to the response stream, either as newline-delimited JSON - one todo
+ * resource per line, in the same representation as everywhere else in the API - or as RFC 4180 CSV with a header line
+ * and the plain ids of todos and users.
+ * <p/>
+ * Todos are materialized, written and discarded one at a time, so memory use does not depend on the number of todos.
+ * The snapshot is closed once it has been written, whether or not writing succeeds.
+ */
+public class TodoExportOutput implements StreamingOutput {
+
+    public static final String EXPORT = Link.PATH_SEPARATOR + "export";
+
+    private static final String CSV_HEADER = "id,name,done,created,user\r\n";
+
+    public enum Format {
+
+        NDJSON("ndjson"), CSV("csv");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    private final ObjectMapper mapper;
+    private final String fqBasePath;
+    private final TodoSnapshot snapshot;
+    private final Format format;
+
+    /**
+     * @param mapper     the mapper to write JSON todos with.  Its output is always written compact, one todo per line.
+     * @param fqBasePath the fully qualified base path of the todo links
+     * @param snapshot   the todos to write
+     * @param format     the format to write them in
+     */
+    public TodoExportOutput(ObjectMapper mapper, String fqBasePath, TodoSnapshot snapshot, Format format) {
+        this.mapper = mapper;
+        this.fqBasePath = fqBasePath;
+        this.snapshot = snapshot;
+        this.format = format;
+    }
+
+    @Override
+    public void write(OutputStream out) throws IOException {
+        try {
+            if (format == Format.CSV) {
+                writeCsv(out);
+            } else {
+                writeNdjson(out);
+            }
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private void writeNdjson(OutputStream out) throws IOException {
+        //the generator only flushes when its buffer is full, not after every todo:
+        SerializationConfig config = mapper.copySerializationConfig()
+                .without(SerializationConfig.Feature.FLUSH_AFTER_WRITE_VALUE, SerializationConfig.Feature.INDENT_OUTPUT);
+        JsonGenerator gen = mapper.getJsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+        //compact values, separated by newlines instead of spaces:
+        gen.setPrettyPrinter(new MinimalPrettyPrinter("\n"));
+        boolean any = false;
+        for (Todo todo : snapshot) {
+            mapper.writeValue(gen, new TodoResource(fqBasePath, todo), config);
+            any = true;
+        }
+        if (any) {
+            gen.writeRaw('\n');
+        }
+        gen.flush();
+    }
+
+    private void writeCsv(OutputStream out) throws IOException {
+        Writer w = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 8192);
+        char[] date = new char[Iso8601.LENGTH];
+        w.write(CSV_HEADER);
+        for (Todo todo : snapshot) {
+            w.write(todo.getId());
+            w.write(',');
+            writeCsvField(w, todo.getName());
+            w.write(',');
+            w.write(todo.isDone() ? "true" : "false");
+            w.write(',');
+            if (todo.getCreated() != null) {
+                long created = todo.getCreated().getTime();
+                if (Iso8601.isFormattable(created)) {
+                    w.write(date, 0, Iso8601.format(created, date, 0));
+                } else {
+                    w.write(Long.toString(created));
+                }
+            }
+            w.write(',');
+            if (todo.getUser() != null) {
+                w.write(todo.getUser().getId());
+            }
+            w.write("\r\n");
+        }
+        w.flush();
+    }
+
+    //quotes a field as per RFC 4180 if it contains a separator, a quote or a line break:
+    private static void writeCsvField(Writer w, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            w.write(value);
+            return;
+        }
+        w.write('"');
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) == '"') {
+                w.write(value, start, i + 1 - start);
+                w.write('"');
+                start = i + 1;
+            }
+        }
+        w.write(value, start, value.length() - start);
+        w.write('"');
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.controller;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The optional fields of a {@link TodoResource}, as named in its representation.  A todo's {@code href} is always
+ * included.
+ */
+public enum TodoField {
+
+    name,
+    done,
+    created,
+    user;
+
+    public static final Set<TodoField> ALL = Collections.unmodifiableSet(EnumSet.allOf(TodoField.class));
+
+    /**
+     * Parses a comma-separated list of field names, such as the value of a {@code fields} query parameter.  The
+     * {@code href} field may be listed, but is always included anyway.
+     *
+     * @param fields the field names
+     * @return the fields.
+     * @throws IllegalArgumentException if a name is not one of a todo's fields
+     */
+    public static Set<TodoField> parse(String fields) {
+        Set<TodoField> set = EnumSet.noneOf(TodoField.class);
+        for (String field : fields.split(",")) {
+            field = field.trim();
+            if (field.length() == 0 || field.equals("href")) {
+                continue;
+            }
+            try {
+                set.add(valueOf(field));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("The fields query parameter must be a comma-separated list of " +
+                        "todo fields (href, name, done, created, user), but contains '" + field + "'.");
+            }
+        }
+        return set;
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.controller;
+
+import com.stormpath.samples.todos.entity.Todo;
+import com.stormpath.samples.todos.lang.Iso8601;
+import com.stormpath.samples.todos.service.TodoService;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Creates todos from a stream of newline-delimited JSON, one todo object per line, in memory that does not depend on
+ * the size of the stream.
+ * <p/>
+ * Lines are read into a fixed buffer and parsed one at a time, so a malformed line is reported and skipped without
+ * affecting the lines around it.  Valid todos are handed to {@link TodoService#createAll(List)} in chunks.  Only the
+ * {@code name}, {@code done} and {@code created} fields of a line are used; any other field, e.g. the {@code href} of
+ * an exported todo, is skipped.
+ * <p/>
+ * An importer reads a single stream and is not thread-safe.
+ */
+public class TodoImporter {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    /**
+     * The longest line accepted.  Longer lines are reported as errors without being buffered.
+     */
+    public static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    /**
+     * The number of line errors that are reported individually.  Any further errors are only counted.
+     */
+    public static final int MAX_ERRORS = 100;
+
+    private static final byte NEWLINE = '\n';
+
+    private final TodoService todoService;
+    private final JsonFactory factory;
+    private final int chunkSize;
+
+    private final List<Todo> chunk;
+    private final List<LineError> errors = new ArrayList<LineError>();
+    private long lines;
+    private long imported;
+    private long failed;
+    private long nanos;
+
+    public TodoImporter(TodoService todoService, JsonFactory factory) {
+        this(todoService, factory, DEFAULT_CHUNK_SIZE);
+    }
+
+    public TodoImporter(TodoService todoService, JsonFactory factory, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be greater than zero.");
+        }
+        this.todoService = todoService;
+        this.factory = factory;
+        this.chunkSize = chunkSize;
+        this.chunk = new ArrayList<Todo>(chunkSize);
+    }
+
+    /**
+     * Reads the stream up to its end and creates a todo for every valid line.  Todos of chunks that have been created
+     * before the stream or the service fail stay created.
+     *
+     * @param in the newline-delimited JSON to read, which is not closed
+     * @throws IOException if the stream cannot be read
+     */
+    public void read(InputStream in) throws IOException {
+        long start = System.nanoTime();
+        byte[] buf = new byte[MAX_LINE_LENGTH + 1]; //room for the newline
+        int begin = 0; //start of the current line
+        int scan = 0;  //where to continue looking for its end
+        int end = 0;   //end of the buffered bytes
+        boolean skipping = false; //discarding the rest of a line that is too long
+        try {
+            for (;;) {
+                int nl = indexOf(buf, scan, end);
+                if (nl >= 0) {
+                    if (skipping) {
+                        skipping = false;
+                    } else {
+                        line(buf, begin, nl - begin);
+                    }
+                    begin = scan = nl + 1;
+                    continue;
+                }
+                if (begin == 0 && end == buf.length) {
+                    //the line does not fit into the buffer:
+                    lines++;
+                    error("The line is longer than " + MAX_LINE_LENGTH + " bytes.");
+                    skipping = true;
+                    end = 0;
+                } else if (begin > 0) {
+                    System.arraycopy(buf, begin, buf, 0, end - begin);
+                    end -= begin;
+                    begin = 0;
+                }
+                scan = end;
+                int read = in.read(buf, end, buf.length - end);
+                if (read < 0) {
+                    if (end > 0 && !skipping) {
+                        //the last line need not be terminated:
+                        line(buf, 0, end);
+                    }
+                    break;
+                }
+                end += read;
+                if (skipping) {
+                    //nothing before the newline is needed:
+                    nl = indexOf(buf, 0, end);
+                    if (nl < 0) {
+                        end = scan = 0;
+                    }
+                }
+            }
+            flush();
+        } finally {
+            nanos += System.nanoTime() - start;
+        }
+    }
+
+    private static int indexOf(byte[] buf, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == NEWLINE) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void line(byte[] buf, int offset, int length) throws IOException {
+        lines++;
+        if (isBlank(buf, offset, length)) {
+            return;
+        }
+        Todo todo;
+        try {
+            todo = parse(buf, offset, length);
+        } catch (JsonProcessingException e) {
+            error(describe(e, offset, length));
+            return;
+        }
+        chunk.add(todo);
+        if (chunk.size() == chunkSize) {
+            flush();
+        }
+    }
+
+    private static boolean isBlank(byte[] buf, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            byte b = buf[i];
+            if (b != ' ' && b != '\t' && b != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Todo parse(byte[] buf, int offset, int length) throws IOException {
+        JsonParser parser = factory.createJsonParser(buf, offset, length);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException("A todo must be a JSON object.", parser.getCurrentLocation());
+            }
+            Todo todo = new Todo();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("name".equals(field)) {
+                    if (token != JsonToken.VALUE_STRING && token != JsonToken.VALUE_NULL) {
+                        throw new JsonParseException("The name of a todo must be a string.",
+                                parser.getCurrentLocation());
+                    }
+                    todo.setName(parser.getText());
+                } else if ("done".equals(field)) {
+                    if (token != JsonToken.VALUE_TRUE && token != JsonToken.VALUE_FALSE) {
+                        throw new JsonParseException("The done field of a todo must be either true or false.",
+                                parser.getCurrentLocation());
+                    }
+                    todo.setDone(token == JsonToken.VALUE_TRUE);
+                } else if ("created".equals(field)) {
+                    todo.setCreated(parseDate(parser, token));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (parser.nextToken() != null) {
+                throw new JsonParseException("A line must contain a single todo.", parser.getCurrentLocation());
+            }
+            return todo;
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static Date parseDate(JsonParser parser, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (token == JsonToken.VALUE_NUMBER_INT) {
+            return new Date(parser.getLongValue());
+        }
+        if (token == JsonToken.VALUE_STRING) {
+            try {
+                return new Date(Iso8601.parse(parser.getTextCharacters(), parser.getTextOffset(),
+                        parser.getTextLength()));
+            } catch (IllegalArgumentException e) {
+                //reported below
+            }
+        }
+        throw new JsonParseException("The created date of a todo must be an ISO-8601 date or a number of " +
+                "milliseconds since the epoch.", parser.getCurrentLocation());
+    }
+
+    //parsers count columns from the start of the buffer rather than from the start of the line:
+    private static String describe(JsonProcessingException e, int offset, int length) {
+        String message = e.getMessage();
+        int end = message.indexOf('\n');
+        if (end >= 0) {
+            message = message.substring(0, end);
+        }
+        end = message.indexOf(" (from [Source");
+        if (end >= 0) {
+            message = message.substring(0, end);
+        }
+        if (e.getLocation() != null) {
+            int column = e.getLocation().getColumnNr() - offset;
+            if (column >= 1 && column <= length + 1) {
+                message += " (column " + column + ")";
+            }
+        }
+        return message;
+    }
+
+    private void error(String message) {
+        failed++;
+        if (errors.size() < MAX_ERRORS) {
+            errors.add(new LineError(lines, message));
+        }
+    }
+
+    private void flush() {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        todoService.createAll(chunk);
+        imported += chunk.size();
+        chunk.clear();
+    }
+
+    /**
+     * Returns the number of lines read, including blank and failed ones.
+     */
+    public long getLines() {
+        return lines;
+    }
+
+    public long getImported() {
+        return imported;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * Returns the first {@link #MAX_ERRORS} errors, in line order.
+     */
+    public List<LineError> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    public long getMillis() {
+        return nanos / 1000000;
+    }
+
+    /**
+     * Returns the number of todos created per second of reading.
+     */
+    public long getTodosPerSecond() {
+        return nanos > 0 ? imported * 1000000000L / nanos : 0;
+    }
+
+    public static final class LineError {
+
+        private final long line;
+        private final String message;
+
+        LineError(long line, String message) {
+            this.line = line;
+            this.message = message;
+        }
+
+        /**
+         * Returns the one-based number of the line.
+         */
+        public long getLine() {
+            return line;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.controller;
+
+import com.stormpath.samples.todos.entity.Todo;
+import com.stormpath.samples.todos.service.ChangeListener;
+import com.stormpath.samples.todos.service.TodoService;
+import com.stormpath.samples.todos.service.TodoServices;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of the serialized {@link TodoResource}s, so todos that are read many times between writes are only
+ * serialized once.
+ * <p/>
+ * There is at most one entry per todo.  An entry is only used if it was serialized from the same
+ * {@link Todo#getVersion() version} of the todo, for the same base URI and fields and with the same mapper (and so
+ * the same format) as requested, so a stale entry can never be returned; entries are also dropped as soon as their
+ * todo changes, to free the memory.  When the cache grows beyond its size limit, arbitrary entries are evicted until
+ * it is back under 90% of the limit.
+ * <p/>
+ * The singleton returned by {@link #getInstance()} caches the todos of {@link TodoServices#getInstance()}.  Its
+ * size limit in bytes is read from the {@code todos.cache.maxBytes} system property (default 32 MB, {@code 0}
+ * disables the cache).
+ */
+public class TodoRepresentationCache {
+
+    public static final String MAX_BYTES_PROPERTY = "todos.cache.maxBytes";
+    public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    //rough size of an entry and its map node and key, on top of the serialized bytes:
+    private static final int ENTRY_OVERHEAD = 160;
+
+    private static final TodoRepresentationCache INSTANCE = createInstance();
+
+    private static final class Entry {
+
+        final long version;
+        final String fqBasePath;
+        final Set<TodoField> fields;
+        final ObjectMapper mapper;
+        final byte[] bytes;
+
+        Entry(long version, String fqBasePath, Set<TodoField> fields, ObjectMapper mapper, byte[] bytes) {
+            this.version = version;
+            this.fqBasePath = fqBasePath;
+            this.fields = fields;
+            this.mapper = mapper;
+            this.bytes = bytes;
+        }
+
+        int size() {
+            return bytes.length + ENTRY_OVERHEAD;
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final long maxBytes;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public TodoRepresentationCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    private static TodoRepresentationCache createInstance() {
+        TodoRepresentationCache cache =
+                new TodoRepresentationCache(Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES));
+        cache.listenTo(TodoServices.getInstance());
+        return cache;
+    }
+
+    public static TodoRepresentationCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Drops the entry of every todo of the specified service as soon as the todo changes.
+     *
+     * @param service the service whose todos are cached
+     */
+    public void listenTo(TodoService service) {
+        service.addChangeListener(new ChangeListener() {
+            @Override
+            public void changed(long seq, String todoId, boolean deleted) {
+                invalidate(todoId);
+            }
+        });
+    }
+
+    /**
+     * Returns the serialized {@link TodoResource} of the specified todo, serializing and caching it first
+     * if it is not cached yet.
+     *
+     * @param mapper     the mapper to serialize the resource with
+     * @param fqBasePath the fully qualified base path of the resource's links
+     * @param todo       the todo
+     * @param fields     the fields of the resource
+     * @return the serialized todo resource.
+     * @throws IOException if the resource cannot be serialized
+     */
+    public byte[] get(ObjectMapper mapper, String fqBasePath, Todo todo, Set<TodoField> fields) throws IOException {
+        Entry entry = entries.get(todo.getId());
+        if (entry != null && entry.version == todo.getVersion() && entry.mapper == mapper &&
+                entry.fqBasePath.equals(fqBasePath) && (entry.fields == fields || entry.fields.equals(fields))) {
+            hits.incrementAndGet();
+            return entry.bytes;
+        }
+        misses.incrementAndGet();
+        byte[] serialized = mapper.writeValueAsBytes(new TodoResource(fqBasePath, todo, fields));
+        if (maxBytes > 0) {
+            put(todo.getId(), new Entry(todo.getVersion(), fqBasePath, fields, mapper, serialized));
+        }
+        return serialized;
+    }
+
+    private void put(String id, Entry entry) {
+        Entry replaced = entries.put(id, entry);
+        long size = bytes.addAndGet(entry.size() - (replaced != null ? replaced.size() : 0));
+        if (size > maxBytes && evicting.compareAndSet(false, true)) {
+            try {
+                long target = maxBytes / 10 * 9;
+                Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator();
+                while (bytes.get() > target && i.hasNext()) {
+                    Map.Entry<String, Entry> e = i.next();
+                    if (entries.remove(e.getKey(), e.getValue())) {
+                        bytes.addAndGet(-e.getValue().size());
+                        evictions.incrementAndGet();
+                    }
+                }
+            } finally {
+                evicting.set(false);
+            }
+        }
+    }
+
+    public void invalidate(String id) {
+        Entry removed = entries.remove(id);
+        if (removed != null) {
+            bytes.addAndGet(-removed.size());
+            invalidations.incrementAndGet();
+        }
+    }
+
+    public Stats getStats() {
+        return new Stats(hits.get(), misses.get(), evictions.get(), invalidations.get(), entries.size(), bytes.get(),
+                maxBytes);
+    }
+
+    /**
+     * Snapshot of the effectiveness and memory use of a cache.
+     */
+    public static final class Stats {
+
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long invalidations;
+        private final int entries;
+        private final long bytes;
+        private final long maxBytes;
+
+        Stats(long hits, long misses, long evictions, long invalidations, int entries, long bytes, long maxBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.invalidations = invalidations;
+            this.entries = entries;
+            this.bytes = bytes;
+            this.maxBytes = maxBytes;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public double getHitRatio() {
+            long requests = hits + misses;
+            return requests > 0 ? (double) hits / requests : 0;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public long getInvalidations() {
+            return invalidations;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+
+        /**
+         * Returns the estimated memory used by the cache, including the overhead of its entries.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+    }
+}
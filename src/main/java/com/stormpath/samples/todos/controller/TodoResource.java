@@ -16,17 +16,61 @@
 package com.stormpath.samples.todos.controller;
 
 import com.stormpath.samples.todos.entity.Todo;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.SerializerProvider;
 
 import javax.ws.rs.core.UriInfo;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Set;
 
-@SuppressWarnings("unchecked")
 public class TodoResource extends Link {
 
+    private final Set<TodoField> fields;
+    private final String name;
+    private final boolean done;
+    private final Date created;
+    private final Link user;
+
     public TodoResource(UriInfo info, Todo todo) {
-        super(info, todo);
-        put("name", todo.getName());
-        put("done", todo.isDone());
-        put("created", todo.getCreated());
-        put("user", new Link(getFullyQualifiedContextPath(info), todo.getUser()));
+        this(getFullyQualifiedContextPath(info), todo);
+    }
+
+    public TodoResource(String fqBasePath, Todo todo) {
+        this(fqBasePath, todo, TodoField.ALL);
+    }
+
+    /**
+     * Creates the resource of a todo with only the specified fields (and its {@code href}).  Fields that are left out
+     * are neither computed nor serialized.
+     */
+    public TodoResource(String fqBasePath, Todo todo, Set<TodoField> fields) {
+        super(fqBasePath, todo);
+        this.fields = fields;
+        this.name = fields.contains(TodoField.name) ? todo.getName() : null;
+        this.done = fields.contains(TodoField.done) && todo.isDone();
+        this.created = fields.contains(TodoField.created) ? todo.getCreated() : null;
+        this.user = fields.contains(TodoField.user) ? new Link(fqBasePath, todo.getUser()) : null;
+    }
+
+    @Override
+    protected void writeFields(JsonGenerator gen, SerializerProvider provider) throws IOException {
+        super.writeFields(gen, provider);
+        if (fields.contains(TodoField.name)) {
+            gen.writeFieldName(ResourceSerializer.NAME);
+            gen.writeString(name);
+        }
+        if (fields.contains(TodoField.done)) {
+            gen.writeFieldName(ResourceSerializer.DONE);
+            gen.writeBoolean(done);
+        }
+        if (fields.contains(TodoField.created)) {
+            gen.writeFieldName(ResourceSerializer.CREATED);
+            provider.defaultSerializeValue(created, gen);
+        }
+        if (fields.contains(TodoField.user)) {
+            gen.writeFieldName(ResourceSerializer.USER);
+            provider.defaultSerializeValue(user, gen);
+        }
     }
 }
@@ -23,6 +23,8 @@ public class Todo extends Entity {
     private boolean done;
     private Date created;
     private User user;
+    private long version;
+    private Date modified;
 
     public Todo(){}
 
@@ -57,4 +59,27 @@ public class Todo extends Entity {
     public void setUser(User user) {
         this.user = user;
     }
+
+    /**
+     * Returns the version of this todo as last read from or written to the store.  The store gives a todo a new,
+     * higher version every time it changes.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    /**
+     * Returns when this todo was last changed, as last read from or written to the store.
+     */
+    public Date getModified() {
+        return modified;
+    }
+
+    public void setModified(Date modified) {
+        this.modified = modified;
+    }
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.http;
+
+import javax.ws.rs.core.MediaType;
+
+/**
+ * Media types supported by the API in addition to the ones defined by {@link MediaType}.
+ */
+public final class MediaTypes {
+
+    /**
+     * {@code application/x-jackson-smile}: the <a href="http://wiki.fasterxml.com/SmileFormat">Smile</a> binary
+     * encoding of the same documents that are otherwise represented as JSON.
+     */
+    public static final String APPLICATION_SMILE = "application/x-jackson-smile";
+
+    public static final MediaType APPLICATION_SMILE_TYPE = MediaType.valueOf(APPLICATION_SMILE);
+
+    /**
+     * {@code application/x-ndjson}: <a href="http://ndjson.org">newline-delimited JSON</a>, one JSON document per
+     * line, for streams of documents that are too large to be read as a single one.
+     */
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
+
+    public static final MediaType APPLICATION_NDJSON_TYPE = MediaType.valueOf(APPLICATION_NDJSON);
+
+    /**
+     * {@code text/csv}: comma-separated values as per <a href="http://tools.ietf.org/html/rfc4180">RFC 4180</a>.
+     */
+    public static final String TEXT_CSV = "text/csv";
+
+    public static final MediaType TEXT_CSV_TYPE = MediaType.valueOf(TEXT_CSV);
+
+    private MediaTypes() {
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.jersey;
+
+import com.stormpath.samples.todos.lang.Iso8601;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.DeserializationContext;
+import org.codehaus.jackson.map.JsonDeserializer;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Reads dates written by {@link Iso8601DateSerializer}: ISO-8601 UTC dates and date-times (see
+ * {@link Iso8601#parse(char[], int, int)}) or milliseconds since the epoch.  The text is parsed in the parser's own
+ * buffer, without copying it into a string first.
+ */
+public class Iso8601DateDeserializer extends JsonDeserializer<Date> {
+
+    @Override
+    public Date deserialize(JsonParser parser, DeserializationContext ctxt) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.VALUE_NUMBER_INT) {
+            return new Date(parser.getLongValue());
+        }
+        if (token != JsonToken.VALUE_STRING) {
+            throw ctxt.mappingException(Date.class, token);
+        }
+        int length = parser.getTextLength();
+        if (length == 0) {
+            return null;
+        }
+        try {
+            return new Date(Iso8601.parse(parser.getTextCharacters(), parser.getTextOffset(), length));
+        } catch (IllegalArgumentException e) {
+            throw ctxt.weirdStringException(Date.class, e.getMessage());
+        }
+    }
+}
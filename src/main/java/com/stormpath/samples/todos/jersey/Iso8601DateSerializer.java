@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.jersey;
+
+import com.stormpath.samples.todos.lang.Iso8601;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.JsonSerializer;
+import org.codehaus.jackson.map.SerializerProvider;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Writes dates as ISO-8601 UTC timestamps with millisecond precision, e.g. {@code 2012-11-05T13:15:30.123Z}.
+ * <p/>
+ * The digits are written from a per-thread buffer straight into the generator (see {@link Iso8601}), so no objects
+ * are allocated per date.  Dates outside of the years 0000 to 9999 are written as milliseconds since the epoch, which
+ * {@link Iso8601DateDeserializer} reads as well.
+ */
+public class Iso8601DateSerializer extends JsonSerializer<Date> {
+
+    private static final ThreadLocal<char[]> BUFFERS = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[Iso8601.LENGTH];
+        }
+    };
+
+    @Override
+    public void serialize(Date value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        long millis = value.getTime();
+        if (!Iso8601.isFormattable(millis)) {
+            gen.writeNumber(millis);
+            return;
+        }
+        char[] buf = BUFFERS.get();
+        gen.writeString(buf, 0, Iso8601.format(millis, buf, 0));
+    }
+}
@@ -15,32 +15,96 @@
  */
 package com.stormpath.samples.todos.jersey;
 
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.Version;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.map.SerializationConfig;
+import org.codehaus.jackson.map.module.SimpleModule;
 
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.ext.ContextResolver;
 import javax.ws.rs.ext.Provider;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.TimeZone;
 
+/**
+ * Provides the {@code ObjectMapper} for JSON representations.
+ * <p/>
+ * Output is compact, unless the request asks for indented output with a {@code pretty=true} query parameter or an
+ * {@code X-Pretty-Print: true} header.  Both mappers are configured once, so choosing one costs nothing per request.
+ */
 @Provider
 public class ObjectMapperProvider implements ContextResolver<ObjectMapper> {
 
+    public static final String PRETTY_PARAM = "pretty";
+    public static final String PRETTY_HEADER = "X-Pretty-Print";
+
     final ObjectMapper objectMapper;
+    final ObjectMapper prettyMapper;
+
+    //thread-local proxies for the current request, injected by Jersey:
+    @Context
+    private UriInfo info;
+
+    @Context
+    private HttpHeaders headers;
 
     public ObjectMapperProvider() {
-        this.objectMapper = new ObjectMapper();
-        this.objectMapper.configure(SerializationConfig.Feature.INDENT_OUTPUT, true);
+        this(createMapper(new JsonFactory()), createMapper(new JsonFactory()));
+        this.prettyMapper.configure(SerializationConfig.Feature.INDENT_OUTPUT, true);
+    }
+
+    /**
+     * @param objectMapper the mapper for compact output
+     * @param prettyMapper the mapper for pretty-printed output
+     */
+    protected ObjectMapperProvider(ObjectMapper objectMapper, ObjectMapper prettyMapper) {
+        this.objectMapper = objectMapper;
+        this.prettyMapper = prettyMapper;
+    }
 
-        //set up ISO 8601 date/time stamp format:
-        final DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:sss'Z'");
+    /**
+     * Creates a mapper that reads and writes the format of the specified factory.
+     */
+    protected static ObjectMapper createMapper(JsonFactory factory) {
+        ObjectMapper mapper = new ObjectMapper(factory);
+
+        //dates are (de)serialized as ISO 8601 date/time stamps without going through a DateFormat:
+        SimpleModule dates = new SimpleModule("iso8601", new Version(1, 0, 0, null));
+        dates.addSerializer(Date.class, new Iso8601DateSerializer());
+        dates.addDeserializer(Date.class, new Iso8601DateDeserializer());
+        mapper.registerModule(dates);
+
+        //the same format for anything else Jackson formats dates of (e.g. map keys):
+        final DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
         df.setTimeZone(TimeZone.getTimeZone("UTC"));
-        this.objectMapper.setDateFormat(df);
+        mapper.setDateFormat(df);
+        return mapper;
+    }
+
+    /**
+     * Returns {@code true} if either the value of the {@link #PRETTY_PARAM} query parameter or the one of the
+     * {@link #PRETTY_HEADER} header is {@code true}.
+     */
+    public static boolean isPretty(String param, String header) {
+        return "true".equalsIgnoreCase(param) || "true".equalsIgnoreCase(header);
+    }
+
+    public ObjectMapper getMapper(boolean pretty) {
+        return pretty ? this.prettyMapper : this.objectMapper;
     }
 
     @Override
     public ObjectMapper getContext(Class<?> type) {
-        return this.objectMapper;
+        //not injected if the provider is used outside of Jersey:
+        if (info == null || headers == null) {
+            return this.objectMapper;
+        }
+        return getMapper(isPretty(info.getQueryParameters().getFirst(PRETTY_PARAM),
+                headers.getRequestHeaders().getFirst(PRETTY_HEADER)));
     }
 }
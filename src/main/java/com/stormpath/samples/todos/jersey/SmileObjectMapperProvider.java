@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.jersey;
+
+import com.stormpath.samples.todos.http.MediaTypes;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
+import org.codehaus.jackson.smile.SmileGenerator;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Provides the {@code ObjectMapper} for {@link MediaTypes#APPLICATION_SMILE} representations: the same configuration
+ * as for JSON, but reading and writing Smile.  Binary output cannot be indented, so the same mapper is used whether
+ * pretty output is requested or not.
+ */
+@Provider
+@Produces(MediaTypes.APPLICATION_SMILE)
+public class SmileObjectMapperProvider extends ObjectMapperProvider {
+
+    public SmileObjectMapperProvider() {
+        this(createMapper(createFactory()));
+    }
+
+    private SmileObjectMapperProvider(ObjectMapper mapper) {
+        super(mapper, mapper);
+    }
+
+    private static SmileFactory createFactory() {
+        SmileFactory factory = new SmileFactory();
+        //short values that repeat within a document - most of all the href of a todo's user - are only written once:
+        factory.configure(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES, true);
+        return factory;
+    }
+}
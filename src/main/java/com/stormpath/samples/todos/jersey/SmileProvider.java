@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.jersey;
+
+import com.stormpath.samples.todos.http.MediaTypes;
+import org.codehaus.jackson.jaxrs.JacksonJsonProvider;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Reads and writes entities as Smile.
+ * <p/>
+ * Entities are (de)serialized exactly like JSON ones, only with the mapper resolved for
+ * {@link MediaTypes#APPLICATION_SMILE} (see {@link SmileObjectMapperProvider}), which is backed by a Smile parser and
+ * generator.
+ */
+@Provider
+@Consumes(MediaTypes.APPLICATION_SMILE)
+@Produces(MediaTypes.APPLICATION_SMILE)
+public class SmileProvider extends JacksonJsonProvider {
+
+    @Override
+    protected boolean isJsonType(MediaType mediaType) {
+        return mediaType != null && mediaType.isCompatible(MediaTypes.APPLICATION_SMILE_TYPE);
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.lang;
+
+/**
+ * Thread-safe ISO-8601 codec for UTC timestamps with millisecond precision, e.g. {@code 2012-11-05T13:15:30.123Z}.
+ * <p/>
+ * Unlike {@link java.text.SimpleDateFormat}, which cannot be shared between threads and allocates a calendar and
+ * buffers on every call, timestamps are converted with plain arithmetic and written into a caller-provided buffer.
+ * The text up to the seconds is cached per second, so that formatting many timestamps of the same few seconds - such
+ * as a page of todos ordered by creation date - mostly only writes the milliseconds.
+ * <p/>
+ * Only years {@code 0000} to {@code 9999} can be formatted; ISO-8601 requires an agreement between the parties for
+ * any others.
+ */
+public final class Iso8601 {
+
+    /**
+     * The length of a formatted timestamp: {@code yyyy-MM-ddTHH:mm:ss.SSSZ}.
+     */
+    public static final int LENGTH = 24;
+
+    public static final long MIN_MILLIS = daysFromCivil(0, 1, 1) * 86400000L;
+    public static final long MAX_MILLIS = daysFromCivil(10000, 1, 1) * 86400000L - 1;
+
+    //length of the cached text: yyyy-MM-ddTHH:mm:ss
+    private static final int SECOND_LENGTH = 19;
+
+    //direct-mapped by second, so the seconds of one page of todos rarely evict each other:
+    private static final int CACHE_SIZE = 1024;
+
+    /**
+     * The formatted text of a second.  Immutable, so it can be shared through the cache without synchronization.
+     */
+    private static final class Second {
+
+        final long second;
+        final char[] text;
+
+        Second(long second, char[] text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    private static final Second[] CACHE = new Second[CACHE_SIZE];
+
+    private Iso8601() {
+    }
+
+    /**
+     * Returns {@code true} if the specified time is in one of the years {@code 0000} to {@code 9999}.
+     */
+    public static boolean isFormattable(long millis) {
+        return millis >= MIN_MILLIS && millis <= MAX_MILLIS;
+    }
+
+    /**
+     * Writes the specified time as {@code yyyy-MM-ddTHH:mm:ss.SSSZ} into {@code buf}, starting at {@code offset}.
+     *
+     * @param millis the number of milliseconds since the epoch
+     * @param buf    the buffer to write the {@link #LENGTH} characters of the text to
+     * @param offset where to start writing in the buffer
+     * @return the number of characters written, always {@link #LENGTH}.
+     * @throws IllegalArgumentException if the time is not {@link #isFormattable(long) formattable}
+     */
+    public static int format(long millis, char[] buf, int offset) {
+        if (!isFormattable(millis)) {
+            throw new IllegalArgumentException("Only the years 0000 to 9999 can be formatted.");
+        }
+        long second = floorDiv(millis, 1000);
+        int index = (int) (second & (CACHE_SIZE - 1));
+        Second cached = CACHE[index];
+        if (cached == null || cached.second != second) {
+            cached = new Second(second, formatSecond(second));
+            CACHE[index] = cached;
+        }
+        System.arraycopy(cached.text, 0, buf, offset, SECOND_LENGTH);
+        int ms = (int) (millis - second * 1000);
+        buf[offset + 19] = '.';
+        buf[offset + 20] = (char) ('0' + ms / 100);
+        buf[offset + 21] = (char) ('0' + ms / 10 % 10);
+        buf[offset + 22] = (char) ('0' + ms % 10);
+        buf[offset + 23] = 'Z';
+        return LENGTH;
+    }
+
+    /**
+     * Returns the specified time as {@code yyyy-MM-ddTHH:mm:ss.SSSZ}.
+     *
+     * @throws IllegalArgumentException if the time is not {@link #isFormattable(long) formattable}
+     */
+    public static String format(long millis) {
+        char[] buf = new char[LENGTH];
+        format(millis, buf, 0);
+        return new String(buf);
+    }
+
+    private static char[] formatSecond(long second) {
+        long days = floorDiv(second, 86400);
+        int secondOfDay = (int) (second - days * 86400);
+
+        //civil date from days since the epoch, see http://howardhinnant.github.io/date_algorithms.html:
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        int doe = (int) (z - era * 146097);
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int day = doy - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = (int) (yoe + era * 400) + (month <= 2 ? 1 : 0);
+
+        char[] text = new char[SECOND_LENGTH];
+        writeDigits(text, 0, year, 4);
+        text[4] = '-';
+        writeDigits(text, 5, month, 2);
+        text[7] = '-';
+        writeDigits(text, 8, day, 2);
+        text[10] = 'T';
+        writeDigits(text, 11, secondOfDay / 3600, 2);
+        text[13] = ':';
+        writeDigits(text, 14, secondOfDay / 60 % 60, 2);
+        text[16] = ':';
+        writeDigits(text, 17, secondOfDay % 60, 2);
+        return text;
+    }
+
+    private static void writeDigits(char[] buf, int offset, int value, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            buf[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * Parses an ISO-8601 UTC date or date-time: {@code yyyy-MM-dd}, {@code yyyy-MM-ddTHH:mmZ},
+     * {@code yyyy-MM-ddTHH:mm:ssZ} or {@code yyyy-MM-ddTHH:mm:ss.SSSZ}, where the fraction of the second may have one
+     * to nine digits (anything beyond milliseconds is truncated).
+     *
+     * @return the number of milliseconds since the epoch.
+     * @throws IllegalArgumentException if the text is not in one of these formats or not a valid date and time
+     */
+    public static long parse(char[] text, int offset, int length) {
+        int end = offset + length;
+        if (length < 10 || text[offset + 4] != '-' || text[offset + 7] != '-') {
+            throw invalid(text, offset, length);
+        }
+        int year = parseDigits(text, offset, 4);
+        int month = parseDigits(text, offset + 5, 2);
+        int day = parseDigits(text, offset + 8, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+            throw invalid(text, offset, length);
+        }
+        long millis = daysFromCivil(year, month, day) * 86400000L;
+        if (length == 10) {
+            return millis;
+        }
+
+        //THH:mmZ at least:
+        int i = offset + 10;
+        if (length < 17 || text[i] != 'T' || text[i + 3] != ':' || text[end - 1] != 'Z') {
+            throw invalid(text, offset, length);
+        }
+        int hour = parseDigits(text, i + 1, 2);
+        int minute = parseDigits(text, i + 4, 2);
+        int second = 0;
+        int ms = 0;
+        i += 6;
+        if (i < end - 1) {
+            if (text[i] != ':' || i + 3 > end - 1) {
+                throw invalid(text, offset, length);
+            }
+            second = parseDigits(text, i + 1, 2);
+            i += 3;
+            if (i < end - 1) {
+                int digits = end - 1 - (i + 1);
+                if (text[i] != '.' || digits < 1 || digits > 9) {
+                    throw invalid(text, offset, length);
+                }
+                int fraction = parseDigits(text, i + 1, digits);
+                if (fraction < 0) {
+                    throw invalid(text, offset, length);
+                }
+                for (; digits < 3; digits++) {
+                    fraction *= 10;
+                }
+                for (; digits > 3; digits--) {
+                    fraction /= 10;
+                }
+                ms = fraction;
+            }
+        }
+        if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            throw invalid(text, offset, length);
+        }
+        return millis + hour * 3600000L + minute * 60000L + second * 1000L + ms;
+    }
+
+    /**
+     * Parses an ISO-8601 UTC date or date-time, see {@link #parse(char[], int, int)}.
+     */
+    public static long parse(String text) {
+        return parse(text.toCharArray(), 0, text.length());
+    }
+
+    //returns -1 if there is a non-digit:
+    private static int parseDigits(char[] text, int offset, int digits) {
+        int value = 0;
+        for (int i = offset; i < offset + digits; i++) {
+            char c = text[i];
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static IllegalArgumentException invalid(char[] text, int offset, int length) {
+        return new IllegalArgumentException("'" + new String(text, offset, length) + "' is not an ISO-8601 UTC date " +
+                "or date-time.");
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    //days since the epoch of a civil date, see http://howardhinnant.github.io/date_algorithms.html:
+    private static long daysFromCivil(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        int yoe = (int) (y - era * 400);
+        int doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && ((x ^ y) < 0)) ? q - 1 : q;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.service;
+
+/**
+ * Notified when the todos of a {@link TodoService} change.
+ * <p/>
+ * Listeners are called synchronously by the thread making the change, while the change is being applied, so they must
+ * return quickly and must not call back into the service.  Typically a listener only records that there is something
+ * new and lets another thread ask the service for the {@link TodoService#getChangesSince(long) changes}.
+ */
+public interface ChangeListener {
+
+    /**
+     * Called after the change with sequence number {@code seq} has been made.
+     *
+     * @param seq     the sequence number of the change
+     * @param todoId  the id of the todo that was changed
+     * @param deleted whether the todo was deleted
+     */
+    void changed(long seq, String todoId, boolean deleted);
+}
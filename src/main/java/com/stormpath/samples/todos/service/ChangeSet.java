@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.service;
+
+import com.stormpath.samples.todos.entity.Todo;
+
+import java.util.List;
+
+/**
+ * The todos that changed between two points of a {@link TodoService}'s change sequence.  A todo that changed more than
+ * once is only included once, in its latest state.
+ */
+public class ChangeSet {
+
+    private final long since;
+    private final long seq;
+    private final List<Todo> changed;
+    private final List<String> deletedIds;
+
+    public ChangeSet(long since, long seq, List<Todo> changed, List<String> deletedIds) {
+        this.since = since;
+        this.seq = seq;
+        this.changed = changed;
+        this.deletedIds = deletedIds;
+    }
+
+    /**
+     * Returns the sequence number this change set starts after.
+     */
+    public long getSince() {
+        return since;
+    }
+
+    /**
+     * Returns the sequence number of the last change included in this change set, which is the value to ask for the
+     * next changes with.
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * Returns the todos that were created or updated and not deleted afterwards, oldest change first.
+     */
+    public List<Todo> getChanged() {
+        return changed;
+    }
+
+    /**
+     * Returns the ids of the todos that were deleted, oldest change first.
+     */
+    public List<String> getDeletedIds() {
+        return deletedIds;
+    }
+}
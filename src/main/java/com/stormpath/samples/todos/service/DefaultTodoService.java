@@ -17,25 +17,179 @@ package com.stormpath.samples.todos.service;
 
 import com.stormpath.samples.todos.entity.Todo;
 import com.stormpath.samples.todos.entity.User;
+import com.stormpath.samples.todos.lang.ClassUtils;
+import com.stormpath.samples.todos.lang.StringUtils;
+import com.stormpath.samples.todos.store.ChangeLog;
+import com.stormpath.samples.todos.store.Durability;
+import com.stormpath.samples.todos.store.OffHeapTodoTable;
+import com.stormpath.samples.todos.store.SnapshotStore;
+import com.stormpath.samples.todos.store.TodoCodec;
+import com.stormpath.samples.todos.store.TodoIds;
+import com.stormpath.samples.todos.store.TodoRecord;
+import com.stormpath.samples.todos.store.TodoStore;
+import com.stormpath.samples.todos.store.TodoTable;
+import com.stormpath.samples.todos.store.WriteAheadLog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * In-memory {@link TodoService}, optionally made durable by a {@link WriteAheadLog} and periodic
+ * {@link SnapshotStore snapshots}.
+ * <p/>
+ * The singleton returned by {@link #getInstance()} is configured from system properties:
+ * <ul>
+ * <li>{@code todos.idGenerator} - fully qualified class name of the {@link IdGenerator} used for new todos (default
+ * {@link TimeOrderedIdGenerator}).</li>
+ * <li>{@code todos.changes.capacity} - number of recent changes remembered for {@link #getChangesSince(long)}
+ * (default 65536).</li>
+ * <li>{@code todos.wal.dir} - directory of the write-ahead log.  If not set, todos are only kept in memory.</li>
+ * <li>{@code todos.wal.durability} - {@code sync} (default), {@code periodic} or {@code async}.  See
+ * {@link Durability}.</li>
+ * <li>{@code todos.wal.syncInterval} - milliseconds between forces in {@code periodic} mode (default 10).</li>
+ * <li>{@code todos.snapshot.interval} - seconds between background snapshots of the store, which are written to the
+ * log directory and allow older log segments to be deleted (default 300, {@code 0} disables snapshots).</li>
+ * <li>{@code todos.cursor.lease} - seconds a version of the store stays readable after the last page read from it,
+ * so that the next pages of a listing are read from the same version (default 10).</li>
+ * <li>{@code todos.store} - {@code heap} (default) to keep the todos in a {@link TodoTable}, or {@code offheap} to
+ * keep them serialized outside of the Java heap in an {@link OffHeapTodoTable}, which spares the garbage collector
+ * from tracing them.</li>
+ * <li>{@code todos.offheap.slabSize} - megabytes of direct memory the off-heap store allocates at a time, a power of
+ * two (default 64).  The total is limited by {@code -XX:MaxDirectMemorySize}.</li>
+ * </ul>
+ * <p/>
+ * Every page of todos is read from a snapshot of the store, and its cursor names the snapshot's version along with
+ * the position of the page's last todo.  A page that has a next page leases its version, and the next page is read
+ * from the same version for as long as the lease lasts, so a client paging through the todos sees each of them
+ * exactly once and as of one point in time, whatever is changed in the meantime.  Pages that leave a cursor for the
+ * same version share a single lease.
+ */
 public class DefaultTodoService implements TodoService {
 
+    public static final String ID_GENERATOR_PROPERTY = "todos.idGenerator";
+    public static final String CHANGES_CAPACITY_PROPERTY = "todos.changes.capacity";
+    public static final String WAL_DIR_PROPERTY = "todos.wal.dir";
+    public static final String WAL_DURABILITY_PROPERTY = "todos.wal.durability";
+    public static final String WAL_SYNC_INTERVAL_PROPERTY = "todos.wal.syncInterval";
+    public static final String SNAPSHOT_INTERVAL_PROPERTY = "todos.snapshot.interval";
+    public static final String CURSOR_LEASE_PROPERTY = "todos.cursor.lease";
+    public static final String STORE_PROPERTY = "todos.store";
+    public static final String OFF_HEAP_SLAB_SIZE_PROPERTY = "todos.offheap.slabSize";
+
+    public static final long DEFAULT_SNAPSHOT_INTERVAL = 300; //seconds
+    public static final long DEFAULT_CURSOR_LEASE = 10; //seconds
+    public static final int DEFAULT_OFF_HEAP_SLAB_SIZE = 64; //megabytes
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    private static final int LOCK_STRIPES = 64;
+
+    //failed compare-and-sets after which an update holds the lock of its todo, so that it cannot be starved:
+    private static final int OPTIMISTIC_ATTEMPTS = 8;
+
+    //the version of a page that is read from the latest version of the store:
+    private static final long LATEST = Long.MAX_VALUE;
+
+    private static final Logger log = LoggerFactory.getLogger(DefaultTodoService.class);
+
     //ordinarily this would be a DAO used to interact with a data store (e.g. database or NoSQL store).
-    Map<String,Todo> todos = new ConcurrentHashMap<String, Todo>();
+    //compact records in creation order, so pages can be found without materializing the whole store.  Versions start
+    //at the current time in microseconds, so that a version (or change sequence number) handed out before a restart is
+    //older than any issued after it - it can never match a different state of a todo, and it forces a resync:
+    final TodoStore todos;
 
     //ordinarily DependencyInjection would be used.  This simple example just uses a static singleton:
-    private static final DefaultTodoService INSTANCE = new DefaultTodoService();
+    private static final DefaultTodoService INSTANCE = createInstance();
 
     //simulate a single User for the demo:
     private final User user;
 
+    private volatile IdGenerator idGenerator = new TimeOrderedIdGenerator();
+
+    //null if the service is memory-only:
+    private final WriteAheadLog wal;
+
+    //null if snapshots are disabled:
+    private final SnapshotStore snapshots;
+
+    //the most recent changes, for delta sync:
+    private final ChangeLog changes;
+    private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<ChangeListener>();
+
+    //keeps the log order of mutations to the same todo identical to the order they are applied in memory, and makes
+    //version checks atomic with the mutation they guard:
+    private final Object[] locks;
+
+    //guarded by 'this':
+    private long lastSnapshotLsn;
+
+    //snapshots keeping the versions of page cursors readable, by version:
+    private final ConcurrentMap<Long, Lease> leases = new ConcurrentHashMap<Long, Lease>();
+    private final AtomicLong nextExpiry = new AtomicLong();
+    private volatile long leaseMillis = TimeUnit.SECONDS.toMillis(DEFAULT_CURSOR_LEASE);
+
+    //contention of update(id, mutator):
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong maxRetries = new AtomicLong();
+    private final AtomicLong lockedUpdates = new AtomicLong();
+
     public DefaultTodoService() {
+        this(null, null);
+    }
+
+    public DefaultTodoService(WriteAheadLog wal) {
+        this(wal, null);
+    }
+
+    public DefaultTodoService(WriteAheadLog wal, SnapshotStore snapshots) {
+        this(wal, snapshots, ChangeLog.DEFAULT_CAPACITY);
+    }
+
+    public DefaultTodoService(WriteAheadLog wal, SnapshotStore snapshots, int changesCapacity) {
+        this(new TodoTable(System.currentTimeMillis() * 1000), wal, snapshots, changesCapacity);
+    }
+
+    /**
+     * @param todos           the empty store to keep the todos in.  Its initial version should be the current time
+     *                        in microseconds, so that the versions issued before a restart are older than any issued
+     *                        after it
+     * @param wal             the write-ahead log to recover the todos from and to log every change to, or
+     *                        {@code null} to keep the todos in memory only
+     * @param snapshots       the snapshots of the store to recover from and to write, or {@code null}
+     * @param changesCapacity the number of recent changes remembered for {@link #getChangesSince(long)}
+     */
+    public DefaultTodoService(TodoStore todos, WriteAheadLog wal, SnapshotStore snapshots, int changesCapacity) {
+        if (snapshots != null && wal == null) {
+            throw new IllegalArgumentException("Snapshots require a write-ahead log.");
+        }
         //simulate a single User for this demo:
         User user = new User();
         user.setId(UUID.randomUUID().toString().replace("-", ""));
@@ -43,36 +197,818 @@ public class DefaultTodoService implements TodoService {
         user.setGivenName("John");
         user.setSurname("Smith");
         this.user = user;
+
+        this.todos = todos;
+        this.locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+
+        this.wal = wal;
+        this.snapshots = snapshots;
+        if (wal != null) {
+            try {
+                if (snapshots != null) {
+                    lastSnapshotLsn = snapshots.load(new SnapshotStore.RecordHandler() {
+                        @Override
+                        public void handle(TodoRecord record) {
+                            DefaultTodoService.this.todos.put(record);
+                        }
+                    });
+                }
+                wal.open(lastSnapshotLsn, new WriteAheadLog.RecordHandler() {
+                    @Override
+                    public void handle(long lsn, byte type, DataInputStream payload) throws IOException {
+                        replay(type, payload);
+                    }
+                });
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to recover todos from the write-ahead log.", e);
+            }
+        }
+
+        //recovered todos are not changes:
+        this.changes = todos.recordChanges(changesCapacity);
+        changes.setListener(new ChangeLog.Listener() {
+            @Override
+            public void appended(ChangeLog.Change change) {
+                if (changeListeners.isEmpty()) {
+                    return;
+                }
+                String id = change.getRecord().getId();
+                for (ChangeListener listener : changeListeners) {
+                    listener.changed(change.getSeq(), id, change.isDeleted());
+                }
+            }
+        });
+    }
+
+    private static DefaultTodoService createInstance() {
+        DefaultTodoService service = createService();
+        String idGenerator = System.getProperty(ID_GENERATOR_PROPERTY);
+        if (StringUtils.hasText(idGenerator)) {
+            service.setIdGenerator((IdGenerator) ClassUtils.newInstance(idGenerator));
+        }
+        service.setCursorLease(Long.getLong(CURSOR_LEASE_PROPERTY, DEFAULT_CURSOR_LEASE), TimeUnit.SECONDS);
+        return service;
+    }
+
+    private static DefaultTodoService createService() {
+        int changesCapacity = Integer.getInteger(CHANGES_CAPACITY_PROPERTY, ChangeLog.DEFAULT_CAPACITY);
+        String dir = System.getProperty(WAL_DIR_PROPERTY);
+        if (!StringUtils.hasText(dir)) {
+            return new DefaultTodoService(createStore(), null, null, changesCapacity);
+        }
+        long start = System.currentTimeMillis();
+
+        Durability durability = Durability.fromString(System.getProperty(WAL_DURABILITY_PROPERTY, "sync"));
+        long syncInterval = Long.getLong(WAL_SYNC_INTERVAL_PROPERTY, WriteAheadLog.DEFAULT_SYNC_INTERVAL);
+        long snapshotInterval = Long.getLong(SNAPSHOT_INTERVAL_PROPERTY, DEFAULT_SNAPSHOT_INTERVAL);
+
+        final WriteAheadLog wal = new WriteAheadLog(new File(dir), durability, syncInterval,
+                WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+        SnapshotStore snapshots = snapshotInterval > 0 ? new SnapshotStore(new File(dir)) : null;
+        final DefaultTodoService service = new DefaultTodoService(createStore(), wal, snapshots, changesCapacity);
+
+        long now = System.currentTimeMillis();
+        log.info("Recovered {} todos from {} with {} durability in {} ms ({} ms after JVM start).",
+                new Object[]{service.todos.size(), dir, durability, now - start,
+                        now - ManagementFactory.getRuntimeMXBean().getStartTime()});
+
+        if (snapshots != null) {
+            ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "todos-snapshot");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+            snapshotter.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        service.snapshot();
+                    } catch (Exception e) {
+                        log.error("Unable to write todo snapshot.", e);
+                    }
+                }
+            }, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread("wal-shutdown") {
+            @Override
+            public void run() {
+                try {
+                    wal.close();
+                } catch (IOException e) {
+                    log.error("Unable to close write-ahead log.", e);
+                }
+            }
+        });
+        return service;
+    }
+
+    private static TodoStore createStore() {
+        long version = System.currentTimeMillis() * 1000;
+        String store = System.getProperty(STORE_PROPERTY, "heap");
+        if ("offheap".equalsIgnoreCase(store)) {
+            int slabSize = Integer.getInteger(OFF_HEAP_SLAB_SIZE_PROPERTY, DEFAULT_OFF_HEAP_SLAB_SIZE);
+            return new OffHeapTodoTable(version, slabSize * 1024 * 1024);
+        }
+        if (!"heap".equalsIgnoreCase(store)) {
+            throw new IllegalArgumentException("Unknown todo store '" + store + "'.  Expected 'heap' or 'offheap'.");
+        }
+        return new TodoTable(version);
+    }
+
+    /**
+     * Writes a snapshot of the store and deletes the log segments and snapshots it makes obsolete.  Writers are only
+     * paused for the instant it takes to agree on the snapshot's LSN; the store itself is written while they
+     * continue.
+     *
+     * @throws IOException if the snapshot cannot be written
+     */
+    public synchronized void snapshot() throws IOException {
+        if (snapshots == null) {
+            throw new IllegalStateException("Snapshots are not enabled for this service.");
+        }
+        long lsn = getQuiescentLsn(0);
+        if (lsn == lastSnapshotLsn) {
+            return;
+        }
+        snapshots.write(lsn, todos.iterator());
+        lastSnapshotLsn = lsn;
+        wal.deleteSegmentsBefore(lsn);
+        snapshots.deleteBefore(lsn);
+    }
+
+    //Returns the last LSN while holding every lock stripe.  Records are appended and applied under a stripe lock, so
+    //at this point every record up to the returned LSN is visible in the map and a snapshot started afterwards cannot
+    //miss one of them.
+    private long getQuiescentLsn(int stripe) {
+        if (stripe == locks.length) {
+            return wal.getLastLsn();
+        }
+        synchronized (locks[stripe]) {
+            return getQuiescentLsn(stripe + 1);
+        }
+    }
+
+    private void replay(byte type, DataInputStream payload) throws IOException {
+        if (type == PUT) {
+            todos.put(TodoCodec.readRecord(payload));
+        } else if (type == DELETE) {
+            todos.remove(payload.readLong(), payload.readLong());
+        } else {
+            throw new IOException("Unknown write-ahead log record type " + type);
+        }
     }
 
     @Override
     public Collection<Todo> getTodos() {
-        return todos.values();
+        //materialized lazily, one todo at a time:
+        return new AbstractCollection<Todo>() {
+            @Override
+            public Iterator<Todo> iterator() {
+                final Iterator<TodoRecord> i = todos.iterator();
+                return new Iterator<Todo>() {
+                    @Override
+                    public boolean hasNext() {
+                        return i.hasNext();
+                    }
+
+                    @Override
+                    public Todo next() {
+                        return toTodo(i.next());
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return todos.size();
+            }
+        };
+    }
+
+    @Override
+    public PagedIterator<Todo> iterateTodos(TodoFilter filter, int offset, int limit) {
+        if (filter == null) {
+            throw new IllegalArgumentException("Filter argument cannot be null.");
+        }
+        TodoStore.Snapshot snapshot = pin(LATEST);
+        Iterator<TodoRecord> i;
+        if (filter.isCreatedRange()) {
+            i = filterDone(snapshot.iteratorCreated(createdAfter(filter), createdBefore(filter)), filter.getDone());
+        } else if (filter.getDone() != null) {
+            i = snapshot.iterator(filter.getDone());
+        } else {
+            i = snapshot.iterator();
+        }
+        for (int skipped = 0; skipped < offset && i.hasNext(); skipped++) {
+            i.next();
+        }
+        return new RecordPageIterator(snapshot, i, limit, filter.isCreatedRange());
+    }
+
+    @Override
+    public PagedIterator<Todo> iterateTodosAfter(TodoFilter filter, String cursor, int limit) {
+        if (filter == null) {
+            throw new IllegalArgumentException("Filter argument cannot be null.");
+        }
+        if (cursor == null) {
+            throw new IllegalArgumentException("Cursor argument cannot be null.");
+        }
+        //the cursor is the version the previous page was read from and the sequence number of its last todo, prefixed
+        //with its creation time if the todos are ordered by creation time.  Cursors issued before pages were read from
+        //snapshots have no version and continue from the latest one:
+        long version = LATEST;
+        int position = cursor.indexOf('_');
+        if (position >= 0) {
+            version = parseCursorPart(cursor, cursor.substring(0, position));
+            if (version > todos.getVersion()) {
+                throw new IllegalArgumentException("Invalid cursor '" + cursor + "'.");
+            }
+        }
+        String[] parts = cursor.substring(position + 1).split("\\.", -1);
+        if (parts.length != (filter.isCreatedRange() ? 2 : 1)) {
+            throw new IllegalArgumentException("Invalid cursor '" + cursor + "'.");
+        }
+        long seq = parseCursorPart(cursor, parts[parts.length - 1]);
+        TodoStore.Snapshot snapshot = pin(version);
+        if (!filter.isCreatedRange()) {
+            Iterator<TodoRecord> i = filter.getDone() != null ?
+                    snapshot.iteratorAfter(seq, filter.getDone()) : snapshot.iteratorAfter(seq);
+            return new RecordPageIterator(snapshot, i, limit, false);
+        }
+        long created = parseCursorPart(cursor, parts[0]);
+        long createdAfter = createdAfter(filter);
+        if (created < createdAfter) {
+            created = createdAfter;
+            seq = Long.MAX_VALUE;
+        }
+        Iterator<TodoRecord> i = snapshot.iteratorCreated(created, seq, createdBefore(filter));
+        return new RecordPageIterator(snapshot, filterDone(i, filter.getDone()), limit, true);
+    }
+
+    @Override
+    public int countTodos(TodoFilter filter) {
+        if (filter == null) {
+            throw new IllegalArgumentException("Filter argument cannot be null.");
+        }
+        if (!filter.isCreatedRange()) {
+            TodoStore.Counts counts = todos.counts();
+            if (filter.getDone() == null) {
+                return counts.getSize();
+            }
+            return filter.getDone() ? counts.getDone() : counts.getOpen();
+        }
+        return todos.count(filter.getDone(), createdAfter(filter), createdBefore(filter));
+    }
+
+    @Override
+    public TodoStats getStats() {
+        TodoStore.Counts counts = todos.counts();
+        //every todo in this demo belongs to the simulated user:
+        Map<String, Integer> byUser = Collections.singletonMap(getCurrentUser().getId(), counts.getSize());
+        SortedMap<Date, Integer> perDay = new TreeMap<Date, Integer>();
+        for (Map.Entry<Long, Integer> entry : todos.createdPerDay().entrySet()) {
+            perDay.put(new Date(entry.getKey() * TimeUnit.DAYS.toMillis(1)), entry.getValue());
+        }
+        return new TodoStats(counts.getSize(), counts.getDone(), byUser, perDay);
+    }
+
+    @Override
+    public long getChangeSeq() {
+        return changes.getLastSeq();
+    }
+
+    @Override
+    public Date getLastModified() {
+        return new Date(todos.getLastModified());
+    }
+
+    @Override
+    public ChangeSet getChangesSince(long seq) throws ResyncRequiredException {
+        List<ChangeLog.Change> log = changes.since(seq);
+        if (log == null) {
+            throw new ResyncRequiredException("The changes since " + seq + " are no longer available.  Reload " +
+                    "the todos and ask for the changes since the sequence number returned with them.");
+        }
+        //the latest change of a todo wins, so walk backwards and skip todos that have already been seen:
+        List<Todo> changed = new ArrayList<Todo>();
+        List<String> deletedIds = new ArrayList<String>();
+        Set<UUID> seen = new HashSet<UUID>();
+        for (int i = log.size() - 1; i >= 0; i--) {
+            TodoRecord record = log.get(i).getRecord();
+            if (seen.add(new UUID(record.getIdHigh(), record.getIdLow()))) {
+                if (log.get(i).isDeleted()) {
+                    deletedIds.add(record.getId());
+                } else {
+                    changed.add(toTodo(record));
+                }
+            }
+        }
+        Collections.reverse(changed);
+        Collections.reverse(deletedIds);
+        long last = log.isEmpty() ? seq : log.get(log.size() - 1).getSeq();
+        return new ChangeSet(seq, last, changed, deletedIds);
+    }
+
+    @Override
+    public TodoSnapshot openSnapshot() {
+        TodoStore.Snapshot pinned = null;
+        long modified = 0;
+        while (pinned == null) {
+            //the time of a version is only known while it is the latest one:
+            long version = todos.getVersion();
+            modified = todos.getLastModified();
+            if (todos.getVersion() == version) {
+                pinned = todos.snapshot(version);
+            }
+        }
+        final TodoStore.Snapshot snapshot = pinned;
+        final long lastModified = modified;
+        return new TodoSnapshot() {
+            @Override
+            public long getSeq() {
+                return snapshot.getVersion();
+            }
+
+            @Override
+            public Date getLastModified() {
+                return new Date(lastModified);
+            }
+
+            @Override
+            public Iterator<Todo> iterator() {
+                final Iterator<TodoRecord> i = snapshot.iterator();
+                return new Iterator<Todo>() {
+                    @Override
+                    public boolean hasNext() {
+                        return i.hasNext();
+                    }
+
+                    @Override
+                    public Todo next() {
+                        return toTodo(i.next());
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public void close() {
+                snapshot.close();
+            }
+        };
+    }
+
+    @Override
+    public void addChangeListener(ChangeListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("ChangeListener argument cannot be null.");
+        }
+        changeListeners.add(listener);
+    }
+
+    @Override
+    public void removeChangeListener(ChangeListener listener) {
+        changeListeners.remove(listener);
+    }
+
+    /**
+     * Sets how long a version of the store stays readable by the next pages after a page has been read from it.
+     * Longer leases let slower clients page through a consistent listing, at the cost of keeping the old versions of
+     * the todos changed in the meantime in memory.
+     */
+    public void setCursorLease(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("Cursor lease cannot be negative.");
+        }
+        this.leaseMillis = unit.toMillis(duration);
+    }
+
+    //a snapshot of the specified version, or of the latest version if that is LATEST or has already been reclaimed:
+    private TodoStore.Snapshot pin(long version) {
+        expireLeases();
+        TodoStore.Snapshot snapshot = version != LATEST ? todos.snapshot(version) : null;
+        return snapshot != null ? snapshot : todos.snapshot();
+    }
+
+    //keeps the version of a snapshot readable until the lease expires, for the page after the one read from it:
+    private void lease(TodoStore.Snapshot snapshot) {
+        if (leaseMillis == 0) {
+            return;
+        }
+        long version = snapshot.getVersion();
+        long expiry = System.currentTimeMillis() + leaseMillis;
+        for (;;) {
+            Lease lease = leases.get(version);
+            if (lease != null && lease.renew(expiry)) {
+                return;
+            }
+            //the version cannot have been reclaimed, because the snapshot is still open:
+            Lease created = new Lease(todos.snapshot(version), expiry);
+            if (lease == null ? leases.putIfAbsent(version, created) == null :
+                    leases.replace(version, lease, created)) {
+                return;
+            }
+            created.snapshot.close();
+        }
+    }
+
+    //closes the snapshots whose lease has expired, at most once per second:
+    private void expireLeases() {
+        long now = System.currentTimeMillis();
+        long next = nextExpiry.get();
+        if (now < next || !nextExpiry.compareAndSet(next, now + 1000)) {
+            return;
+        }
+        for (Lease lease : leases.values()) {
+            if (lease.expire(now)) {
+                leases.remove(lease.snapshot.getVersion(), lease);
+                lease.snapshot.close();
+            }
+        }
+    }
+
+    private static final class Lease {
+
+        private static final long EXPIRED = -1;
+
+        final TodoStore.Snapshot snapshot;
+        private final AtomicLong expiry;
+
+        Lease(TodoStore.Snapshot snapshot, long expiry) {
+            this.snapshot = snapshot;
+            this.expiry = new AtomicLong(expiry);
+        }
+
+        //returns false if the lease has already expired:
+        boolean renew(long until) {
+            for (;;) {
+                long current = expiry.get();
+                if (current == EXPIRED) {
+                    return false;
+                }
+                if (current >= until || expiry.compareAndSet(current, until)) {
+                    return true;
+                }
+            }
+        }
+
+        //returns true if the lease expired with this call:
+        boolean expire(long now) {
+            long current = expiry.get();
+            return current != EXPIRED && current < now && expiry.compareAndSet(current, EXPIRED);
+        }
+    }
+
+    private static long parseCursorPart(String cursor, String part) {
+        try {
+            return Long.parseLong(part, Character.MAX_RADIX);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor '" + cursor + "'.");
+        }
+    }
+
+    private static long createdAfter(TodoFilter filter) {
+        return filter.getCreatedAfter() != null ? filter.getCreatedAfter().getTime() : Long.MIN_VALUE;
+    }
+
+    private static long createdBefore(TodoFilter filter) {
+        return filter.getCreatedBefore() != null ? filter.getCreatedBefore().getTime() : Long.MAX_VALUE;
+    }
+
+    //when both criteria are given the creation time range drives the query and the done flag is checked per record:
+    private static Iterator<TodoRecord> filterDone(final Iterator<TodoRecord> records, final Boolean done) {
+        if (done == null) {
+            return records;
+        }
+        return new Iterator<TodoRecord>() {
+
+            private TodoRecord next = advance();
+
+            private TodoRecord advance() {
+                while (records.hasNext()) {
+                    TodoRecord record = records.next();
+                    if (record.isDone() == done) {
+                        return record;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public TodoRecord next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                TodoRecord record = next;
+                next = advance();
+                return record;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private class RecordPageIterator implements PagedIterator<Todo> {
+
+        private final TodoStore.Snapshot snapshot;
+        private final Iterator<TodoRecord> records;
+        private final int limit;
+        private final boolean createdOrder;
+        private int count;
+        private TodoRecord last;
+        private boolean more; //whether there is a next page, once the snapshot has been released
+
+        RecordPageIterator(TodoStore.Snapshot snapshot, Iterator<TodoRecord> records, int limit,
+                           boolean createdOrder) {
+            this.snapshot = snapshot;
+            this.records = records;
+            this.limit = limit;
+            this.createdOrder = createdOrder;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (snapshot.isClosed()) {
+                return false;
+            }
+            if (count < limit && records.hasNext()) {
+                return true;
+            }
+            more = count == limit && records.hasNext();
+            if (more) {
+                lease(snapshot);
+            }
+            snapshot.close();
+            return false;
+        }
+
+        @Override
+        public Todo next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = records.next();
+            count++;
+            return toTodo(last);
+        }
+
+        @Override
+        public String getNextCursor() {
+            if (!snapshot.isClosed()) {
+                hasNext();
+            }
+            if (last == null || !more) {
+                return null;
+            }
+            String cursor = Long.toString(last.getSeq(), Character.MAX_RADIX);
+            if (createdOrder) {
+                cursor = Long.toString(last.getCreated(), Character.MAX_RADIX) + '.' + cursor;
+            }
+            return Long.toString(snapshot.getVersion(), Character.MAX_RADIX) + '_' + cursor;
+        }
+
+        @Override
+        public long getSeq() {
+            return snapshot.getVersion();
+        }
+
+        @Override
+        public void close() {
+            snapshot.close();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
 
     @Override
     public Todo getById(String id) {
-        return todos.get(id);
+        if (!TodoIds.isValid(id)) {
+            return null;
+        }
+        TodoRecord record = todos.get(TodoIds.high(id), TodoIds.low(id));
+        return record != null ? toTodo(record) : null;
     }
 
     @Override
     public Todo save(Todo todo) {
+        return save(todo, ANY_VERSION);
+    }
+
+    @Override
+    public Todo save(Todo todo, long expectedVersion) throws VersionConflictException {
+        TodoRecord record;
         String id = todo.getId();
         if (id == null) {
             //create:
-            id = UUID.randomUUID().toString().replace("-","");
-            todo.setId(id);
+            UUID uuid = idGenerator.generate();
+            long created = System.currentTimeMillis();
+            record = new TodoRecord(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), created,
+                    todo.getName(), todo.isDone());
 
+            if (expectedVersion != ANY_VERSION) {
+                throw new IllegalArgumentException("Only existing todos can be saved conditionally.");
+            }
+            todo.setId(record.getId());
             //set creation date:
-            todo.setCreated(new Date());
-            todos.put(id, todo);
-
+            todo.setCreated(new Date(created));
             todo.setUser(getCurrentUser());
         } else {
             //update:
-            todos.put(id, todo);
+            if (!TodoIds.isValid(id)) {
+                throw new IllegalArgumentException("Invalid todo id '" + id + "'.");
+            }
+            Date created = todo.getCreated();
+            record = new TodoRecord(TodoIds.high(id), TodoIds.low(id),
+                    created != null ? created.getTime() : System.currentTimeMillis(), todo.getName(), todo.isDone());
         }
 
+        expireLeases();
+        long lsn = 0;
+        long version;
+        long modified;
+        synchronized (lockFor(record.getIdHigh(), record.getIdLow())) {
+            checkVersion(record.getIdHigh(), record.getIdLow(), expectedVersion);
+            if (wal != null) {
+                lsn = append(PUT, TodoCodec.toBytes(record));
+            }
+            TodoRecord stored = todos.put(record);
+            version = stored.getVersion();
+            modified = stored.getModified();
+        }
+        if (wal != null) {
+            //wait for durability outside of the lock so concurrent writers can share the same fsync:
+            sync(lsn);
+        }
+
+        todo.setVersion(version);
+        todo.setModified(new Date(modified));
+        return todo;
+    }
+
+    @Override
+    public Todo update(String id, TodoMutator mutator) {
+        if (mutator == null) {
+            throw new IllegalArgumentException("TodoMutator argument cannot be null.");
+        }
+        if (!TodoIds.isValid(id)) {
+            return null;
+        }
+        long high = TodoIds.high(id);
+        long low = TodoIds.low(id);
+
+        expireLeases();
+        for (int attempt = 0; ; attempt++) {
+            TodoRecord current = todos.get(high, low);
+            if (current == null) {
+                return null;
+            }
+            //the mutator runs without any lock held, on a copy nobody else can see:
+            Todo todo = toTodo(current);
+            mutator.mutate(todo);
+            TodoRecord record = new TodoRecord(high, low, current.getCreated(), todo.getName(), todo.isDone());
+
+            long lsn = 0;
+            TodoRecord stored = null;
+            synchronized (lockFor(high, low)) {
+                if (attempt >= OPTIMISTIC_ATTEMPTS && !isCurrent(current)) {
+                    //contended too often - apply the mutator to the current version while no one else can change it:
+                    current = todos.get(high, low);
+                    if (current == null) {
+                        return null;
+                    }
+                    todo = toTodo(current);
+                    mutator.mutate(todo);
+                    record = new TodoRecord(high, low, current.getCreated(), todo.getName(), todo.isDone());
+                    lockedUpdates.incrementAndGet();
+                }
+                //every change gives the todo a new version, so it is unchanged as long as its version is the same:
+                if (isCurrent(current)) {
+                    if (wal != null) {
+                        lsn = append(PUT, TodoCodec.toBytes(record));
+                    }
+                    stored = todos.put(record);
+                }
+            }
+            if (stored == null) {
+                retries.incrementAndGet();
+                continue;
+            }
+            if (wal != null) {
+                sync(lsn);
+            }
+            updates.incrementAndGet();
+            for (long max = maxRetries.get(); attempt > max; max = maxRetries.get()) {
+                if (maxRetries.compareAndSet(max, attempt)) {
+                    break;
+                }
+            }
+            return toTodo(stored);
+        }
+    }
+
+    @Override
+    public UpdateStats getUpdateStats() {
+        return new UpdateStats(updates.get(), retries.get(), maxRetries.get(), lockedUpdates.get());
+    }
+
+    @Override
+    public List<Todo> createAll(List<Todo> todos) {
+        for (Todo todo : todos) {
+            if (todo.getId() != null) {
+                throw new IllegalArgumentException("Only new todos can be created, but todo " + todo.getId() +
+                        " already has an id.");
+            }
+        }
+        expireLeases();
+        long now = System.currentTimeMillis();
+        long lsn = 0;
+        for (Todo todo : todos) {
+            UUID uuid = idGenerator.generate();
+            long created = todo.getCreated() != null ? todo.getCreated().getTime() : now;
+            TodoRecord record = new TodoRecord(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), created,
+                    todo.getName(), todo.isDone());
+            TodoRecord stored;
+            synchronized (lockFor(record.getIdHigh(), record.getIdLow())) {
+                if (wal != null) {
+                    lsn = append(PUT, TodoCodec.toBytes(record));
+                }
+                stored = this.todos.put(record);
+            }
+            todo.setId(record.getId());
+            todo.setCreated(new Date(created));
+            todo.setUser(getCurrentUser());
+            todo.setVersion(stored.getVersion());
+            todo.setModified(new Date(stored.getModified()));
+        }
+        if (wal != null && lsn != 0) {
+            //the log is forced in order, so syncing the last record of the batch makes all of them durable:
+            sync(lsn);
+        }
+        return todos;
+    }
+
+    //must be called with the lock stripe of the todo held:
+    private boolean isCurrent(TodoRecord record) {
+        TodoRecord current = todos.get(record.getIdHigh(), record.getIdLow());
+        return current != null && current.getVersion() == record.getVersion();
+    }
+
+    //must be called with the lock stripe of the todo held:
+    private void checkVersion(long high, long low, long expectedVersion) {
+        if (expectedVersion == ANY_VERSION) {
+            return;
+        }
+        TodoRecord current = todos.get(high, low);
+        if (current == null || current.getVersion() != expectedVersion) {
+            throw new VersionConflictException("Todo " + TodoIds.toString(high, low) + " has been " +
+                    (current == null ? "deleted." : "modified by someone else."));
+        }
+    }
+
+    public void setIdGenerator(IdGenerator idGenerator) {
+        if (idGenerator == null) {
+            throw new IllegalArgumentException("IdGenerator argument cannot be null.");
+        }
+        this.idGenerator = idGenerator;
+    }
+
+    private Todo toTodo(TodoRecord record) {
+        Todo todo = new Todo();
+        todo.setId(record.getId());
+        todo.setName(record.getName());
+        todo.setDone(record.isDone());
+        todo.setCreated(new Date(record.getCreated()));
+        todo.setUser(getCurrentUser());
+        todo.setVersion(record.getVersion());
+        todo.setModified(new Date(record.getModified()));
         return todo;
     }
 
@@ -84,7 +1020,55 @@ public class DefaultTodoService implements TodoService {
 
     @Override
     public Todo deleteById(String id) {
-        return todos.remove(id);
+        return deleteById(id, ANY_VERSION);
+    }
+
+    @Override
+    public Todo deleteById(String id, long expectedVersion) throws VersionConflictException {
+        if (!TodoIds.isValid(id)) {
+            return null;
+        }
+        long high = TodoIds.high(id);
+        long low = TodoIds.low(id);
+
+        expireLeases();
+        TodoRecord record;
+        long lsn = 0;
+        synchronized (lockFor(high, low)) {
+            record = todos.get(high, low);
+            if (record == null) {
+                return null;
+            }
+            checkVersion(high, low, expectedVersion);
+            if (wal != null) {
+                lsn = append(DELETE, TodoCodec.toBytes(high, low));
+            }
+            todos.remove(high, low);
+        }
+        if (wal != null) {
+            sync(lsn);
+        }
+        return toTodo(record);
+    }
+
+    private Object lockFor(long high, long low) {
+        return locks[(int) ((high ^ low) & Integer.MAX_VALUE) % locks.length];
+    }
+
+    private long append(byte type, byte[] payload) {
+        try {
+            return wal.append(type, payload);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to write to the write-ahead log.", e);
+        }
+    }
+
+    private void sync(long lsn) {
+        try {
+            wal.sync(lsn);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to force the write-ahead log to disk.", e);
+        }
     }
 
     public static TodoService getInstance() {
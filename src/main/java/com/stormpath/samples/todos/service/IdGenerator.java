@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.service;
+
+import java.util.UUID;
+
+/**
+ * Strategy for generating the 128 bit ids of new todos.
+ * <p/>
+ * Ids are returned as {@link UUID}s purely as a convenient two-{@code long} value type; implementations are not
+ * required to produce RFC 4122 UUIDs.  The most significant half of a generated id must never be {@code 0}.
+ */
+public interface IdGenerator {
+
+    UUID generate();
+
+}
@@ -0,0 +1,1147 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.service;
+
+import com.stormpath.samples.todos.entity.Todo;
+import com.stormpath.samples.todos.entity.User;
+import com.stormpath.samples.todos.lang.ClassUtils;
+import com.stormpath.samples.todos.lang.StringUtils;
+import com.stormpath.samples.todos.store.ChangeLog;
+import com.stormpath.samples.todos.store.ConnectionPool;
+import com.stormpath.samples.todos.store.ConnectionPool.PooledConnection;
+import com.stormpath.samples.todos.store.TodoIds;
+import com.stormpath.samples.todos.store.TodoTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * {@link TodoService} backed by an embedded H2 database, for deployments that need the durability of a relational
+ * store.
+ * <p/>
+ * The singleton returned by {@link #getInstance()} is configured from system properties:
+ * <ul>
+ * <li>{@code todos.jdbc.url} - JDBC url of the database (default {@code jdbc:h2:./todos}, a database file in the
+ * working directory).</li>
+ * <li>{@code todos.jdbc.user} and {@code todos.jdbc.password} - the database credentials (default {@code sa} with
+ * an empty password).</li>
+ * <li>{@code todos.jdbc.poolSize} - maximum number of open connections (default 8).</li>
+ * <li>{@code todos.idGenerator} and {@code todos.changes.capacity} - as for {@link DefaultTodoService}.</li>
+ * </ul>
+ * <p/>
+ * Todos are kept in the {@code todo} table with indexes on their id, on their done flag, on their creation date and
+ * on both, so that lookups and the pages of every filter are read with an index range scan that stops at the end of
+ * the page.  Every change is also recorded in the {@code todo_change} table under its sequence number, so that
+ * {@link #getChangesSince(long)} answers across restarts.  Changes beyond the configured capacity are deleted.
+ * <p/>
+ * Writes are serialized, so that sequence numbers are committed in the order they are assigned and a client that has
+ * seen a change can never miss an earlier one.  Reads run concurrently with each other but not with a write, so that a
+ * page or snapshot agrees with the sequence number returned with it.  The counts of {@link #countTodos(TodoFilter)}
+ * and {@link #getStats()} are maintained in memory as todos change, as the database is only changed through this
+ * service.  Unlike {@link DefaultTodoService}, each page of a listing is read from the latest state of the todos.
+ */
+public class JdbcTodoService implements TodoService {
+
+    public static final String URL_PROPERTY = "todos.jdbc.url";
+    public static final String USER_PROPERTY = "todos.jdbc.user";
+    public static final String PASSWORD_PROPERTY = "todos.jdbc.password";
+    public static final String POOL_SIZE_PROPERTY = "todos.jdbc.poolSize";
+
+    public static final String DEFAULT_URL = "jdbc:h2:./todos";
+    public static final int DEFAULT_POOL_SIZE = 8;
+
+    //failed version checks after which an update holds the write lock while it applies its mutator:
+    private static final int OPTIMISTIC_ATTEMPTS = 8;
+
+    //changes the change table may exceed its capacity by before the oldest ones are deleted in one statement:
+    private static final int PRUNE_BATCH = 1024;
+
+    private static final String[] SCHEMA = {
+            "CREATE TABLE IF NOT EXISTS todo (seq BIGINT AUTO_INCREMENT PRIMARY KEY, id_high BIGINT NOT NULL, " +
+                    "id_low BIGINT NOT NULL, name VARCHAR, done BOOLEAN NOT NULL, created BIGINT NOT NULL, " +
+                    "version BIGINT NOT NULL, modified BIGINT NOT NULL)",
+            "CREATE UNIQUE INDEX IF NOT EXISTS todo_id ON todo (id_high, id_low)",
+            "CREATE INDEX IF NOT EXISTS todo_done ON todo (done, seq)",
+            "CREATE INDEX IF NOT EXISTS todo_created ON todo (created, seq)",
+            "CREATE INDEX IF NOT EXISTS todo_done_created ON todo (done, created, seq)",
+            "CREATE TABLE IF NOT EXISTS todo_change (version BIGINT PRIMARY KEY, id_high BIGINT NOT NULL, " +
+                    "id_low BIGINT NOT NULL)"
+    };
+
+    private static final String COLUMNS = "seq, id_high, id_low, name, done, created, version, modified";
+
+    private static final String SELECT_ALL = "SELECT " + COLUMNS + " FROM todo ORDER BY seq";
+    private static final String SELECT_BY_ID = "SELECT " + COLUMNS + " FROM todo WHERE id_high = ? AND id_low = ?";
+    private static final String INSERT = "INSERT INTO todo (id_high, id_low, name, done, created, version, " +
+            "modified) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String UPDATE = "UPDATE todo SET name = ?, done = ?, created = ?, version = ?, " +
+            "modified = ? WHERE id_high = ? AND id_low = ?";
+    private static final String DELETE = "DELETE FROM todo WHERE id_high = ? AND id_low = ?";
+    private static final String INSERT_CHANGE = "INSERT INTO todo_change (version, id_high, id_low) VALUES (?, ?, ?)";
+    private static final String DELETE_CHANGES = "DELETE FROM todo_change WHERE version <= ?";
+    //the current state of every todo changed after a sequence number, or nulls if it has been deleted:
+    private static final String SELECT_CHANGES = "SELECT c.version, c.id_high, c.id_low, t.seq, t.id_high, " +
+            "t.id_low, t.name, t.done, t.created, t.version, t.modified FROM todo_change c LEFT JOIN todo t " +
+            "ON t.id_high = c.id_high AND t.id_low = c.id_low WHERE c.version > ? ORDER BY c.version";
+
+    private static final Logger log = LoggerFactory.getLogger(JdbcTodoService.class);
+
+    private static JdbcTodoService instance;
+
+    //simulate a single User for the demo:
+    private final User user;
+
+    private volatile IdGenerator idGenerator = new TimeOrderedIdGenerator();
+
+    private final ConnectionPool pool;
+    private final int changesCapacity;
+    private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<ChangeListener>();
+
+    //writers hold the write lock from assigning the first sequence number of a transaction until it is committed and
+    //applied below; readers hold the read lock while they query the database:
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    //guarded by the lock; volatile so that they can also be read without it:
+    private volatile long lastSeq;
+    private volatile long lastModified;
+
+    //guarded by the lock:
+    private long changesFloor; //the changes after this sequence number are still in the change table
+    private int size;
+    private int done;
+    private final SortedMap<Long, Integer> createdPerDay = new TreeMap<Long, Integer>();
+
+    //contention of update(id, mutator):
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong maxRetries = new AtomicLong();
+    private final AtomicLong lockedUpdates = new AtomicLong();
+
+    public JdbcTodoService(ConnectionPool pool) {
+        this(pool, ChangeLog.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates the schema in the pool's database if it does not exist yet and loads the counts of the todos in it.
+     *
+     * @param pool            the connections to the database
+     * @param changesCapacity the number of recent changes kept for {@link #getChangesSince(long)}
+     */
+    public JdbcTodoService(ConnectionPool pool, int changesCapacity) {
+        if (pool == null) {
+            throw new IllegalArgumentException("ConnectionPool argument cannot be null.");
+        }
+        if (changesCapacity <= 0) {
+            throw new IllegalArgumentException("Changes capacity must be positive.");
+        }
+        //simulate a single User for this demo:
+        User user = new User();
+        user.setId(UUID.randomUUID().toString().replace("-", ""));
+        user.setUsername("jsmith");
+        user.setGivenName("John");
+        user.setSurname("Smith");
+        this.user = user;
+
+        this.pool = pool;
+        this.changesCapacity = changesCapacity;
+        query(new Query<Void>() {
+            @Override
+            public Void run(PooledConnection connection) throws SQLException {
+                load(connection);
+                return null;
+            }
+        });
+    }
+
+    private void load(PooledConnection connection) throws SQLException {
+        Statement statement = connection.getConnection().createStatement();
+        try {
+            for (String sql : SCHEMA) {
+                statement.execute(sql);
+            }
+            ResultSet rs = statement.executeQuery("SELECT COUNT(*), " +
+                    "SUM(CASE WHEN done THEN 1 ELSE 0 END), MAX(version), MAX(modified) FROM todo");
+            rs.next();
+            size = rs.getInt(1);
+            done = rs.getInt(2);
+            long version = rs.getLong(3);
+            lastModified = rs.getLong(4);
+            rs.close();
+
+            //grouped by the days since the epoch, rounded down like TodoTable.toDay():
+            rs = statement.executeQuery("SELECT CASE WHEN created < 0 THEN (created + 1) / 86400000 - 1 " +
+                    "ELSE created / 86400000 END AS day, COUNT(*) FROM todo GROUP BY day");
+            while (rs.next()) {
+                createdPerDay.put(rs.getLong(1), rs.getInt(2));
+            }
+            rs.close();
+
+            rs = statement.executeQuery("SELECT MIN(version), MAX(version) FROM todo_change");
+            rs.next();
+            long firstChange = rs.getLong(1);
+            boolean changes = !rs.wasNull();
+            long lastChange = rs.getLong(2);
+            rs.close();
+
+            //sequence numbers of a new database start at the current time in microseconds, like those of
+            //DefaultTodoService, so that a sequence number issued by another store forces a resync:
+            if (changes) {
+                lastSeq = Math.max(lastChange, version);
+                changesFloor = firstChange - 1;
+            } else {
+                lastSeq = size > 0 ? version : System.currentTimeMillis() * 1000;
+                changesFloor = lastSeq;
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    public static synchronized JdbcTodoService getInstance() {
+        //created on first use, so that the database is only opened if this service is selected:
+        if (instance == null) {
+            instance = createInstance();
+        }
+        return instance;
+    }
+
+    private static JdbcTodoService createInstance() {
+        long start = System.currentTimeMillis();
+        String url = System.getProperty(URL_PROPERTY, DEFAULT_URL);
+        final ConnectionPool pool = new ConnectionPool(url, System.getProperty(USER_PROPERTY, "sa"),
+                System.getProperty(PASSWORD_PROPERTY, ""), Integer.getInteger(POOL_SIZE_PROPERTY, DEFAULT_POOL_SIZE));
+        JdbcTodoService service = new JdbcTodoService(pool,
+                Integer.getInteger(DefaultTodoService.CHANGES_CAPACITY_PROPERTY, ChangeLog.DEFAULT_CAPACITY));
+        String idGenerator = System.getProperty(DefaultTodoService.ID_GENERATOR_PROPERTY);
+        if (StringUtils.hasText(idGenerator)) {
+            service.setIdGenerator((IdGenerator) ClassUtils.newInstance(idGenerator));
+        }
+        log.info("Opened {} with {} todos in {} ms.",
+                new Object[]{url, service.countTodos(TodoFilter.ALL), System.currentTimeMillis() - start});
+
+        Runtime.getRuntime().addShutdownHook(new Thread("jdbc-shutdown") {
+            @Override
+            public void run() {
+                pool.close();
+            }
+        });
+        return service;
+    }
+
+    @Override
+    public Collection<Todo> getTodos() {
+        return query(new Query<Collection<Todo>>() {
+            @Override
+            public Collection<Todo> run(PooledConnection connection) throws SQLException {
+                List<Todo> todos = new ArrayList<Todo>();
+                ResultSet rs = connection.prepare(SELECT_ALL).executeQuery();
+                try {
+                    while (rs.next()) {
+                        todos.add(toTodo(toRow(rs, 1)));
+                    }
+                } finally {
+                    rs.close();
+                }
+                return todos;
+            }
+        });
+    }
+
+    @Override
+    public PagedIterator<Todo> iterateTodos(TodoFilter filter, int offset, int limit) {
+        if (filter == null) {
+            throw new IllegalArgumentException("Filter argument cannot be null.");
+        }
+        return queryPage(filter, Long.MIN_VALUE, Long.MIN_VALUE, offset, limit);
+    }
+
+    @Override
+    public PagedIterator<Todo> iterateTodosAfter(TodoFilter filter, String cursor, int limit) {
+        if (filter == null) {
+            throw new IllegalArgumentException("Filter argument cannot be null.");
+        }
+        if (cursor == null) {
+            throw new IllegalArgumentException("Cursor argument cannot be null.");
+        }
+        //the sequence number of the last todo of the previous page, prefixed with its creation time if the todos are
+        //ordered by creation time:
+        String[] parts = cursor.split("\\.", -1);
+        if (parts.length != (filter.isCreatedRange() ? 2 : 1)) {
+            throw new IllegalArgumentException("Invalid cursor '" + cursor + "'.");
+        }
+        long seq = parseCursorPart(cursor, parts[parts.length - 1]);
+        long created = filter.isCreatedRange() ? parseCursorPart(cursor, parts[0]) : Long.MIN_VALUE;
+        return queryPage(filter, created, seq, 0, limit);
+    }
+
+    //the page following the todo with the specified creation time and sequence number:
+    private PagedIterator<Todo> queryPage(final TodoFilter filter, final long afterCreated, final long afterSeq,
+                                          final int offset, final int limit) {
+        //each filter reads a range of the index that matches its order, and the page ends the scan:
+        final StringBuilder sql = new StringBuilder("SELECT ").append(COLUMNS).append(" FROM todo WHERE ");
+        //ordered by all columns of the index, even though the done flag is the same for all todos of a page:
+        if (filter.isCreatedRange()) {
+            sql.append("created >= ? AND created < ? AND (created > ? OR seq > ?)");
+            if (filter.getDone() != null) {
+                sql.append(" AND done = ? ORDER BY done, created, seq");
+            } else {
+                sql.append(" ORDER BY created, seq");
+            }
+        } else if (filter.getDone() != null) {
+            sql.append("done = ? AND seq > ? ORDER BY done, seq");
+        } else {
+            sql.append("seq > ? ORDER BY seq");
+        }
+        sql.append(" LIMIT ? OFFSET ?");
+
+        return query(new Query<PagedIterator<Todo>>() {
+            @Override
+            public PagedIterator<Todo> run(PooledConnection connection) throws SQLException {
+                PreparedStatement statement = connection.prepare(sql.toString());
+                int i = 1;
+                if (filter.isCreatedRange()) {
+                    long after = createdAfter(filter);
+                    //the creation time of the cursor's todo is the start of the index range, if it is in the filter:
+                    statement.setLong(i++, Math.max(afterCreated, after == Long.MAX_VALUE ? after : after + 1));
+                    statement.setLong(i++, createdBefore(filter));
+                    statement.setLong(i++, afterCreated);
+                    statement.setLong(i++, afterSeq);
+                    if (filter.getDone() != null) {
+                        statement.setBoolean(i++, filter.getDone());
+                    }
+                } else {
+                    if (filter.getDone() != null) {
+                        statement.setBoolean(i++, filter.getDone());
+                    }
+                    statement.setLong(i++, afterSeq);
+                }
+                //one more todo than requested tells whether there is a next page:
+                statement.setInt(i++, limit + 1);
+                statement.setInt(i, offset);
+
+                List<Row> rows = new ArrayList<Row>(Math.min(limit + 1, 1024));
+                ResultSet rs = statement.executeQuery();
+                try {
+                    while (rs.next()) {
+                        rows.add(toRow(rs, 1));
+                    }
+                } finally {
+                    rs.close();
+                }
+                return new RowPageIterator(rows, limit, filter.isCreatedRange(), lastSeq);
+            }
+        });
+    }
+
+    @Override
+    public int countTodos(final TodoFilter filter) {
+        if (filter == null) {
+            throw new IllegalArgumentException("Filter argument cannot be null.");
+        }
+        if (!filter.isCreatedRange()) {
+            lock.readLock().lock();
+            try {
+                if (filter.getDone() == null) {
+                    return size;
+                }
+                return filter.getDone() ? done : size - done;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        final String sql = "SELECT COUNT(*) FROM todo WHERE created > ? AND created < ?" +
+                (filter.getDone() != null ? " AND done = ?" : "");
+        return query(new Query<Integer>() {
+            @Override
+            public Integer run(PooledConnection connection) throws SQLException {
+                PreparedStatement statement = connection.prepare(sql);
+                statement.setLong(1, createdAfter(filter));
+                statement.setLong(2, createdBefore(filter));
+                if (filter.getDone() != null) {
+                    statement.setBoolean(3, filter.getDone());
+                }
+                ResultSet rs = statement.executeQuery();
+                try {
+                    rs.next();
+                    return rs.getInt(1);
+                } finally {
+                    rs.close();
+                }
+            }
+        });
+    }
+
+    @Override
+    public TodoStats getStats() {
+        int total;
+        int done;
+        SortedMap<Date, Integer> perDay = new TreeMap<Date, Integer>();
+        lock.readLock().lock();
+        try {
+            total = this.size;
+            done = this.done;
+            for (Map.Entry<Long, Integer> entry : createdPerDay.entrySet()) {
+                perDay.put(new Date(entry.getKey() * TimeUnit.DAYS.toMillis(1)), entry.getValue());
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        //every todo in this demo belongs to the simulated user:
+        Map<String, Integer> byUser = Collections.singletonMap(getCurrentUser().getId(), total);
+        return new TodoStats(total, done, byUser, perDay);
+    }
+
+    @Override
+    public long getChangeSeq() {
+        return lastSeq;
+    }
+
+    @Override
+    public Date getLastModified() {
+        return new Date(lastModified);
+    }
+
+    @Override
+    public ChangeSet getChangesSince(final long seq) throws ResyncRequiredException {
+        ChangeSet changes = query(new Query<ChangeSet>() {
+            @Override
+            public ChangeSet run(PooledConnection connection) throws SQLException {
+                if (seq < changesFloor || seq > lastSeq) {
+                    return null;
+                }
+                PreparedStatement statement = connection.prepare(SELECT_CHANGES);
+                statement.setLong(1, seq);
+                List<Long> versions = new ArrayList<Long>();
+                List<UUID> ids = new ArrayList<UUID>();
+                List<Row> rows = new ArrayList<Row>();
+                ResultSet rs = statement.executeQuery();
+                try {
+                    while (rs.next()) {
+                        versions.add(rs.getLong(1));
+                        ids.add(new UUID(rs.getLong(2), rs.getLong(3)));
+                        rs.getLong(4);
+                        rows.add(rs.wasNull() ? null : toRow(rs, 4));
+                    }
+                } finally {
+                    rs.close();
+                }
+                //every change of a todo is joined with its current state, so only its latest change is reported:
+                List<Todo> changed = new ArrayList<Todo>();
+                List<String> deletedIds = new ArrayList<String>();
+                Set<UUID> seen = new HashSet<UUID>();
+                for (int i = ids.size() - 1; i >= 0; i--) {
+                    UUID id = ids.get(i);
+                    if (seen.add(id)) {
+                        if (rows.get(i) == null) {
+                            deletedIds.add(TodoIds.toString(id.getMostSignificantBits(),
+                                    id.getLeastSignificantBits()));
+                        } else {
+                            changed.add(toTodo(rows.get(i)));
+                        }
+                    }
+                }
+                Collections.reverse(changed);
+                Collections.reverse(deletedIds);
+                long last = versions.isEmpty() ? seq : versions.get(versions.size() - 1);
+                return new ChangeSet(seq, last, changed, deletedIds);
+            }
+        });
+        if (changes == null) {
+            throw new ResyncRequiredException("The changes since " + seq + " are no longer available.  Reload " +
+                    "the todos and ask for the changes since the sequence number returned with them.");
+        }
+        return changes;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The database computes the complete result of the snapshot's query up front (spilling it to a temporary file if
+     * it is large), so writes wait while it is computed but not while the snapshot is read.
+     */
+    @Override
+    public TodoSnapshot openSnapshot() {
+        final PooledConnection connection = borrow();
+        final long seq;
+        final long modified;
+        final ResultSet rs;
+        lock.readLock().lock();
+        try {
+            seq = lastSeq;
+            modified = lastModified;
+            rs = connection.prepare(SELECT_ALL).executeQuery();
+        } catch (SQLException e) {
+            pool.discard(connection);
+            throw new IllegalStateException("Unable to read todos from the database.", e);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new TodoSnapshot() {
+
+            private boolean iterated;
+            private boolean closed;
+
+            @Override
+            public long getSeq() {
+                return seq;
+            }
+
+            @Override
+            public Date getLastModified() {
+                return new Date(modified);
+            }
+
+            @Override
+            public Iterator<Todo> iterator() {
+                if (iterated || closed) {
+                    throw new IllegalStateException("The snapshot can only be iterated once, before it is closed.");
+                }
+                iterated = true;
+                return new Iterator<Todo>() {
+
+                    private Todo next = advance();
+
+                    private Todo advance() {
+                        try {
+                            return !closed && rs.next() ? toTodo(toRow(rs, 1)) : null;
+                        } catch (SQLException e) {
+                            throw new IllegalStateException("Unable to read todos from the database.", e);
+                        }
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+
+                    @Override
+                    public Todo next() {
+                        if (next == null) {
+                            throw new NoSuchElementException();
+                        }
+                        Todo todo = next;
+                        next = advance();
+                        return todo;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public void close() {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    rs.close();
+                } catch (SQLException e) {
+                    pool.discard(connection);
+                    return;
+                }
+                pool.release(connection);
+            }
+        };
+    }
+
+    @Override
+    public void addChangeListener(ChangeListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("ChangeListener argument cannot be null.");
+        }
+        changeListeners.add(listener);
+    }
+
+    @Override
+    public void removeChangeListener(ChangeListener listener) {
+        changeListeners.remove(listener);
+    }
+
+    @Override
+    public Todo getById(String id) {
+        if (!TodoIds.isValid(id)) {
+            return null;
+        }
+        final long high = TodoIds.high(id);
+        final long low = TodoIds.low(id);
+        Row row = query(new Query<Row>() {
+            @Override
+            public Row run(PooledConnection connection) throws SQLException {
+                return find(connection, high, low);
+            }
+        });
+        return row != null ? toTodo(row) : null;
+    }
+
+    @Override
+    public Todo save(Todo todo) {
+        return save(todo, ANY_VERSION);
+    }
+
+    @Override
+    public Todo save(final Todo todo, final long expectedVersion) throws VersionConflictException {
+        String id = todo.getId();
+        if (id == null) {
+            //create:
+            if (expectedVersion != ANY_VERSION) {
+                throw new IllegalArgumentException("Only existing todos can be saved conditionally.");
+            }
+            createAll(Collections.singletonList(todo));
+            return todo;
+        }
+        //update:
+        if (!TodoIds.isValid(id)) {
+            throw new IllegalArgumentException("Invalid todo id '" + id + "'.");
+        }
+        final long high = TodoIds.high(id);
+        final long low = TodoIds.low(id);
+        Row stored = update(new Update<Row>() {
+            @Override
+            public Row run(Transaction tx) throws SQLException {
+                Row current = find(tx.connection, high, low);
+                checkVersion(high, low, current, expectedVersion);
+                Date created = todo.getCreated();
+                return tx.put(current, high, low, todo.getName(), todo.isDone(),
+                        created != null ? created.getTime() : tx.now);
+            }
+        });
+        todo.setVersion(stored.version);
+        todo.setModified(new Date(stored.modified));
+        return todo;
+    }
+
+    @Override
+    public Todo update(String id, final TodoMutator mutator) {
+        if (mutator == null) {
+            throw new IllegalArgumentException("TodoMutator argument cannot be null.");
+        }
+        if (!TodoIds.isValid(id)) {
+            return null;
+        }
+        final long high = TodoIds.high(id);
+        final long low = TodoIds.low(id);
+
+        for (int attempt = 0; ; attempt++) {
+            final Row current = query(new Query<Row>() {
+                @Override
+                public Row run(PooledConnection connection) throws SQLException {
+                    return find(connection, high, low);
+                }
+            });
+            if (current == null) {
+                return null;
+            }
+            //the mutator runs without any lock held, on a copy nobody else can see:
+            final Todo todo = toTodo(current);
+            mutator.mutate(todo);
+            final boolean locked = attempt >= OPTIMISTIC_ATTEMPTS;
+            Row stored = update(new Update<Row>() {
+                @Override
+                public Row run(Transaction tx) throws SQLException {
+                    Row latest = find(tx.connection, high, low);
+                    if (latest == null) {
+                        return Row.MISSING;
+                    }
+                    Todo mutated = todo;
+                    if (latest.version != current.version) {
+                        if (!locked) {
+                            return null;
+                        }
+                        //contended too often - apply the mutator to the current version while no one can change it:
+                        mutated = toTodo(latest);
+                        mutator.mutate(mutated);
+                        lockedUpdates.incrementAndGet();
+                    }
+                    return tx.put(latest, high, low, mutated.getName(), mutated.isDone(), latest.created);
+                }
+            });
+            if (stored == Row.MISSING) {
+                return null;
+            }
+            if (stored == null) {
+                retries.incrementAndGet();
+                continue;
+            }
+            updates.incrementAndGet();
+            for (long max = maxRetries.get(); attempt > max; max = maxRetries.get()) {
+                if (maxRetries.compareAndSet(max, attempt)) {
+                    break;
+                }
+            }
+            return toTodo(stored);
+        }
+    }
+
+    @Override
+    public UpdateStats getUpdateStats() {
+        return new UpdateStats(updates.get(), retries.get(), maxRetries.get(), lockedUpdates.get());
+    }
+
+    @Override
+    public List<Todo> createAll(final List<Todo> todos) {
+        for (Todo todo : todos) {
+            if (todo.getId() != null) {
+                throw new IllegalArgumentException("Only new todos can be created, but todo " + todo.getId() +
+                        " already has an id.");
+            }
+        }
+        //the todos are inserted with a single batch, and committed with a single transaction:
+        List<Row> rows = update(new Update<List<Row>>() {
+            @Override
+            public List<Row> run(Transaction tx) throws SQLException {
+                List<Row> rows = new ArrayList<Row>(todos.size());
+                for (Todo todo : todos) {
+                    UUID uuid = idGenerator.generate();
+                    long created = todo.getCreated() != null ? todo.getCreated().getTime() : tx.now;
+                    rows.add(tx.put(null, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(),
+                            todo.getName(), todo.isDone(), created));
+                }
+                return rows;
+            }
+        });
+        for (int i = 0; i < todos.size(); i++) {
+            Todo todo = todos.get(i);
+            Row row = rows.get(i);
+            todo.setId(TodoIds.toString(row.high, row.low));
+            todo.setCreated(new Date(row.created));
+            todo.setUser(getCurrentUser());
+            todo.setVersion(row.version);
+            todo.setModified(new Date(row.modified));
+        }
+        return todos;
+    }
+
+    @Override
+    public Todo deleteById(String id) {
+        return deleteById(id, ANY_VERSION);
+    }
+
+    @Override
+    public Todo deleteById(String id, final long expectedVersion) throws VersionConflictException {
+        if (!TodoIds.isValid(id)) {
+            return null;
+        }
+        final long high = TodoIds.high(id);
+        final long low = TodoIds.low(id);
+        Row deleted = update(new Update<Row>() {
+            @Override
+            public Row run(Transaction tx) throws SQLException {
+                Row current = find(tx.connection, high, low);
+                if (current == null) {
+                    return null;
+                }
+                checkVersion(high, low, current, expectedVersion);
+                tx.delete(current);
+                return current;
+            }
+        });
+        return deleted != null ? toTodo(deleted) : null;
+    }
+
+    private static void checkVersion(long high, long low, Row current, long expectedVersion) {
+        if (expectedVersion == ANY_VERSION) {
+            return;
+        }
+        if (current == null || current.version != expectedVersion) {
+            throw new VersionConflictException("Todo " + TodoIds.toString(high, low) + " has been " +
+                    (current == null ? "deleted." : "modified by someone else."));
+        }
+    }
+
+    public void setIdGenerator(IdGenerator idGenerator) {
+        if (idGenerator == null) {
+            throw new IllegalArgumentException("IdGenerator argument cannot be null.");
+        }
+        this.idGenerator = idGenerator;
+    }
+
+    protected User getCurrentUser() {
+        //return the 'current user' based on a security framework like Shiro.
+        //For this demo, we'll just assume a simulated/manually-constructed one:
+        return this.user;
+    }
+
+    private static Row find(PooledConnection connection, long high, long low) throws SQLException {
+        PreparedStatement statement = connection.prepare(SELECT_BY_ID);
+        statement.setLong(1, high);
+        statement.setLong(2, low);
+        ResultSet rs = statement.executeQuery();
+        try {
+            return rs.next() ? toRow(rs, 1) : null;
+        } finally {
+            rs.close();
+        }
+    }
+
+    //reads the columns of a todo, in the order of COLUMNS, starting at the specified column:
+    private static Row toRow(ResultSet rs, int column) throws SQLException {
+        Row row = new Row();
+        row.seq = rs.getLong(column);
+        row.high = rs.getLong(column + 1);
+        row.low = rs.getLong(column + 2);
+        row.name = rs.getString(column + 3);
+        row.done = rs.getBoolean(column + 4);
+        row.created = rs.getLong(column + 5);
+        row.version = rs.getLong(column + 6);
+        row.modified = rs.getLong(column + 7);
+        return row;
+    }
+
+    private Todo toTodo(Row row) {
+        Todo todo = new Todo();
+        todo.setId(TodoIds.toString(row.high, row.low));
+        todo.setName(row.name);
+        todo.setDone(row.done);
+        todo.setCreated(new Date(row.created));
+        todo.setUser(getCurrentUser());
+        todo.setVersion(row.version);
+        todo.setModified(new Date(row.modified));
+        return todo;
+    }
+
+    private static long parseCursorPart(String cursor, String part) {
+        try {
+            return Long.parseLong(part, Character.MAX_RADIX);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor '" + cursor + "'.");
+        }
+    }
+
+    private static long createdAfter(TodoFilter filter) {
+        return filter.getCreatedAfter() != null ? filter.getCreatedAfter().getTime() : Long.MIN_VALUE;
+    }
+
+    private static long createdBefore(TodoFilter filter) {
+        return filter.getCreatedBefore() != null ? filter.getCreatedBefore().getTime() : Long.MAX_VALUE;
+    }
+
+    private PooledConnection borrow() {
+        try {
+            return pool.borrow();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Unable to connect to the todos database.", e);
+        }
+    }
+
+    private <T> T query(Query<T> query) {
+        PooledConnection connection = borrow();
+        lock.readLock().lock();
+        try {
+            T result = query.run(connection);
+            pool.release(connection);
+            return result;
+        } catch (SQLException e) {
+            pool.discard(connection);
+            throw new IllegalStateException("Unable to read todos from the database.", e);
+        } catch (RuntimeException e) {
+            pool.release(connection);
+            throw e;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //runs the update in a transaction, and applies its changes to the counts once it has been committed:
+    private <T> T update(Update<T> update) {
+        PooledConnection connection = borrow();
+        lock.writeLock().lock();
+        try {
+            Transaction tx = new Transaction(connection);
+            T result;
+            try {
+                connection.getConnection().setAutoCommit(false);
+                result = update.run(tx);
+                tx.commit();
+            } catch (SQLException e) {
+                rollback(connection);
+                throw new IllegalStateException("Unable to write todos to the database.", e);
+            } catch (RuntimeException e) {
+                rollback(connection);
+                throw e;
+            }
+            pool.release(connection);
+            applied(tx);
+            return result;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void rollback(PooledConnection connection) {
+        try {
+            connection.getConnection().rollback();
+            connection.getConnection().setAutoCommit(true);
+        } catch (SQLException e) {
+            pool.discard(connection);
+            return;
+        }
+        pool.release(connection);
+    }
+
+    //must be called with the write lock held:
+    private void applied(Transaction tx) {
+        for (Change change : tx.changes) {
+            if (change.before != null) {
+                size--;
+                if (change.before.done) {
+                    done--;
+                }
+                Long day = TodoTable.toDay(change.before.created);
+                int count = createdPerDay.get(day) - 1;
+                if (count == 0) {
+                    createdPerDay.remove(day);
+                } else {
+                    createdPerDay.put(day, count);
+                }
+            }
+            if (change.after != null) {
+                size++;
+                if (change.after.done) {
+                    done++;
+                }
+                Long day = TodoTable.toDay(change.after.created);
+                Integer count = createdPerDay.get(day);
+                createdPerDay.put(day, count == null ? 1 : count + 1);
+            }
+            lastSeq = change.version;
+        }
+        if (!tx.changes.isEmpty()) {
+            lastModified = tx.now;
+        }
+        changesFloor = tx.changesFloor;
+        if (changeListeners.isEmpty()) {
+            return;
+        }
+        for (Change change : tx.changes) {
+            Row row = change.after != null ? change.after : change.before;
+            String id = TodoIds.toString(row.high, row.low);
+            for (ChangeListener listener : changeListeners) {
+                listener.changed(change.version, id, change.after == null);
+            }
+        }
+    }
+
+    private interface Query<T> {
+        T run(PooledConnection connection) throws SQLException;
+    }
+
+    private interface Update<T> {
+        T run(Transaction tx) throws SQLException;
+    }
+
+    /**
+     * The changes of one write, each assigned the next sequence number.  New todos are inserted in one batch, and
+     * the changes recorded in another, when the transaction is committed.
+     */
+    private final class Transaction {
+
+        final PooledConnection connection;
+        final long now = System.currentTimeMillis();
+        final List<Change> changes = new ArrayList<Change>();
+        long changesFloor = JdbcTodoService.this.changesFloor;
+        private PreparedStatement inserts;
+
+        Transaction(PooledConnection connection) {
+            this.connection = connection;
+        }
+
+        //stores a new version of the todo, which is created if current is null:
+        Row put(Row current, long high, long low, String name, boolean done, long created) throws SQLException {
+            Row row = new Row();
+            row.seq = current != null ? current.seq : 0;
+            row.high = high;
+            row.low = low;
+            row.name = name;
+            row.done = done;
+            row.created = created;
+            row.version = lastSeq + changes.size() + 1;
+            row.modified = now;
+            if (current == null) {
+                if (inserts == null) {
+                    inserts = connection.prepare(INSERT);
+                }
+                inserts.setLong(1, high);
+                inserts.setLong(2, low);
+                inserts.setString(3, name);
+                inserts.setBoolean(4, done);
+                inserts.setLong(5, created);
+                inserts.setLong(6, row.version);
+                inserts.setLong(7, now);
+                inserts.addBatch();
+            } else {
+                PreparedStatement statement = connection.prepare(UPDATE);
+                statement.setString(1, name);
+                statement.setBoolean(2, done);
+                statement.setLong(3, created);
+                statement.setLong(4, row.version);
+                statement.setLong(5, now);
+                statement.setLong(6, high);
+                statement.setLong(7, low);
+                statement.executeUpdate();
+            }
+            changes.add(new Change(row.version, current, row));
+            return row;
+        }
+
+        void delete(Row current) throws SQLException {
+            PreparedStatement statement = connection.prepare(DELETE);
+            statement.setLong(1, current.high);
+            statement.setLong(2, current.low);
+            statement.executeUpdate();
+            changes.add(new Change(lastSeq + changes.size() + 1, current, null));
+        }
+
+        void commit() throws SQLException {
+            if (changes.isEmpty()) {
+                connection.getConnection().commit();
+                connection.getConnection().setAutoCommit(true);
+                return;
+            }
+            if (inserts != null) {
+                inserts.executeBatch();
+            }
+            PreparedStatement statement = connection.prepare(INSERT_CHANGE);
+            for (Change change : changes) {
+                Row row = change.after != null ? change.after : change.before;
+                statement.setLong(1, change.version);
+                statement.setLong(2, row.high);
+                statement.setLong(3, row.low);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            long last = changes.get(changes.size() - 1).version;
+            if (last - changesFloor > changesCapacity + PRUNE_BATCH) {
+                changesFloor = last - changesCapacity;
+                statement = connection.prepare(DELETE_CHANGES);
+                statement.setLong(1, changesFloor);
+                statement.executeUpdate();
+            }
+            connection.getConnection().commit();
+            connection.getConnection().setAutoCommit(true);
+        }
+    }
+
+    private static final class Change {
+
+        final long version;
+        final Row before; //null if the todo was created
+        final Row after; //null if the todo was deleted
+
+        Change(long version, Row before, Row after) {
+            this.version = version;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    private static final class Row {
+
+        //returned by updates of todos that do not exist:
+        static final Row MISSING = new Row();
+
+        long seq;
+        long high;
+        long low;
+        String name;
+        boolean done;
+        long created;
+        long version;
+        long modified;
+    }
+
+    private class RowPageIterator implements PagedIterator<Todo> {
+
+        private final List<Row> rows;
+        private final int limit;
+        private final boolean createdOrder;
+        private final long seq;
+        private int index;
+
+        RowPageIterator(List<Row> rows, int limit, boolean createdOrder, long seq) {
+            this.rows = rows;
+            this.limit = limit;
+            this.createdOrder = createdOrder;
+            this.seq = seq;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < limit && index < rows.size();
+        }
+
+        @Override
+        public Todo next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return toTodo(rows.get(index++));
+        }
+
+        @Override
+        public String getNextCursor() {
+            if (limit <= 0 || rows.size() <= limit) {
+                return null;
+            }
+            Row last = rows.get(limit - 1);
+            String cursor = Long.toString(last.seq, Character.MAX_RADIX);
+            if (createdOrder) {
+                cursor = Long.toString(last.created, Character.MAX_RADIX) + '.' + cursor;
+            }
+            return cursor;
+        }
+
+        @Override
+        public long getSeq() {
+            return seq;
+        }
+
+        @Override
+        public void close() {
+            //the page has been read in full already
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
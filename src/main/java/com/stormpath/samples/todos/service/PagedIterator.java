@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.service;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * A lazily evaluated page of results: items are read from the underlying store as the iterator advances, so a page
+ * can be written out without ever being held in memory as a whole.
+ * <p/>
+ * The page holds on to the state of the store it is read from until it has been read to the end, so a page that
+ * may not be read to the end must be closed.
+ */
+public interface PagedIterator<T> extends Iterator<T>, Closeable {
+
+    /**
+     * Returns the cursor of the next page, or {@code null} if there are no more results.  Only meaningful once
+     * {@link #hasNext()} has returned {@code false}.
+     *
+     * @return the cursor of the next page, or {@code null} if there are no more results.
+     */
+    String getNextCursor();
+
+    /**
+     * Returns the change sequence number of the state of the service the page is read from.  The page reflects every
+     * change up to and including it and none made after it, and so do the next pages read with its cursor for as long
+     * as that state is still available.
+     *
+     * @return the change sequence number of the state the page is read from.
+     * @see TodoService#getChangeSeq()
+     */
+    long getSeq();
+
+    /**
+     * Releases the state of the store the page is read from.  The page cannot be read any further afterwards.
+     */
+    @Override
+    void close();
+
+}
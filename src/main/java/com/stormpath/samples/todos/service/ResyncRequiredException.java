@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.service;
+
+/**
+ * Thrown when the changes a client asked for are no longer available, so the client has to reload the todos in full
+ * before it can request changes again.
+ */
+public class ResyncRequiredException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ResyncRequiredException(String s) {
+        super(s);
+    }
+}
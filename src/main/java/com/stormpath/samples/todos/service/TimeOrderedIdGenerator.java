@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.service;
+
+import java.security.SecureRandom;
+import java.util.UUID;
+
+/**
+ * Generates ULID-style ids: a 48 bit millisecond timestamp followed by 80 bits of per-thread randomness.
+ * <p/>
+ * Every thread owns its own generator state, so generating an id never contends with other threads and never touches
+ * a shared {@code SecureRandom} (which is only used once per thread, to seed it).  Ids generated by the same thread
+ * are strictly increasing: within the same millisecond the random part is incremented instead of regenerated, and the
+ * timestamp never moves backwards even if the system clock does.
+ * <p/>
+ * Because the timestamp occupies the most significant bits, ids sort by creation time (to the millisecond across
+ * threads) both numerically and in their fixed-width hex form, and ids created close together share a prefix.
+ */
+public class TimeOrderedIdGenerator implements IdGenerator {
+
+    private static final long TIMESTAMP_MASK = 0xFFFFFFFFFFFFL; //48 bits
+    private static final long RANDOM_HIGH_MASK = 0xFFFFL; //16 bits
+
+    private static final SecureRandom SEED = new SecureRandom();
+
+    private static final ThreadLocal<State> STATE = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            long seed;
+            synchronized (SEED) {
+                seed = SEED.nextLong();
+            }
+            return new State(seed != 0 ? seed : 1);
+        }
+    };
+
+    private static final class State {
+
+        private long seed; //xorshift state, never 0
+        private long millis = -1;
+        private long randomHigh; //16 bits
+        private long randomLow;  //64 bits
+
+        State(long seed) {
+            this.seed = seed;
+        }
+
+        long nextRandom() {
+            //xorshift64*:
+            seed ^= seed >>> 12;
+            seed ^= seed << 25;
+            seed ^= seed >>> 27;
+            return seed * 2685821657736338717L;
+        }
+    }
+
+    @Override
+    public UUID generate() {
+        State s = STATE.get();
+        long now = currentTimeMillis() & TIMESTAMP_MASK;
+
+        if (now > s.millis) {
+            s.millis = now;
+            s.randomHigh = s.nextRandom() & RANDOM_HIGH_MASK;
+            s.randomLow = s.nextRandom();
+        } else {
+            //same millisecond (or the clock moved backwards): increment the 80 bit random part to stay monotonic.
+            //Starting from a random value leaves on average 2^79 increments of headroom, but if it ever does
+            //overflow, borrow the next millisecond:
+            s.randomLow++;
+            if (s.randomLow == 0) {
+                s.randomHigh = (s.randomHigh + 1) & RANDOM_HIGH_MASK;
+                if (s.randomHigh == 0) {
+                    s.millis++;
+                }
+            }
+        }
+
+        return new UUID((s.millis << 16) | s.randomHigh, s.randomLow);
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.service;
+
+import java.util.Date;
+
+/**
+ * Criteria restricting the todos returned by a {@link TodoService} query.  A {@code null} criterion does not restrict
+ * the result.
+ */
+public class TodoFilter {
+
+    /**
+     * A filter that matches every todo.
+     */
+    public static final TodoFilter ALL = new TodoFilter(null, null, null);
+
+    private final Boolean done;
+    private final Date createdAfter;
+    private final Date createdBefore;
+
+    /**
+     * @param done          the required done flag, or {@code null} for todos in either state
+     * @param createdAfter  exclusive lower bound of the creation date, or {@code null} for no lower bound
+     * @param createdBefore exclusive upper bound of the creation date, or {@code null} for no upper bound
+     */
+    public TodoFilter(Boolean done, Date createdAfter, Date createdBefore) {
+        this.done = done;
+        this.createdAfter = createdAfter;
+        this.createdBefore = createdBefore;
+    }
+
+    public Boolean getDone() {
+        return done;
+    }
+
+    public Date getCreatedAfter() {
+        return createdAfter;
+    }
+
+    public Date getCreatedBefore() {
+        return createdBefore;
+    }
+
+    public boolean isCreatedRange() {
+        return createdAfter != null || createdBefore != null;
+    }
+
+    public boolean isEmpty() {
+        return done == null && !isCreatedRange();
+    }
+}
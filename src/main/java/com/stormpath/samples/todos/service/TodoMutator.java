@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.service;
+
+import com.stormpath.samples.todos.entity.Todo;
+
+/**
+ * Applies a change to a todo for {@link TodoService#update(String, TodoMutator)}.
+ * <p/>
+ * The mutator is given a private copy of the current version of the todo and changes it in place.  If another change
+ * is saved while it runs, it is called again with a copy of the newer version, so it must derive the change from the
+ * todo it is given and have no other side effects.  An update that keeps losing to other changes calls it one last
+ * time while no other change of the todo can be saved, so it should be quick.
+ */
+public interface TodoMutator {
+
+    /**
+     * Changes the specified copy of the current version of a todo.  Only the name and the done flag are saved.
+     *
+     * @param todo the todo to change
+     * @throws RuntimeException to abandon the update, which is then propagated to the caller unchanged
+     */
+    void mutate(Todo todo);
+
+}
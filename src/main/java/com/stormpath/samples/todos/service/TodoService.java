@@ -18,15 +18,152 @@ package com.stormpath.samples.todos.service;
 import com.stormpath.samples.todos.entity.Todo;
 
 import java.util.Collection;
+import java.util.Date;
+import java.util.List;
 
 public interface TodoService {
 
+    /**
+     * Version argument of the conditional mutations that makes them unconditional.
+     */
+    long ANY_VERSION = -1;
+
     Collection<Todo> getTodos();
 
+    /**
+     * Returns up to {@code limit} of the todos matching {@code filter}, starting at the zero-based {@code offset} in
+     * the store's natural order.  When the filter restricts the creation date, todos are returned in order of their
+     * creation date.  Todos are read lazily, as the returned iterator advances.
+     *
+     * @param filter the criteria the returned todos must match, {@link TodoFilter#ALL} for every todo
+     * @param offset the number of matching todos to skip
+     * @param limit  the maximum number of todos to return
+     * @return an iterator over the requested page, never {@code null}.
+     */
+    PagedIterator<Todo> iterateTodos(TodoFilter filter, int offset, int limit);
+
+    /**
+     * Returns up to {@code limit} of the todos matching {@code filter} that directly follow the position identified
+     * by {@code cursor}, which must be a value previously obtained from {@link PagedIterator#getNextCursor()} of a
+     * query with the same filter.  Unlike offset paging, the cost of a cursor lookup does not grow with the position
+     * of the page in the store.
+     *
+     * @param filter the criteria the returned todos must match, {@link TodoFilter#ALL} for every todo
+     * @param cursor the opaque cursor of the previous page
+     * @param limit  the maximum number of todos to return
+     * @return an iterator over the requested page, never {@code null}.
+     */
+    PagedIterator<Todo> iterateTodosAfter(TodoFilter filter, String cursor, int limit);
+
+    /**
+     * Returns the number of todos matching {@code filter}.  Counts that are not restricted by creation date are
+     * maintained as todos change and are returned in constant time.
+     *
+     * @param filter the criteria the counted todos must match
+     * @return the number of matching todos.
+     */
+    int countTodos(TodoFilter filter);
+
+    /**
+     * Returns the current aggregate counts of the todos in this service, in time independent of the number of todos.
+     *
+     * @return the current aggregate counts, never {@code null}.
+     */
+    TodoStats getStats();
+
+    /**
+     * Returns the sequence number of the latest change made to the todos of this service.  Every create, update and
+     * delete is assigned the next number of this sequence.
+     *
+     * @return the sequence number of the latest change.
+     */
+    long getChangeSeq();
+
+    /**
+     * Returns the time of the latest change made to the todos of this service.
+     *
+     * @return the time of the latest change.
+     */
+    Date getLastModified();
+
+    /**
+     * Returns the todos that changed after the change with sequence number {@code seq}, including tombstones for
+     * deleted todos.
+     *
+     * @param seq a sequence number previously obtained from {@link #getChangeSeq()} or {@link ChangeSet#getSeq()}
+     * @return the changes made after {@code seq}, never {@code null}.
+     * @throws ResyncRequiredException if the changes after {@code seq} are no longer available
+     */
+    ChangeSet getChangesSince(long seq) throws ResyncRequiredException;
+
+    /**
+     * Opens a consistent snapshot of all todos as of the latest change, for reading every todo in one pass while the
+     * service continues to be changed.
+     *
+     * @return the snapshot, which must be closed once it has been read.
+     */
+    TodoSnapshot openSnapshot();
+
+    void addChangeListener(ChangeListener listener);
+
+    void removeChangeListener(ChangeListener listener);
+
     Todo getById(String id);
 
     Todo save(Todo todo);
 
+    /**
+     * Saves an existing todo, provided it has not been changed since the specified version.  The version check and the
+     * save are atomic.
+     *
+     * @param todo            the todo to save
+     * @param expectedVersion the {@link Todo#getVersion() version} the todo must currently have, or
+     *                        {@link #ANY_VERSION} to save it regardless
+     * @return the saved todo, with its new version.
+     * @throws VersionConflictException if the todo has been changed or deleted since {@code expectedVersion}
+     */
+    Todo save(Todo todo, long expectedVersion) throws VersionConflictException;
+
+    /**
+     * Atomically changes an existing todo.  The mutator is applied to a copy of the current version of the todo, and
+     * the result is only saved if no other change of the todo has been saved in the meantime.  Otherwise the mutator
+     * is applied again to the newer version until the update succeeds, so no concurrent change is ever lost.
+     *
+     * @param id      the id of the todo to change
+     * @param mutator the change to apply
+     * @return the updated todo, with its new version, or {@code null} if there is no todo with the specified id.
+     */
+    Todo update(String id, TodoMutator mutator);
+
+    /**
+     * Returns how often {@link #update(String, TodoMutator) updates} had to be retried because of concurrent changes.
+     *
+     * @return the contention statistics of the updates made so far, never {@code null}.
+     */
+    UpdateStats getUpdateStats();
+
+    /**
+     * Creates the specified new todos as one batch.  This is considerably cheaper than saving them one at a time: a
+     * durable service waits for its write-ahead log to be forced to disk once per batch rather than once per todo.
+     * Todos that already have a creation date keep it, so that todos migrated from elsewhere retain their history.
+     *
+     * @param todos the todos to create, none of which may have an id
+     * @return the specified todos, with their ids, versions and dates set.
+     */
+    List<Todo> createAll(List<Todo> todos);
+
     Todo deleteById(String id);
 
+    /**
+     * Deletes a todo, provided it has not been changed since the specified version.  The version check and the delete
+     * are atomic.
+     *
+     * @param id              the id of the todo to delete
+     * @param expectedVersion the {@link Todo#getVersion() version} the todo must currently have, or
+     *                        {@link #ANY_VERSION} to delete it regardless
+     * @return the deleted todo, or {@code null} if there is no todo with the specified id.
+     * @throws VersionConflictException if the todo has been changed since {@code expectedVersion}
+     */
+    Todo deleteById(String id, long expectedVersion) throws VersionConflictException;
+
 }
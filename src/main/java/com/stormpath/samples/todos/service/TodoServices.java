@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.service;
+
+import com.stormpath.samples.todos.lang.ClassUtils;
+
+/**
+ * Selects the {@link TodoService} of the application at deploy time, with the {@code todos.service} system property:
+ * <ul>
+ * <li>{@code memory} - the in-memory {@link DefaultTodoService} (default).</li>
+ * <li>{@code jdbc} - the {@link JdbcTodoService} on an embedded database.</li>
+ * <li>the fully qualified class name of any other {@code TodoService} with a public no-argument constructor.</li>
+ * </ul>
+ */
+public final class TodoServices {
+
+    public static final String SERVICE_PROPERTY = "todos.service";
+
+    public static final String MEMORY = "memory";
+    public static final String JDBC = "jdbc";
+
+    private static final TodoService INSTANCE = createInstance();
+
+    private TodoServices() {
+    }
+
+    private static TodoService createInstance() {
+        String service = System.getProperty(SERVICE_PROPERTY, MEMORY).trim();
+        if (MEMORY.equalsIgnoreCase(service)) {
+            return DefaultTodoService.getInstance();
+        }
+        if (JDBC.equalsIgnoreCase(service)) {
+            return JdbcTodoService.getInstance();
+        }
+        return (TodoService) ClassUtils.newInstance(service);
+    }
+
+    /**
+     * Returns the service selected by the {@code todos.service} system property, which every component of the
+     * application shares.
+     */
+    public static TodoService getInstance() {
+        return INSTANCE;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.service;
+
+import com.stormpath.samples.todos.entity.Todo;
+
+import java.io.Closeable;
+import java.util.Date;
+
+/**
+ * All todos of a {@link TodoService} as of a single point of its change sequence, unaffected by any change made while
+ * the snapshot is read.  Todos are materialized one at a time as the snapshot is iterated, so reading it does not
+ * require memory proportional to the number of todos.
+ * <p/>
+ * An open snapshot makes the service keep the state of every todo that changes as of the snapshot, so it should be
+ * closed as soon as it has been read.
+ */
+public interface TodoSnapshot extends Iterable<Todo>, Closeable {
+
+    /**
+     * Returns the sequence number of the latest change included in the snapshot.
+     *
+     * @return the sequence number of the latest change included in the snapshot.
+     * @see TodoService#getChangeSeq()
+     */
+    long getSeq();
+
+    /**
+     * Returns the time of the latest change included in the snapshot.
+     *
+     * @return the time of the latest change included in the snapshot.
+     */
+    Date getLastModified();
+
+    /**
+     * Releases the snapshot.  It cannot be iterated afterwards.
+     */
+    @Override
+    void close();
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.service;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Aggregate counts of the todos in a {@link TodoService}.
+ */
+public class TodoStats {
+
+    private final int total;
+    private final int done;
+    private final Map<String, Integer> totalByUser;
+    private final SortedMap<Date, Integer> createdPerDay;
+
+    /**
+     * @param total         the number of todos
+     * @param done          the number of todos that are done
+     * @param totalByUser   the number of todos of each user, keyed by user id
+     * @param createdPerDay the number of todos created on each day, keyed by the start of the day (UTC)
+     */
+    public TodoStats(int total, int done, Map<String, Integer> totalByUser, SortedMap<Date, Integer> createdPerDay) {
+        this.total = total;
+        this.done = done;
+        this.totalByUser = totalByUser;
+        this.createdPerDay = createdPerDay;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getDone() {
+        return done;
+    }
+
+    public int getOpen() {
+        return total - done;
+    }
+
+    public Map<String, Integer> getTotalByUser() {
+        return totalByUser;
+    }
+
+    public SortedMap<Date, Integer> getCreatedPerDay() {
+        return createdPerDay;
+    }
+}
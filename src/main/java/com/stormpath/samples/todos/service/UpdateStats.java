@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.service;
+
+/**
+ * Contention statistics of the {@link TodoService#update(String, TodoMutator) updates} made to a {@link TodoService}.
+ * An update is retried whenever another change of the same todo was saved after the version it was based on, and
+ * falls back to locking the todo if it has been retried too often.
+ */
+public class UpdateStats {
+
+    private final long updates;
+    private final long retries;
+    private final long maxRetries;
+    private final long lockedUpdates;
+
+    /**
+     * @param updates       the number of updates that have been saved
+     * @param retries       the number of times an update had to be retried
+     * @param maxRetries    the highest number of retries a single update needed
+     * @param lockedUpdates the number of updates that had to lock the todo to be saved
+     */
+    public UpdateStats(long updates, long retries, long maxRetries, long lockedUpdates) {
+        this.updates = updates;
+        this.retries = retries;
+        this.maxRetries = maxRetries;
+        this.lockedUpdates = lockedUpdates;
+    }
+
+    public long getUpdates() {
+        return updates;
+    }
+
+    public long getRetries() {
+        return retries;
+    }
+
+    /**
+     * Returns the average number of retries per saved update.
+     */
+    public double getRetryRatio() {
+        return updates > 0 ? (double) retries / updates : 0;
+    }
+
+    public long getMaxRetries() {
+        return maxRetries;
+    }
+
+    public long getLockedUpdates() {
+        return lockedUpdates;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.servlet;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of compressed response bodies, so representations that have not changed since they were last sent are
+ * not serialized and compressed again.
+ * <p/>
+ * Entries are only ever served after the application confirmed that their entity tag is still current (see
+ * {@link CompressionFilter}), so they never need to be invalidated.  When the cache grows beyond its size limit,
+ * arbitrary entries are evicted until it is back under 90% of the limit.
+ */
+public class CompressedResponseCache {
+
+    //rough size of an entry, its headers and its map node, on top of the compressed bytes:
+    private static final int ENTRY_OVERHEAD = 400;
+
+    /**
+     * A compressed response body and the headers that describe it.
+     */
+    public static final class Entry {
+
+        private final String etag;
+        private final String contentType;
+        private final String lastModified;
+        private final String vary;
+        private final byte[] bytes;
+
+        public Entry(String etag, String contentType, String lastModified, String vary, byte[] bytes) {
+            this.etag = etag;
+            this.contentType = contentType;
+            this.lastModified = lastModified;
+            this.vary = vary;
+            this.bytes = bytes;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public String getVary() {
+            return vary;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        int size() {
+            return bytes.length + ENTRY_OVERHEAD;
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final long maxBytes;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    public CompressedResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public Entry get(String key) {
+        return entries.get(key);
+    }
+
+    public void put(String key, Entry entry) {
+        if (entry.size() > maxBytes) {
+            return;
+        }
+        Entry replaced = entries.put(key, entry);
+        long size = bytes.addAndGet(entry.size() - (replaced != null ? replaced.size() : 0));
+        if (size > maxBytes && evicting.compareAndSet(false, true)) {
+            try {
+                long target = maxBytes / 10 * 9;
+                Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator();
+                while (bytes.get() > target && i.hasNext()) {
+                    Map.Entry<String, Entry> e = i.next();
+                    if (entries.remove(e.getKey(), e.getValue())) {
+                        bytes.addAndGet(-e.getValue().size());
+                    }
+                }
+            } finally {
+                evicting.set(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,624 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.servlet;
+
+import com.stormpath.samples.todos.jersey.ObjectMapperProvider;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses responses with gzip or deflate, as accepted by the client.
+ * <p/>
+ * Only responses with a body larger than a threshold are compressed: up to that many bytes are held back, and if the
+ * response ends within them it goes out as is, with its length.  Anything beyond the threshold is compressed as it is
+ * written, so a streamed response is never held in memory as a whole.  {@link Deflater}s are reused through a
+ * {@link DeflaterPool}.
+ * <p/>
+ * Compressed {@code GET} responses with a strong entity tag are also kept in a {@link CompressedResponseCache}, as
+ * long as they are not larger than a maximum entry size.  When the same representation is requested again (same URL,
+ * {@code Accept}, pretty printing and encoding) without conditional headers, the request is made conditional on the
+ * cached entity tag before it is passed on.  If the application answers {@code 304 Not Modified} - which the todo
+ * controllers do without reading or serializing any todos - the cached bytes are sent as the {@code 200} response.
+ * <p/>
+ * The entity tag of a compressed response is the one of the uncompressed representation; caches keep the two apart
+ * through {@code Vary: Accept-Encoding}.
+ * <p/>
+ * Init parameters: {@code threshold} (bytes, default 1024), {@code level} (0-9, default 1), {@code poolSize}
+ * (idle deflaters kept per encoding, default 16), {@code cacheMaxBytes} (default 8 MB, {@code 0} disables the cache)
+ * and {@code cacheMaxEntryBytes} (default 256 KB).
+ */
+public class CompressionFilter implements Filter {
+
+    public static final int DEFAULT_THRESHOLD = 1024;
+    //the fastest level: most of the size reduction for a fraction of the CPU time of zlib's default level 6:
+    public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+    public static final int DEFAULT_POOL_SIZE = 16;
+    public static final long DEFAULT_CACHE_MAX_BYTES = 8 * 1024 * 1024;
+    public static final int DEFAULT_CACHE_MAX_ENTRY_BYTES = 256 * 1024;
+
+    private static final String GZIP = "gzip";
+    private static final String DEFLATE = "deflate";
+
+    //magic, deflate, no flags, no modification time, no extra flags, unknown OS:
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final String[] CONDITIONAL_HEADERS =
+            {"If-None-Match", "If-Match", "If-Modified-Since", "If-Unmodified-Since", "If-Range", "Range"};
+
+    private int threshold;
+    private int cacheMaxEntryBytes;
+    private DeflaterPool gzipDeflaters;
+    private DeflaterPool deflateDeflaters;
+    private CompressedResponseCache cache;
+
+    @Override
+    public void init(FilterConfig config) throws ServletException {
+        threshold = getInitParameter(config, "threshold", DEFAULT_THRESHOLD);
+        int level = getInitParameter(config, "level", DEFAULT_LEVEL);
+        int poolSize = getInitParameter(config, "poolSize", DEFAULT_POOL_SIZE);
+        gzipDeflaters = new DeflaterPool(level, true, poolSize);
+        deflateDeflaters = new DeflaterPool(level, false, poolSize);
+
+        String cacheMaxBytes = config.getInitParameter("cacheMaxBytes");
+        long maxBytes = cacheMaxBytes != null ? Long.parseLong(cacheMaxBytes) : DEFAULT_CACHE_MAX_BYTES;
+        cache = maxBytes > 0 ? new CompressedResponseCache(maxBytes) : null;
+        cacheMaxEntryBytes = getInitParameter(config, "cacheMaxEntryBytes", DEFAULT_CACHE_MAX_ENTRY_BYTES);
+    }
+
+    private static int getInitParameter(FilterConfig config, String name, int defaultValue) {
+        String value = config.getInitParameter(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    @Override
+    public void destroy() {
+        gzipDeflaters.clear();
+        deflateDeflaters.clear();
+    }
+
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+            throws IOException, ServletException {
+        if (!(req instanceof HttpServletRequest) || !(res instanceof HttpServletResponse)) {
+            chain.doFilter(req, res);
+            return;
+        }
+        HttpServletRequest request = (HttpServletRequest) req;
+        HttpServletResponse response = (HttpServletResponse) res;
+
+        response.addHeader("Vary", "Accept-Encoding");
+        String encoding = selectEncoding(request.getHeader("Accept-Encoding"));
+        if (encoding == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        String key = null;
+        CompressedResponseCache.Entry cached = null;
+        if (cache != null && "GET".equals(request.getMethod()) && !isConditional(request)) {
+            key = getCacheKey(request, encoding);
+            cached = cache.get(key);
+            if (cached != null) {
+                request = new ConditionalRequest(request, cached.getEtag());
+            }
+        }
+
+        CompressingResponse wrapper = new CompressingResponse(response, encoding, key, cached != null);
+        try {
+            chain.doFilter(request, wrapper);
+            if (wrapper.notModified) {
+                writeCached(response, encoding, cached);
+            } else {
+                wrapper.finish();
+            }
+        } finally {
+            wrapper.release();
+        }
+    }
+
+    /**
+     * Returns the encoding with the highest quality in the specified {@code Accept-Encoding} header, preferring gzip
+     * when both are as good, or {@code null} if neither is acceptable.
+     */
+    static String selectEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            String name = params[0].trim();
+            float q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (name.equalsIgnoreCase(GZIP) || name.equalsIgnoreCase("x-gzip")) {
+                gzip = q;
+            } else if (name.equalsIgnoreCase(DEFLATE)) {
+                deflate = q;
+            } else if (name.equals("*")) {
+                any = q;
+            }
+        }
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (deflate < 0) {
+            deflate = any;
+        }
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    private static boolean isConditional(HttpServletRequest request) {
+        for (String header : CONDITIONAL_HEADERS) {
+            if (request.getHeader(header) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getCacheKey(HttpServletRequest request, String encoding) {
+        StringBuilder key = new StringBuilder(encoding).append(' ').append(request.getRequestURL());
+        String query = request.getQueryString();
+        if (query != null) {
+            key.append('?').append(query);
+        }
+        return key.append(' ').append(request.getHeader("Accept"))
+                .append(' ').append(request.getHeader(ObjectMapperProvider.PRETTY_HEADER)).toString();
+    }
+
+    private static void writeCached(HttpServletResponse response, String encoding,
+                                    CompressedResponseCache.Entry cached) throws IOException {
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(cached.getContentType());
+        response.setHeader("ETag", cached.getEtag());
+        if (cached.getLastModified() != null) {
+            response.setHeader("Last-Modified", cached.getLastModified());
+        }
+        response.setHeader("Vary", cached.getVary());
+        response.setHeader("Content-Encoding", encoding);
+        response.setContentLength(cached.getBytes().length);
+        response.getOutputStream().write(cached.getBytes());
+    }
+
+    /**
+     * A request made conditional on the entity tag of a cached response.
+     */
+    private static class ConditionalRequest extends HttpServletRequestWrapper {
+
+        private static final String IF_NONE_MATCH = "If-None-Match";
+
+        private final String etag;
+
+        ConditionalRequest(HttpServletRequest request, String etag) {
+            super(request);
+            this.etag = etag;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return IF_NONE_MATCH.equalsIgnoreCase(name) ? etag : super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            return IF_NONE_MATCH.equalsIgnoreCase(name) ?
+                    Collections.enumeration(Collections.singletonList(etag)) : super.getHeaders(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaderNames() {
+            List<String> names = Collections.list(super.getHeaderNames());
+            names.add(IF_NONE_MATCH);
+            return Collections.enumeration(names);
+        }
+    }
+
+    private class CompressingResponse extends HttpServletResponseWrapper {
+
+        private final HttpServletResponse target;
+        private final String encoding;
+        //the cache key to store the compressed body under, or null if it is not cached:
+        private final String key;
+        //whether a 304 answers the filter's own condition rather than the client's:
+        private final boolean conditional;
+
+        private int status = SC_OK;
+        private boolean notModified;
+        private boolean encoded;
+        private CompressingStream stream;
+        private PrintWriter writer;
+
+        CompressingResponse(HttpServletResponse response, String encoding, String key, boolean conditional) {
+            super(response);
+            this.target = response;
+            this.encoding = encoding;
+            this.key = key;
+            this.conditional = conditional;
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            if (conditional && sc == SC_NOT_MODIFIED) {
+                notModified = true;
+                return;
+            }
+            status = sc;
+            super.setStatus(sc);
+        }
+
+        @SuppressWarnings("deprecation")
+        @Override
+        public void setStatus(int sc, String sm) {
+            if (conditional && sc == SC_NOT_MODIFIED) {
+                notModified = true;
+                return;
+            }
+            status = sc;
+            super.setStatus(sc, sm);
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            status = sc;
+            encoded = true;
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            status = sc;
+            encoded = true;
+            super.sendError(sc, msg);
+        }
+
+        //the length is set when the response is finished - it is not known until then whether it is compressed:
+        @Override
+        public void setContentLength(int len) {
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if (!isContentHeader(name, value)) {
+                super.setHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (!isContentHeader(name, value)) {
+                super.addHeader(name, value);
+            }
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            if (!"Content-Length".equalsIgnoreCase(name)) {
+                super.setIntHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            if (!"Content-Length".equalsIgnoreCase(name)) {
+                super.addIntHeader(name, value);
+            }
+        }
+
+        private boolean isContentHeader(String name, String value) {
+            if ("Content-Encoding".equalsIgnoreCase(name)) {
+                //already encoded by the application:
+                encoded = true;
+                return false;
+            }
+            return "Content-Length".equalsIgnoreCase(name);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter() has already been called.");
+            }
+            if (stream == null) {
+                stream = new CompressingStream(this);
+            }
+            return stream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                if (stream != null) {
+                    throw new IllegalStateException("getOutputStream() has already been called.");
+                }
+                stream = new CompressingStream(this);
+                writer = new PrintWriter(new OutputStreamWriter(stream, getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            } else if (stream != null) {
+                stream.flush();
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            status = SC_OK;
+            encoded = false;
+            if (stream != null) {
+                stream.resetBuffer();
+            }
+        }
+
+        @Override
+        public void resetBuffer() {
+            super.resetBuffer();
+            if (stream != null) {
+                stream.resetBuffer();
+            }
+        }
+
+        boolean isCompressible() {
+            return !encoded && status != SC_NO_CONTENT && status != SC_NOT_MODIFIED;
+        }
+
+        boolean isCacheable() {
+            if (key == null || status != SC_OK) {
+                return false;
+            }
+            String etag = getHeader("ETag");
+            String cacheControl = getHeader("Cache-Control");
+            return etag != null && !etag.startsWith("W/") && getHeader("Set-Cookie") == null &&
+                    (cacheControl == null || !(cacheControl.contains("no-store") || cacheControl.contains("private")));
+        }
+
+        void finish() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            if (stream != null) {
+                stream.finish();
+            }
+        }
+
+        void release() {
+            if (stream != null) {
+                stream.release();
+            }
+        }
+    }
+
+    private class CompressingStream extends ServletOutputStream {
+
+        private static final int BUFFERING = 0;
+        private static final int COMPRESSING = 1;
+        private static final int PLAIN = 2;
+        private static final int FINISHED = 3;
+
+        private final CompressingResponse response;
+        private final byte[] single = new byte[1];
+        private byte[] buffer;
+        private int count;
+        private int state = BUFFERING;
+
+        private OutputStream out;
+        private DeflaterPool pool;
+        private Deflater deflater;
+        private CRC32 crc;
+        private byte[] deflated;
+        //the compressed body kept for the cache, or null if it is not (or no longer) cacheable:
+        private ByteArrayOutputStream capture;
+
+        CompressingStream(CompressingResponse response) {
+            this.response = response;
+            this.buffer = new byte[threshold];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            switch (state) {
+                case BUFFERING:
+                    if (count + len <= buffer.length) {
+                        System.arraycopy(b, off, buffer, count, len);
+                        count += len;
+                        return;
+                    }
+                    start();
+                    write(b, off, len);
+                    return;
+                case COMPRESSING:
+                    if (crc != null) {
+                        crc.update(b, off, len);
+                    }
+                    deflater.setInput(b, off, len);
+                    while (!deflater.needsInput()) {
+                        deflate();
+                    }
+                    return;
+                case PLAIN:
+                    out.write(b, off, len);
+                    return;
+                default:
+                    throw new IOException("The response has already been finished.");
+            }
+        }
+
+        //called once the response has grown beyond the threshold:
+        private void start() throws IOException {
+            out = response.target.getOutputStream();
+            if (!response.isCompressible()) {
+                state = PLAIN;
+                out.write(buffer, 0, count);
+                buffer = null;
+                return;
+            }
+            response.target.setHeader("Content-Encoding", response.encoding);
+            if (response.isCacheable()) {
+                capture = new ByteArrayOutputStream(Math.min(cacheMaxEntryBytes, 8192));
+            }
+            boolean gzip = GZIP.equals(response.encoding);
+            pool = gzip ? gzipDeflaters : deflateDeflaters;
+            deflater = pool.borrow();
+            deflated = new byte[8192];
+            if (gzip) {
+                crc = new CRC32();
+                emit(GZIP_HEADER, GZIP_HEADER.length);
+            }
+            state = COMPRESSING;
+            write(buffer, 0, count);
+            buffer = null;
+        }
+
+        private void deflate() throws IOException {
+            int n = deflater.deflate(deflated, 0, deflated.length);
+            if (n > 0) {
+                emit(deflated, n);
+            }
+        }
+
+        private void emit(byte[] b, int len) throws IOException {
+            out.write(b, 0, len);
+            if (capture != null) {
+                if (capture.size() + len > cacheMaxEntryBytes) {
+                    capture = null;
+                } else {
+                    capture.write(b, 0, len);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            //a buffered response stays buffered until it is known whether it is large enough to be compressed:
+            if (state == COMPRESSING || state == PLAIN) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+
+        void resetBuffer() {
+            if (state == BUFFERING) {
+                count = 0;
+            }
+        }
+
+        void finish() throws IOException {
+            switch (state) {
+                case BUFFERING:
+                    response.target.setContentLength(count);
+                    if (count > 0) {
+                        response.target.getOutputStream().write(buffer, 0, count);
+                    }
+                    break;
+                case COMPRESSING:
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        deflate();
+                    }
+                    if (crc != null) {
+                        byte[] trailer = new byte[8];
+                        writeIntLE(trailer, 0, (int) crc.getValue());
+                        writeIntLE(trailer, 4, deflater.getTotalIn());
+                        emit(trailer, trailer.length);
+                    }
+                    release();
+                    if (capture != null) {
+                        cache.put(response.key, new CompressedResponseCache.Entry(response.getHeader("ETag"),
+                                response.getContentType(), response.getHeader("Last-Modified"),
+                                join(response.getHeaders("Vary")), capture.toByteArray()));
+                    }
+                    break;
+                default:
+                    break;
+            }
+            state = FINISHED;
+        }
+
+        void release() {
+            if (deflater != null) {
+                pool.release(deflater);
+                deflater = null;
+            }
+        }
+    }
+
+    private static void writeIntLE(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >> 8);
+        b[off + 2] = (byte) (value >> 16);
+        b[off + 3] = (byte) (value >> 24);
+    }
+
+    private static String join(Iterable<String> values) {
+        StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+}
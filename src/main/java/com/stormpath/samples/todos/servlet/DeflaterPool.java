@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.servlet;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Bounded pool of {@link Deflater}s with the same settings.
+ * <p/>
+ * A {@code Deflater} holds on to a sizeable native zlib stream until it is {@link Deflater#end() ended}, so creating
+ * one per response costs both time and native memory that is only freed by finalization.  Pooled deflaters are
+ * {@link Deflater#reset() reset} and reused instead.  At most {@code maxIdle} deflaters are kept; any further ones
+ * that are returned are ended right away.
+ */
+public class DeflaterPool {
+
+    private final int level;
+    private final boolean nowrap;
+    private final BlockingQueue<Deflater> idle;
+
+    /**
+     * @param level   the compression level of the deflaters
+     * @param nowrap  {@code true} for raw deflate data (as wrapped by gzip), {@code false} for the zlib format
+     * @param maxIdle the maximum number of idle deflaters to keep
+     */
+    public DeflaterPool(int level, boolean nowrap, int maxIdle) {
+        this.level = level;
+        this.nowrap = nowrap;
+        this.idle = new ArrayBlockingQueue<Deflater>(maxIdle);
+    }
+
+    /**
+     * Returns an idle deflater, or a new one if there is none.
+     */
+    public Deflater borrow() {
+        Deflater deflater = idle.poll();
+        return deflater != null ? deflater : new Deflater(level, nowrap);
+    }
+
+    /**
+     * Returns a deflater borrowed from this pool, whether it has finished its data or not.
+     */
+    public void release(Deflater deflater) {
+        deflater.reset();
+        if (!idle.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Ends all idle deflaters.
+     */
+    public void clear() {
+        Deflater deflater;
+        while ((deflater = idle.poll()) != null) {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,519 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.servlet;
+
+import com.stormpath.samples.todos.controller.ChangesResource;
+import com.stormpath.samples.todos.controller.Link;
+import com.stormpath.samples.todos.entity.Todo;
+import com.stormpath.samples.todos.error.RestError;
+import com.stormpath.samples.todos.http.HttpStatus;
+import com.stormpath.samples.todos.jersey.ObjectMapperProvider;
+import com.stormpath.samples.todos.service.ChangeListener;
+import com.stormpath.samples.todos.service.ChangeSet;
+import com.stormpath.samples.todos.service.ResyncRequiredException;
+import com.stormpath.samples.todos.service.TodoService;
+import com.stormpath.samples.todos.service.TodoServices;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes todo changes to subscribers as they happen, so clients do not have to poll the todo collection.
+ * <p/>
+ * Clients that accept {@code text/event-stream} get a Server-Sent Events stream: every event is a
+ * {@link ChangesResource} with the todos that changed since the previous event, and its id is the change sequence
+ * number, so a reconnecting browser resumes where it left off through the {@code Last-Event-ID} header.  Other clients
+ * (or any client passing {@code poll=true}) long-poll: the request is answered as soon as there are changes, or with
+ * an empty change set after {@link #POLL_TIMEOUT} ms.  Both start after the change given by the {@code since} query
+ * parameter, or after the latest change if there is none.
+ * <p/>
+ * Waiting subscribers are parked as asynchronous requests and hold no thread.  A single dispatcher thread is woken by
+ * changes, encodes the events of the stream subscribers that are behind - once for all subscribers that are at the
+ * same change - and adds them to each subscriber's queue of at most {@link #MAX_PENDING_EVENTS} events.  Writer
+ * threads then send every queued event of a subscriber in one go.  Servlet 3.0 has no non-blocking writes, so a send
+ * to a client that stops reading blocks its writer thread; the writer pool grows beyond its core threads so that
+ * other subscribers are not held up by it, and a subscriber whose queue overflows while it is blocked is disconnected
+ * instead of buffering events without bounds.  Subscribers whose changes have fallen out of the service's change log
+ * receive a {@code resync} event and are disconnected, as are subscribers a single write to has been blocked on for
+ * more than {@link #MAX_WRITE_TIME} ms.
+ * <p/>
+ * The number of core writer threads can be set with the {@code writerThreads} init parameter (default 4) and the
+ * maximum number with the {@code maxWriterThreads} init parameter (default 64).
+ */
+public class TodoEventsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String PATH = Link.TODOS + "/events";
+
+    public static final long HEARTBEAT_INTERVAL = 15000;
+    public static final long POLL_TIMEOUT = 30000;
+    public static final long MAX_WRITE_TIME = 30000;
+    public static final int MAX_PENDING_EVENTS = 32;
+
+    private static final int DEFAULT_WRITER_THREADS = 4;
+    private static final int DEFAULT_MAX_WRITER_THREADS = 64;
+    private static final String EVENT_STREAM = "text/event-stream";
+
+    private static final byte[] HEARTBEAT = toBytes(":\n\n");
+
+    private static final Logger log = LoggerFactory.getLogger(TodoEventsServlet.class);
+
+    private final Set<Subscriber> subscribers = Collections.newSetFromMap(new ConcurrentHashMap<Subscriber, Boolean>());
+
+    private final Object signal = new Object();
+    private boolean changed; //guarded by signal
+
+    private TodoService todoService;
+    private ObjectMapperProvider mappers;
+    private ChangeListener listener;
+    private ThreadPoolExecutor writers;
+    private Thread dispatcher;
+    private volatile boolean running;
+
+    @Override
+    public void init() throws ServletException {
+        todoService = TodoServices.getInstance();
+        mappers = new ObjectMapperProvider();
+
+        String threads = getInitParameter("writerThreads");
+        String maxThreads = getInitParameter("maxWriterThreads");
+        int coreSize = threads != null ? Integer.parseInt(threads) : DEFAULT_WRITER_THREADS;
+        int maxSize = maxThreads != null ? Integer.parseInt(maxThreads) : DEFAULT_MAX_WRITER_THREADS;
+        final AtomicInteger count = new AtomicInteger();
+        //sends are handed to a thread directly rather than queued, so that they never wait behind a blocked one:
+        writers = new ThreadPoolExecutor(coreSize, Math.max(coreSize, maxSize), 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "todo-events-writer-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+        running = true;
+        dispatcher = new Thread("todo-events-dispatcher") {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        };
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+
+        //called while the change is applied, so it only wakes up the dispatcher:
+        listener = new ChangeListener() {
+            @Override
+            public void changed(long seq, String todoId, boolean deleted) {
+                synchronized (signal) {
+                    changed = true;
+                    signal.notify();
+                }
+            }
+        };
+        todoService.addChangeListener(listener);
+    }
+
+    @Override
+    public void destroy() {
+        todoService.removeChangeListener(listener);
+        running = false;
+        dispatcher.interrupt();
+        for (Subscriber subscriber : subscribers) {
+            subscriber.close();
+        }
+        writers.shutdownNow();
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String since = request.getParameter("since");
+        if (since == null) {
+            since = request.getHeader("Last-Event-ID");
+        }
+        boolean pretty = ObjectMapperProvider.isPretty(request.getParameter(ObjectMapperProvider.PRETTY_PARAM),
+                request.getHeader(ObjectMapperProvider.PRETTY_HEADER));
+        long seq;
+        try {
+            seq = since != null ? Long.parseLong(since) : todoService.getChangeSeq();
+        } catch (NumberFormatException e) {
+            writeError(response, pretty, HttpStatus.BAD_REQUEST,
+                    new IllegalArgumentException("The since query parameter must be a change sequence number."));
+            return;
+        }
+
+        String accept = request.getHeader("Accept");
+        boolean stream = accept != null && accept.contains(EVENT_STREAM) && !"true".equals(request.getParameter("poll"));
+
+        String url = request.getRequestURL().toString();
+        String fqBasePath = url.substring(0, url.length() - request.getRequestURI().length()) +
+                request.getContextPath();
+        Subscriber subscriber = new Subscriber(fqBasePath, stream, pretty, seq);
+
+        if (stream) {
+            response.setContentType(EVENT_STREAM);
+            response.setCharacterEncoding("UTF-8");
+            response.setHeader("Cache-Control", "no-cache");
+            //commits the response, so the client knows the stream is open before the first event:
+            response.getOutputStream().write(":\n\n".getBytes("UTF-8"));
+            response.flushBuffer();
+        } else {
+            //answer right away if there is something to return already:
+            ChangeSet changes;
+            try {
+                changes = todoService.getChangesSince(seq);
+            } catch (ResyncRequiredException e) {
+                writeError(response, pretty, HttpStatus.GONE, e);
+                return;
+            }
+            if (!isEmpty(changes)) {
+                writeChanges(response, subscriber, changes);
+                return;
+            }
+        }
+
+        AsyncContext context = request.startAsync();
+        context.setTimeout(stream ? 0 : POLL_TIMEOUT);
+        context.addListener(subscriber);
+        subscriber.context = context;
+        subscribers.add(subscriber);
+        //a change made before the subscriber was added would not wake it up:
+        if (seq < todoService.getChangeSeq()) {
+            synchronized (signal) {
+                changed = true;
+                signal.notify();
+            }
+        }
+    }
+
+    private void dispatch() {
+        long lastHeartbeat = System.currentTimeMillis();
+        while (running) {
+            synchronized (signal) {
+                try {
+                    if (!changed) {
+                        signal.wait(HEARTBEAT_INTERVAL);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                changed = false;
+            }
+            long now = System.currentTimeMillis();
+            boolean heartbeat = now - lastHeartbeat >= HEARTBEAT_INTERVAL;
+            if (heartbeat) {
+                lastHeartbeat = now;
+            }
+            long seq = todoService.getChangeSeq();
+            //subscribers at the same change share its change set and, for the same base path, its encoded event:
+            Map<Long, ChangeSet> changeSets = new HashMap<Long, ChangeSet>();
+            Map<String, byte[]> events = new HashMap<String, byte[]>();
+            for (Subscriber subscriber : subscribers) {
+                if (subscriber.isBlocked(now)) {
+                    log.debug("Disconnecting todo event subscriber blocked for more than {} ms.", MAX_WRITE_TIME);
+                    subscriber.close();
+                } else if (!subscriber.stream) {
+                    if (subscriber.seq < seq) {
+                        subscriber.schedule();
+                    }
+                } else {
+                    try {
+                        if (subscriber.seq < seq) {
+                            subscriber.enqueueChanges(changeSets, events);
+                        } else if (heartbeat && subscriber.pending.isEmpty()) {
+                            subscriber.enqueue(HEARTBEAT);
+                        }
+                    } catch (IOException e) {
+                        log.warn("Unable to encode todo events.", e);
+                        subscriber.close();
+                    }
+                    if (!subscriber.pending.isEmpty()) {
+                        subscriber.schedule();
+                    }
+                }
+            }
+        }
+    }
+
+    private byte[] encode(Subscriber subscriber, ChangeSet changes) throws IOException {
+        ByteArrayOutputStream event = new ByteArrayOutputStream(256);
+        event.write(toBytes("id: " + changes.getSeq() + "\nevent: changes\ndata: "));
+        //an event's data must not span lines:
+        writeJson(event, subscriber.toResource(changes), false);
+        event.write('\n');
+        event.write('\n');
+        return event.toByteArray();
+    }
+
+    private static byte[] toBytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); //UTF-8 is always supported
+        }
+    }
+
+    private static boolean isEmpty(ChangeSet changes) {
+        return changes.getChanged().isEmpty() && changes.getDeletedIds().isEmpty();
+    }
+
+    private void writeChanges(HttpServletResponse response, Subscriber subscriber, ChangeSet changes)
+            throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        writeJson(response.getOutputStream(), subscriber.toResource(changes), subscriber.pretty);
+    }
+
+    private void writeError(HttpServletResponse response, boolean pretty, HttpStatus status, Exception e)
+            throws IOException {
+        response.setStatus(status.value());
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        RestError error = new RestError.Builder().setStatus(status).setMessage(e.getMessage()).setThrowable(e).build();
+        writeJson(response.getOutputStream(), error.toMap(), pretty);
+    }
+
+    private void writeJson(OutputStream out, Object value, boolean pretty) throws IOException {
+        ObjectMapper mapper = mappers.getMapper(pretty);
+        JsonGenerator gen = mapper.getJsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+        if (pretty) {
+            gen.useDefaultPrettyPrinter();
+        }
+        mapper.writeValue(gen, value);
+        gen.flush();
+    }
+
+    private class Subscriber implements Runnable, AsyncListener {
+
+        private final String fqBasePath;
+        private final boolean stream;
+        private final boolean pretty;
+        //encoded events that have not been sent yet, only used by stream subscribers:
+        private final BlockingQueue<byte[]> pending = new ArrayBlockingQueue<byte[]>(MAX_PENDING_EVENTS);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private volatile AsyncContext context;
+        //the last change queued for (or, when long-polling, sent to) the subscriber:
+        private volatile long seq;
+        //set once the queue ends with a resync event, after which the subscriber is disconnected:
+        private volatile boolean ending;
+        //when the current write started, or 0 if the subscriber is not being written to:
+        private volatile long writeStarted;
+
+        Subscriber(String fqBasePath, boolean stream, boolean pretty, long seq) {
+            this.fqBasePath = fqBasePath;
+            this.stream = stream;
+            this.pretty = pretty;
+            this.seq = seq;
+        }
+
+        ChangesResource toResource(ChangeSet changes) {
+            return new ChangesResource(fqBasePath, URI.create(fqBasePath + PATH + "?since=" + changes.getSince()),
+                    URI.create(fqBasePath + PATH + "?since=" + changes.getSeq()), changes);
+        }
+
+        boolean isBlocked(long now) {
+            long started = writeStarted;
+            return started != 0 && now - started > MAX_WRITE_TIME;
+        }
+
+        //called by the dispatcher thread only:
+        void enqueueChanges(Map<Long, ChangeSet> changeSets, Map<String, byte[]> events) throws IOException {
+            if (ending) {
+                return;
+            }
+            long since = seq;
+            ChangeSet changes = changeSets.get(since);
+            if (changes == null) {
+                try {
+                    changes = todoService.getChangesSince(since);
+                } catch (ResyncRequiredException e) {
+                    //too far behind to catch up:
+                    ending = true;
+                    enqueue(toBytes("event: resync\ndata: " + e.getMessage() + "\n\n"));
+                    return;
+                }
+                changeSets.put(since, changes);
+            }
+            if (!isEmpty(changes)) {
+                String key = since + " " + fqBasePath;
+                byte[] event = events.get(key);
+                if (event == null) {
+                    event = encode(this, changes);
+                    events.put(key, event);
+                }
+                enqueue(event);
+            }
+            seq = changes.getSeq();
+        }
+
+        //called by the dispatcher thread only:
+        void enqueue(byte[] event) {
+            if (!pending.offer(event)) {
+                log.debug("Disconnecting todo event subscriber more than {} events behind.", MAX_PENDING_EVENTS);
+                close();
+            }
+        }
+
+        void schedule() {
+            //if a write is already scheduled or running, the dispatcher schedules another one once it is done:
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    writers.execute(this);
+                } catch (RejectedExecutionException e) {
+                    //every writer thread is busy, or the servlet is being destroyed - the dispatcher retries with the
+                    //next change or heartbeat:
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (closed.get()) {
+                    return;
+                }
+                writeStarted = System.currentTimeMillis();
+                if (stream) {
+                    send();
+                } else {
+                    poll();
+                }
+            } catch (IOException e) {
+                //the client went away:
+                close();
+            } catch (RuntimeException e) {
+                log.warn("Unable to write todo events.", e);
+                close();
+            } finally {
+                writeStarted = 0;
+                scheduled.set(false);
+            }
+            //events queued or changes made while this write was running are picked up here:
+            if (!closed.get() && (stream ? !pending.isEmpty() : seq < todoService.getChangeSeq())) {
+                schedule();
+            }
+        }
+
+        private void send() throws IOException {
+            OutputStream out = context.getResponse().getOutputStream();
+            boolean any = false;
+            for (byte[] event = pending.poll(); event != null; event = pending.poll()) {
+                out.write(event);
+                any = true;
+            }
+            if (any) {
+                out.flush();
+            }
+            if (ending && pending.isEmpty()) {
+                close();
+            }
+        }
+
+        private void poll() throws IOException {
+            HttpServletResponse response = (HttpServletResponse) context.getResponse();
+            ChangeSet changes;
+            try {
+                changes = todoService.getChangesSince(seq);
+            } catch (ResyncRequiredException e) {
+                if (closed.compareAndSet(false, true)) {
+                    writeError(response, pretty, HttpStatus.GONE, e);
+                    complete();
+                }
+                return;
+            }
+            if (!isEmpty(changes) && closed.compareAndSet(false, true)) {
+                writeChanges(response, this, changes);
+                complete();
+            }
+        }
+
+        void close() {
+            if (closed.compareAndSet(false, true)) {
+                complete();
+            }
+        }
+
+        private void complete() {
+            subscribers.remove(this);
+            try {
+                context.complete();
+            } catch (IllegalStateException e) {
+                //already completed by the container
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            //only long polls time out - answer with the (empty) changes since the requested sequence number:
+            if (closed.compareAndSet(false, true)) {
+                HttpServletResponse response = (HttpServletResponse) event.getAsyncContext().getResponse();
+                long s = seq;
+                writeChanges(response, this,
+                        new ChangeSet(s, s, Collections.<Todo>emptyList(), Collections.<String>emptyList()));
+                complete();
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            closed.set(true);
+            subscribers.remove(this);
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            closed.set(true);
+            subscribers.remove(this);
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, in-memory log of the most recent changes made to a {@link TodoTable}.
+ * <p/>
+ * Every change is stored in a ring buffer under its sequence number, which is the version the table gave it, so the
+ * log only ever remembers the last {@code capacity} changes.  Deletions are recorded as tombstones.  Changes are
+ * appended by the table while it holds its lock, so their sequence numbers follow the order in which they were
+ * applied; readers never lock and detect slots that were overwritten while they were reading them.
+ */
+public class ChangeLog {
+
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    /**
+     * A single change: the record as stored in the table, or its tombstone if it was deleted.
+     */
+    public static final class Change {
+
+        private final long seq;
+        private final TodoRecord record;
+        private final boolean deleted;
+
+        Change(long seq, TodoRecord record, boolean deleted) {
+            this.seq = seq;
+            this.record = record;
+            this.deleted = deleted;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public TodoRecord getRecord() {
+            return record;
+        }
+
+        public boolean isDeleted() {
+            return deleted;
+        }
+    }
+
+    /**
+     * Notified of every change appended to a log.  Called while the table lock is held, so implementations must
+     * return quickly and must not call back into the table.
+     */
+    public interface Listener {
+
+        void appended(Change change);
+    }
+
+    private final AtomicReferenceArray<Change> slots;
+    private final int mask;
+    private final long firstSeq;
+    private volatile long lastSeq;
+    private volatile Listener listener;
+
+    /**
+     * @param capacity the number of changes to remember, rounded up to a power of two
+     * @param firstSeq the sequence number preceding the first change
+     */
+    public ChangeLog(int capacity, long firstSeq) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be greater than zero.");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<Change>(size);
+        this.mask = size - 1;
+        this.firstSeq = firstSeq;
+        this.lastSeq = firstSeq;
+    }
+
+    /**
+     * Returns the sequence number of the most recent change.
+     *
+     * @return the sequence number of the most recent change.
+     */
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    //called by the owning table with its lock held, so there is only ever one writer:
+    void append(long seq, TodoRecord record, boolean deleted) {
+        if (seq <= lastSeq) {
+            throw new IllegalArgumentException("Sequence numbers must increase.");
+        }
+        Change change = new Change(seq, record, deleted);
+        slots.set((int) seq & mask, change);
+        lastSeq = seq; //publishes the change to readers
+        Listener l = listener;
+        if (l != null) {
+            l.appended(change);
+        }
+    }
+
+    /**
+     * Returns all changes made after the change with the specified sequence number, oldest first, or {@code null} if
+     * some of them are no longer in the log (or the sequence number was never issued by this log).
+     *
+     * @param seq the sequence number of the last change already seen
+     * @return the changes made after {@code seq}, or {@code null} if they are not all available.
+     */
+    public List<Change> since(long seq) {
+        long last = lastSeq;
+        if (seq < firstSeq || seq > last || last - seq > slots.length()) {
+            return null;
+        }
+        List<Change> changes = new ArrayList<Change>((int) (last - seq));
+        for (long s = seq + 1; s <= last; s++) {
+            Change change = slots.get((int) s & mask);
+            if (change == null || change.seq != s) {
+                //overwritten by newer changes while reading:
+                return null;
+            }
+            changes.add(change);
+        }
+        return changes;
+    }
+}
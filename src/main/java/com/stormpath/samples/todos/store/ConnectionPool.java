@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.store;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of JDBC connections to one database, each with a cache of its prepared statements.
+ * <p/>
+ * Opening a connection and preparing (parsing and planning) a statement both cost far more than executing a simple
+ * statement, so connections are opened on demand, up to {@code maxSize}, and kept open for the next caller, and each
+ * connection prepares a given SQL string only once.  A caller that finds all connections in use waits for one to be
+ * released.
+ */
+public class ConnectionPool {
+
+    public static final long DEFAULT_TIMEOUT = 30000; //millis
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final Semaphore permits;
+    private final ConcurrentLinkedQueue<PooledConnection> idle = new ConcurrentLinkedQueue<PooledConnection>();
+    private volatile boolean closed;
+
+    /**
+     * @param url      the JDBC url of the database
+     * @param user     the database user
+     * @param password the password of the user
+     * @param maxSize  the maximum number of connections open at the same time
+     */
+    public ConnectionPool(String url, String user, String password, int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Maximum pool size must be positive.");
+        }
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Returns an idle connection, or a new one if there is none and the pool is not full.  Otherwise waits up to
+     * {@link #DEFAULT_TIMEOUT} milliseconds for a connection to be released.
+     *
+     * @return a connection that must be {@link #release(PooledConnection) released} or
+     *         {@link #discard(PooledConnection) discarded} once it is no longer used.
+     * @throws SQLException if a new connection cannot be opened
+     */
+    public PooledConnection borrow() throws SQLException {
+        if (closed) {
+            throw new IllegalStateException("The connection pool has been closed.");
+        }
+        try {
+            if (!permits.tryAcquire(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("Timed out waiting for a connection to " + url + ".");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a connection to " + url + ".", e);
+        }
+        PooledConnection connection = idle.poll();
+        if (connection != null) {
+            return connection;
+        }
+        try {
+            return new PooledConnection(DriverManager.getConnection(url, user, password));
+        } catch (SQLException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a connection borrowed from this pool, which must not have a transaction in progress.
+     */
+    public void release(PooledConnection connection) {
+        if (closed) {
+            connection.close();
+        } else {
+            idle.offer(connection);
+        }
+        permits.release();
+    }
+
+    /**
+     * Closes a connection borrowed from this pool instead of returning it, because it failed in a way that may have
+     * left it unusable.
+     */
+    public void discard(PooledConnection connection) {
+        connection.close();
+        permits.release();
+    }
+
+    /**
+     * Closes all idle connections.  Connections that are still borrowed are closed when they are released.
+     */
+    public void close() {
+        closed = true;
+        PooledConnection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * A connection of the pool along with the statements prepared on it.
+     */
+    public static final class PooledConnection {
+
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        public Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Returns the statement prepared for {@code sql} on this connection, preparing it on first use.  The
+         * statement stays open for as long as the connection, so it must not be closed by the caller.
+         *
+         * @param sql the SQL of the statement
+         * @return the prepared statement, never {@code null}.
+         * @throws SQLException if the statement cannot be prepared
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        void close() {
+            try {
+                //closes the cached statements as well:
+                connection.close();
+            } catch (SQLException e) {
+                //nothing left to release
+            }
+        }
+    }
+}
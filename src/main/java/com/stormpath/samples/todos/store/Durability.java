@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.store;
+
+/**
+ * Controls when a {@link WriteAheadLog} forces appended records to disk, trading write latency for the amount of
+ * data that may be lost if the machine (not just the JVM) crashes.
+ */
+public enum Durability {
+
+    /**
+     * Every write waits until its record has been forced to disk.  Writers that arrive while a force is in progress
+     * are batched into the next force (group commit), so the cost of an fsync is shared by all concurrent writers.
+     */
+    SYNC,
+
+    /**
+     * Writes return as soon as their record has been handed to the operating system.  The log is forced in the
+     * background every sync interval, so at most one interval of writes can be lost.
+     */
+    PERIODIC,
+
+    /**
+     * The log is never forced explicitly (other than when it is closed); flushing is left to the operating system.
+     */
+    ASYNC;
+
+    public static Durability fromString(String value) {
+        for (Durability d : values()) {
+            if (d.name().equalsIgnoreCase(value)) {
+                return d;
+            }
+        }
+        throw new IllegalArgumentException("Unknown durability '" + value + "'.  Expected one of: sync, periodic, async.");
+    }
+}
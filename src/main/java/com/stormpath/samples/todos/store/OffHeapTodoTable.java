@@ -0,0 +1,1050 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.store;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Multi-version store of {@link TodoRecord}s that keeps the records, and the indexes to find them, in direct memory
+ * outside of the Java heap, so that the garbage collector neither has to trace nor copy them however many todos are
+ * stored.
+ * <p/>
+ * Every version of a record is serialized into a block of a {@link SlabAllocator slab}, with the address of the
+ * version before it, and is only decoded into a {@link TodoRecord} when it is read.  Records are found by id through
+ * an open-addressing hash index held in a direct buffer, whose slots hold the address of the latest version along
+ * with 16 bits of the id's hash (so most probes of other ids never touch their records).  They are additionally kept
+ * in a table of rows in creation order - sequence number, creation time, address and the latest version with its
+ * done and removed flags - which is what iteration, paging and the done filter walk.  Rows are held in chunks of
+ * direct memory, so the table grows without copying.
+ * <p/>
+ * As long as todos are added in order of their creation time, which is the case unless they are imported, the rows
+ * are in creation time order as well and serve creation time range queries with a binary search.  Otherwise the
+ * sequence numbers are sorted by creation time on the heap (in two primitive arrays, which are not traced either) the
+ * first time such a query needs them, and kept up to date until a todo is added out of order again.
+ * <p/>
+ * Snapshots work like those of {@link TodoTable}: a snapshot sees the latest version of each todo that is not newer
+ * than its own version.  A version that has been replaced or removed is freed, and its block reused, once no open
+ * snapshot can read it any more; a row whose todo has been freed is dropped when the rows are compacted.
+ * <p/>
+ * Mutations take the write lock of a read-write lock.  Reads decode their records with the read lock held, a batch at
+ * a time, so memory is never freed underneath a reader.  Counts, the version and the last modification time are
+ * readable without locking.
+ * <p/>
+ * The amount of direct memory is limited by {@code -XX:MaxDirectMemorySize}, which defaults to the maximum heap size.
+ * Slabs are allocated as needed and are not given back, and the index cannot grow beyond 2<sup>28</sup> slots.
+ */
+public class OffHeapTodoTable implements TodoStore {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MIN_SLAB_SIZE = 1024 * 1024;
+    private static final int INITIAL_CAPACITY = 1024; //must be a power of two
+    private static final int MAX_CAPACITY = 1 << 28;
+    private static final int MIN_COMPACTION = 1024;
+
+    //the number of records decoded per read lock acquisition:
+    private static final int BATCH = 64;
+
+    //the version reads of the current state resolve records at:
+    private static final long LATEST = Long.MAX_VALUE;
+
+    //the number of freed versions each mutation reclaims, more than the one version it may add:
+    private static final int RECLAIM_BATCH = 4;
+
+    //record layout:
+    private static final int VERSION = 0;
+    private static final int PREVIOUS = 8; //address of the version before, 0 if there is none
+    private static final int SEQ = 16;
+    private static final int CREATED = 24;
+    private static final int MODIFIED = 32;
+    private static final int ID_HIGH = 40;
+    private static final int ID_LOW = 48;
+    private static final int NAME_LENGTH = 56; //int, -1 for a null name
+    private static final int DONE = 60; //byte
+    private static final int NAME = 64; //UTF-8
+
+    //index slots hold the top 16 bits of the hash and the address of the latest version:
+    private static final long TAG_MASK = 0xFFFFL << 48;
+    private static final long ADDRESS_MASK = ~TAG_MASK;
+
+    //row layout, in longs:
+    private static final int ROW_SEQ = 0;
+    private static final int ROW_CREATED = 1;
+    private static final int ROW_ADDRESS = 2; //latest live version, 0 once the todo has been freed
+    private static final int ROW_META = 3;
+    private static final int ROW_LONGS = 4;
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    //flags in the meta column, next to the version of the latest mutation of the row:
+    private static final long REMOVED = 1L << 63;
+    private static final long IS_DONE = 1L << 62;
+    private static final long VERSION_MASK = IS_DONE - 1;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final SlabAllocator slabs;
+
+    //guarded by lock:
+    private LongBuffer index;
+    private int indexMask;
+    private int indexUsed;
+    private LongBuffer[] rows = new LongBuffer[16];
+    private int rowCount;
+    private int deadRows;
+    //changes whenever rows are compacted or the creation time order is rebuilt, so iterators know to find their
+    //position again:
+    private int layout;
+    private ChangeLog changes;
+    private final SortedMap<Long, Integer> createdPerDay = new TreeMap<Long, Integer>();
+    //versions waiting to be freed, as pairs of the version that replaced or removed them and their address (with the
+    //REMOVED flag if the todo was removed).  A ring buffer in version order:
+    private long[] pending = new long[256];
+    private int pendingHead;
+    private int pendingSize;
+
+    //creation time order.  Either the rows are in that order, or the sequence numbers of the rows sorted by creation
+    //time are kept in sortedSeq, unless they are invalid and need to be rebuilt:
+    private boolean rowsByCreated = true;
+    private long maxCreated = Long.MIN_VALUE;
+    private volatile boolean sortedValid;
+    private long[] sortedCreated;
+    private long[] sortedSeq;
+    private int sortedSize;
+    private int sortedStale;
+
+    //the number of records in the high half and the number of done records in the low half:
+    private volatile long counts;
+    private volatile long version;
+    private volatile long lastModified;
+    private volatile long lastSeq;
+
+    //the versions open snapshots are pinned at and how many are pinned at each.  The horizon is the oldest version a
+    //snapshot can still be pinned at and only ever increases; both are guarded by the pins map itself:
+    private final SortedMap<Long, Integer> pins = new TreeMap<Long, Integer>();
+    private long horizon;
+
+    /**
+     * @param initialVersion the version of the empty store.  The first mutation is given the next higher version.
+     * @param slabSize       the size of the slabs records are stored in, a power of two of at least 1 MB
+     */
+    public OffHeapTodoTable(long initialVersion, int slabSize) {
+        if (slabSize < MIN_SLAB_SIZE) {
+            throw new IllegalArgumentException("Slabs must be at least " + MIN_SLAB_SIZE + " bytes.");
+        }
+        this.slabs = new SlabAllocator(slabSize);
+        this.version = initialVersion;
+        this.horizon = initialVersion;
+        this.lastModified = System.currentTimeMillis();
+        this.index = allocate(INITIAL_CAPACITY);
+        this.indexMask = INITIAL_CAPACITY - 1;
+    }
+
+    private static LongBuffer allocate(int longs) {
+        return ByteBuffer.allocateDirect(longs * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+    }
+
+    @Override
+    public int size() {
+        return (int) (counts >>> 32);
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Returns the number of bytes of direct memory held by this store: its slabs, index and rows.
+     */
+    public long getOffHeapSize() {
+        lock.readLock().lock();
+        try {
+            long rowChunks = (rowCount + CHUNK_MASK) >>> CHUNK_SHIFT;
+            return slabs.getCapacity() + (indexMask + 1L) * 8 + (rowChunks << CHUNK_SHIFT) * ROW_LONGS * 8;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ChangeLog recordChanges(int capacity) {
+        lock.writeLock().lock();
+        try {
+            ChangeLog log = new ChangeLog(capacity, version);
+            this.changes = log;
+            return log;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Counts counts() {
+        long c = counts;
+        return new Counts((int) (c >>> 32), (int) c);
+    }
+
+    @Override
+    public SortedMap<Long, Integer> createdPerDay() {
+        lock.readLock().lock();
+        try {
+            return new TreeMap<Long, Integer>(createdPerDay);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public TodoRecord get(long high, long low) {
+        if (high == 0) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            int slot = find(high, low, hash(high, low));
+            return slot >= 0 ? decode(index.get(slot) & ADDRESS_MASK) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public TodoRecord put(TodoRecord record) {
+        long high = record.getIdHigh();
+        long low = record.getIdLow();
+        if (high == 0) {
+            throw new IllegalArgumentException("Todo ids with a high half of 0 are reserved.");
+        }
+        byte[] name = record.getName() != null ? record.getName().getBytes(UTF_8) : null;
+        lock.writeLock().lock();
+        try {
+            long hash = hash(high, low);
+            int slot = find(high, low, hash);
+            if (slot >= 0) {
+                long current = index.get(slot) & ADDRESS_MASK;
+                boolean wasDone = slabs.get(current, DONE) != 0;
+                TodoRecord next = new TodoRecord(high, low, slabs.getLong(current, CREATED), record.getName(),
+                        record.isDone());
+                next.seq = slabs.getLong(current, SEQ);
+                stamp(next);
+                long address = write(next, name, current);
+                index.put(slot, (hash & TAG_MASK) | address);
+                int row = row(next.seq);
+                setRow(row, ROW_ADDRESS, address);
+                setRow(row, ROW_META, next.version | (next.isDone() ? IS_DONE : 0));
+                if (wasDone != next.isDone()) {
+                    counts += next.isDone() ? 1 : -1;
+                }
+                defer(next.version, current);
+                commit(next);
+                return next;
+            }
+
+            if (indexUsed + 1 > (indexMask + 1) / 4 * 3) {
+                rehash();
+            }
+            record.seq = lastSeq + 1;
+            stamp(record);
+            long address = write(record, name, 0);
+            slot = (int) hash & indexMask;
+            while (index.get(slot) != 0) {
+                slot = (slot + 1) & indexMask;
+            }
+            index.put(slot, (hash & TAG_MASK) | address);
+            indexUsed++;
+            append(record, address);
+            lastSeq = record.seq;
+            commit(record);
+            return record;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public TodoRecord remove(long high, long low) {
+        if (high == 0) {
+            return null;
+        }
+        lock.writeLock().lock();
+        try {
+            int slot = find(high, low, hash(high, low));
+            if (slot < 0) {
+                return null;
+            }
+            long address = index.get(slot) & ADDRESS_MASK;
+            TodoRecord record = decode(address);
+            TodoRecord tombstone = new TodoRecord(high, low, record.getCreated(), record.getName(), record.isDone());
+            tombstone.seq = record.seq;
+            tombstone.deleted = true;
+            stamp(tombstone);
+            delete(slot);
+            //the row keeps the address of the last live version for the snapshots that can still see it:
+            setRow(row(record.seq), ROW_META, tombstone.version | REMOVED);
+            Long day = TodoTable.toDay(record.getCreated());
+            int perDay = createdPerDay.get(day);
+            if (perDay == 1) {
+                createdPerDay.remove(day);
+            } else {
+                createdPerDay.put(day, perDay - 1);
+            }
+            counts -= (1L << 32) + (record.isDone() ? 1 : 0);
+            if (sortedValid && ++sortedStale > sortedSize / 2) {
+                invalidateSorted();
+            }
+            defer(tombstone.version, address | REMOVED);
+            commit(tombstone);
+            return tombstone;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Snapshot snapshot() {
+        for (;;) {
+            Snapshot snapshot = pin(version);
+            if (snapshot != null) {
+                return snapshot;
+            }
+        }
+    }
+
+    @Override
+    public Snapshot snapshot(long version) {
+        if (version > this.version) {
+            throw new IllegalArgumentException("Version " + version + " has not been reached yet.");
+        }
+        return pin(version);
+    }
+
+    private Snapshot pin(long version) {
+        synchronized (pins) {
+            if (version < horizon) {
+                return null;
+            }
+            Integer n = pins.get(version);
+            pins.put(version, n == null ? 1 : n + 1);
+        }
+        return new Snapshot(this, version);
+    }
+
+    private void release(long version) {
+        synchronized (pins) {
+            int n = pins.get(version);
+            if (n == 1) {
+                pins.remove(version);
+            } else {
+                pins.put(version, n - 1);
+            }
+        }
+    }
+
+    //returns the oldest version that may still be read by a snapshot:
+    private long horizon() {
+        synchronized (pins) {
+            long h = pins.isEmpty() ? version : Math.min(version, pins.firstKey());
+            horizon = Math.max(horizon, h);
+            return h;
+        }
+    }
+
+    @Override
+    public Iterator<TodoRecord> iterator() {
+        return new RowIterator(0, lastSeq, null, LATEST, null);
+    }
+
+    @Override
+    public Iterator<TodoRecord> iteratorCreated(long createdAfter, long createdBefore) {
+        return new CreatedIterator(createdAfter, Long.MAX_VALUE, createdBefore, LATEST, null);
+    }
+
+    /**
+     * Counts the matching rows from their creation time and meta columns, without decoding any record.  As long as
+     * the rows are in creation time order, only the rows in the range are visited.
+     */
+    @Override
+    public int count(Boolean done, long createdAfter, long createdBefore) {
+        if (createdAfter >= createdBefore) {
+            return 0;
+        }
+        //from <= created < createdBefore is tested as one unsigned comparison:
+        long from = createdAfter + 1;
+        long span = (createdBefore - from) ^ Long.MIN_VALUE;
+        long flags = REMOVED | (done != null ? IS_DONE : 0);
+        long expected = done != null && done ? IS_DONE : 0;
+        lock.readLock().lock();
+        try {
+            int row = rowsByCreated ? position(createdAfter, Long.MAX_VALUE) : 0;
+            int end = rowsByCreated ? position(createdBefore - 1, Long.MAX_VALUE) : rowCount;
+            int count = 0;
+            while (row < end) {
+                LongBuffer chunk = rows[row >>> CHUNK_SHIFT];
+                int chunkEnd = Math.min(end, (row | CHUNK_MASK) + 1);
+                for (int at = (row & CHUNK_MASK) * ROW_LONGS; row < chunkEnd; row++, at += ROW_LONGS) {
+                    boolean inRange = ((chunk.get(at + ROW_CREATED) - from) ^ Long.MIN_VALUE) < span;
+                    count += inRange & (chunk.get(at + ROW_META) & flags) == expected ? 1 : 0;
+                }
+            }
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static long hash(long high, long low) {
+        long h = high ^ low;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    //must be called with a lock held:
+    private int find(long high, long low, long hash) {
+        long tag = hash & TAG_MASK;
+        int slot = (int) hash & indexMask;
+        for (;;) {
+            long entry = index.get(slot);
+            if (entry == 0) {
+                return -1;
+            }
+            if ((entry & TAG_MASK) == tag) {
+                long address = entry & ADDRESS_MASK;
+                if (slabs.getLong(address, ID_HIGH) == high && slabs.getLong(address, ID_LOW) == low) {
+                    return slot;
+                }
+            }
+            slot = (slot + 1) & indexMask;
+        }
+    }
+
+    //must be called with the write lock held.  Shifts back the entries after the slot that would no longer be found:
+    private void delete(int slot) {
+        int hole = slot;
+        for (int i = (hole + 1) & indexMask; ; i = (i + 1) & indexMask) {
+            long entry = index.get(i);
+            if (entry == 0) {
+                break;
+            }
+            long address = entry & ADDRESS_MASK;
+            int home = (int) hash(slabs.getLong(address, ID_HIGH), slabs.getLong(address, ID_LOW)) & indexMask;
+            //whether home is cyclically outside of (hole, i], so that the entry can be probed for through the hole:
+            if (i > hole ? home <= hole || home > i : home <= hole && home > i) {
+                index.put(hole, entry);
+                hole = i;
+            }
+        }
+        index.put(hole, 0);
+        indexUsed--;
+    }
+
+    //must be called with the write lock held:
+    private void rehash() {
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < (indexUsed + 1) * 2) {
+            capacity <<= 1;
+        }
+        if (capacity > MAX_CAPACITY) {
+            throw new IllegalStateException("The store cannot index more than " + MAX_CAPACITY / 2 + " todos.");
+        }
+        LongBuffer old = index;
+        int oldCapacity = indexMask + 1;
+        index = allocate(capacity);
+        indexMask = capacity - 1;
+        for (int i = 0; i < oldCapacity; i++) {
+            long entry = old.get(i);
+            if (entry != 0) {
+                long address = entry & ADDRESS_MASK;
+                int slot = (int) hash(slabs.getLong(address, ID_HIGH), slabs.getLong(address, ID_LOW)) & indexMask;
+                while (index.get(slot) != 0) {
+                    slot = (slot + 1) & indexMask;
+                }
+                index.put(slot, entry);
+            }
+        }
+    }
+
+    //must be called with the write lock held.  Gives a new version of a record the next version number:
+    private void stamp(TodoRecord record) {
+        record.version = version + 1;
+        record.modified = System.currentTimeMillis();
+    }
+
+    //must be called with the write lock held:
+    private long write(TodoRecord record, byte[] name, long previous) {
+        long address = slabs.allocate(NAME + (name != null ? name.length : 0));
+        if ((address & TAG_MASK) != 0) {
+            throw new IllegalStateException("The store has run out of slab addresses.");
+        }
+        slabs.putLong(address, VERSION, record.version);
+        slabs.putLong(address, PREVIOUS, previous);
+        slabs.putLong(address, SEQ, record.seq);
+        slabs.putLong(address, CREATED, record.getCreated());
+        slabs.putLong(address, MODIFIED, record.modified);
+        slabs.putLong(address, ID_HIGH, record.getIdHigh());
+        slabs.putLong(address, ID_LOW, record.getIdLow());
+        slabs.putInt(address, NAME_LENGTH, name != null ? name.length : -1);
+        slabs.put(address, DONE, (byte) (record.isDone() ? 1 : 0));
+        if (name != null) {
+            slabs.put(address, NAME, name);
+        }
+        return address;
+    }
+
+    //must be called with a lock held:
+    private TodoRecord decode(long address) {
+        int length = slabs.getInt(address, NAME_LENGTH);
+        String name = null;
+        if (length >= 0) {
+            byte[] bytes = new byte[length];
+            slabs.get(address, NAME, bytes);
+            name = new String(bytes, UTF_8);
+        }
+        TodoRecord record = new TodoRecord(slabs.getLong(address, ID_HIGH), slabs.getLong(address, ID_LOW),
+                slabs.getLong(address, CREATED), name, slabs.get(address, DONE) != 0);
+        record.seq = slabs.getLong(address, SEQ);
+        record.version = slabs.getLong(address, VERSION);
+        record.modified = slabs.getLong(address, MODIFIED);
+        return record;
+    }
+
+    //must be called with the write lock held:
+    private void free(long address) {
+        slabs.free(address, NAME + Math.max(slabs.getInt(address, NAME_LENGTH), 0));
+    }
+
+    //must be called with the write lock held, once the stamped version is reachable through the indexes:
+    private void commit(TodoRecord record) {
+        ChangeLog log = changes;
+        if (log != null) {
+            log.append(record.version, record, record.deleted);
+        }
+        lastModified = record.modified;
+        version = record.version; //snapshots pinned from now on see the new version
+        reclaim();
+    }
+
+    //must be called with the write lock held:
+    private void defer(long version, long address) {
+        if (pendingSize * 2 == pending.length) {
+            long[] grown = new long[pending.length * 2];
+            for (int i = 0; i < pendingSize; i++) {
+                int from = ((pendingHead + i) * 2) & (pending.length - 1);
+                grown[i * 2] = pending[from];
+                grown[i * 2 + 1] = pending[from + 1];
+            }
+            pending = grown;
+            pendingHead = 0;
+        }
+        int at = ((pendingHead + pendingSize) * 2) & (pending.length - 1);
+        pending[at] = version;
+        pending[at + 1] = address;
+        pendingSize++;
+    }
+
+    //must be called with the write lock held.  Frees the oldest versions that no snapshot can read any more:
+    private void reclaim() {
+        long h = horizon();
+        for (int i = 0; i < RECLAIM_BATCH && pendingSize > 0; i++) {
+            int at = (pendingHead * 2) & (pending.length - 1);
+            //a version replaced or removed at the horizon is only visible to snapshots older than it:
+            if (pending[at] > h) {
+                break;
+            }
+            long entry = pending[at + 1];
+            pendingHead = (pendingHead + 1) & (pending.length / 2 - 1);
+            pendingSize--;
+            long address = entry & ADDRESS_MASK;
+            if ((entry & REMOVED) != 0) {
+                setRow(row(slabs.getLong(address, SEQ)), ROW_ADDRESS, 0);
+                deadRows++;
+            }
+            free(address);
+        }
+        if (deadRows > MIN_COMPACTION && deadRows > size()) {
+            compact();
+        }
+    }
+
+    private long row(int row, int column) {
+        return rows[row >>> CHUNK_SHIFT].get((row & CHUNK_MASK) * ROW_LONGS + column);
+    }
+
+    private void setRow(int row, int column, long value) {
+        rows[row >>> CHUNK_SHIFT].put((row & CHUNK_MASK) * ROW_LONGS + column, value);
+    }
+
+    //must be called with a lock held.  The position of the first row with a sequence number greater than seq:
+    private int position(long seq) {
+        int lo = 0;
+        int hi = rowCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (row(mid, ROW_SEQ) <= seq) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    //must be called with a lock held, and with the rows in creation time order.  The position of the first row after
+    //(created, seq) in that order:
+    private int position(long created, long seq) {
+        int lo = 0;
+        int hi = rowCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long c = row(mid, ROW_CREATED);
+            if (c < created || c == created && row(mid, ROW_SEQ) <= seq) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    //must be called with a lock held.  The row of a sequence number, or -1 if it has been compacted away:
+    private int row(long seq) {
+        int row = position(seq) - 1;
+        return row >= 0 && row(row, ROW_SEQ) == seq ? row : -1;
+    }
+
+    //must be called with the write lock held:
+    private void append(TodoRecord record, long address) {
+        int row = rowCount;
+        int chunk = row >>> CHUNK_SHIFT;
+        if (chunk == rows.length) {
+            rows = Arrays.copyOf(rows, chunk * 2);
+        }
+        if (rows[chunk] == null) {
+            rows[chunk] = allocate(ROW_LONGS << CHUNK_SHIFT);
+        }
+        long created = record.getCreated();
+        setRow(row, ROW_SEQ, record.seq);
+        setRow(row, ROW_CREATED, created);
+        setRow(row, ROW_ADDRESS, address);
+        setRow(row, ROW_META, record.version | (record.isDone() ? IS_DONE : 0));
+        rowCount = row + 1;
+
+        if (created < maxCreated) {
+            if (rowsByCreated) {
+                rowsByCreated = false;
+                layout++;
+            } else if (sortedValid && created < sortedCreated[sortedSize - 1]) {
+                invalidateSorted();
+            }
+        }
+        if (!rowsByCreated && sortedValid) {
+            if (sortedSize == sortedSeq.length) {
+                sortedCreated = Arrays.copyOf(sortedCreated, sortedSize * 2);
+                sortedSeq = Arrays.copyOf(sortedSeq, sortedSize * 2);
+            }
+            sortedCreated[sortedSize] = created;
+            sortedSeq[sortedSize++] = record.seq;
+        }
+        maxCreated = Math.max(maxCreated, created);
+
+        Long day = TodoTable.toDay(created);
+        Integer perDay = createdPerDay.get(day);
+        createdPerDay.put(day, perDay == null ? 1 : perDay + 1);
+        counts += (1L << 32) + (record.isDone() ? 1 : 0);
+    }
+
+    //must be called with the write lock held.  Drops the rows of freed todos, which no snapshot can see any more:
+    private void compact() {
+        int n = 0;
+        boolean ordered = true;
+        long last = Long.MIN_VALUE;
+        for (int row = 0; row < rowCount; row++) {
+            if (row(row, ROW_ADDRESS) != 0) {
+                long created = row(row, ROW_CREATED);
+                ordered &= created >= last;
+                last = Math.max(last, created);
+                if (n != row) {
+                    for (int column = 0; column < ROW_LONGS; column++) {
+                        setRow(n, column, row(row, column));
+                    }
+                }
+                n++;
+            }
+        }
+        for (int chunk = (n + CHUNK_MASK) >>> CHUNK_SHIFT; chunk < rows.length; chunk++) {
+            rows[chunk] = null;
+        }
+        rowCount = n;
+        deadRows = 0;
+        rowsByCreated = ordered;
+        maxCreated = last;
+        invalidateSorted();
+        layout++;
+    }
+
+    //must be called with the write lock held:
+    private void invalidateSorted() {
+        sortedValid = false;
+        sortedCreated = null;
+        sortedSeq = null;
+        sortedSize = 0;
+        sortedStale = 0;
+    }
+
+    //sorts the sequence numbers of all rows by creation time, unless the rows are in that order already:
+    private void sortByCreated() {
+        lock.writeLock().lock();
+        try {
+            if (rowsByCreated || sortedValid) {
+                return;
+            }
+            long[] created = new long[Math.max(rowCount, 16)];
+            long[] seq = new long[created.length];
+            int n = 0;
+            for (int row = 0; row < rowCount; row++) {
+                if (row(row, ROW_ADDRESS) != 0) {
+                    created[n] = row(row, ROW_CREATED);
+                    seq[n++] = row(row, ROW_SEQ);
+                }
+            }
+            //a stable merge sort by creation time keeps the rows' sequence number order within each creation time:
+            long[] createdTo = new long[created.length];
+            long[] seqTo = new long[created.length];
+            for (int width = 1; width < n; width <<= 1) {
+                for (int lo = 0; lo < n; lo += width << 1) {
+                    int mid = Math.min(lo + width, n);
+                    int hi = Math.min(lo + (width << 1), n);
+                    int i = lo;
+                    int j = mid;
+                    for (int k = lo; k < hi; k++) {
+                        int from = j >= hi || i < mid && created[i] <= created[j] ? i++ : j++;
+                        createdTo[k] = created[from];
+                        seqTo[k] = seq[from];
+                    }
+                }
+                long[] swap = created;
+                created = createdTo;
+                createdTo = swap;
+                swap = seq;
+                seq = seqTo;
+                seqTo = swap;
+            }
+            sortedCreated = created;
+            sortedSeq = seq;
+            sortedSize = n;
+            sortedStale = 0;
+            sortedValid = true;
+            layout++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * A snapshot of an {@link OffHeapTodoTable}.  Reading it takes the table's read lock for every batch of records
+     * it decodes.
+     */
+    public static final class Snapshot implements TodoStore.Snapshot {
+
+        private final OffHeapTodoTable table;
+        private final long version;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Snapshot(OffHeapTodoTable table, long version) {
+            this.table = table;
+            this.version = version;
+        }
+
+        @Override
+        public long getVersion() {
+            return version;
+        }
+
+        @Override
+        public Iterator<TodoRecord> iterator() {
+            return iteratorAfter(0);
+        }
+
+        @Override
+        public Iterator<TodoRecord> iteratorAfter(long seq) {
+            return table.new RowIterator(seq, Long.MAX_VALUE, null, version, this);
+        }
+
+        @Override
+        public Iterator<TodoRecord> iterator(boolean done) {
+            return iteratorAfter(0, done);
+        }
+
+        @Override
+        public Iterator<TodoRecord> iteratorAfter(long seq, boolean done) {
+            return table.new RowIterator(seq, Long.MAX_VALUE, done, version, this);
+        }
+
+        @Override
+        public Iterator<TodoRecord> iteratorCreated(long createdAfter, long createdBefore) {
+            return iteratorCreated(createdAfter, Long.MAX_VALUE, createdBefore);
+        }
+
+        @Override
+        public Iterator<TodoRecord> iteratorCreated(long created, long seq, long createdBefore) {
+            return table.new CreatedIterator(created, seq, createdBefore, version, this);
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed.get();
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                table.release(version);
+            }
+        }
+    }
+
+    /**
+     * Decodes the records of an iteration that exist as of its version, a batch at a time with the read lock held.
+     */
+    private abstract class BatchIterator implements Iterator<TodoRecord> {
+
+        final long version;
+        //null for reads of the latest state:
+        private final Snapshot snapshot;
+        private final TodoRecord[] batch = new TodoRecord[BATCH];
+        private int size;
+        private int next;
+        private boolean exhausted;
+        int seenLayout = -1;
+
+        BatchIterator(long version, Snapshot snapshot) {
+            this.version = version;
+            this.snapshot = snapshot;
+        }
+
+        //whether the batch can be filled with the read lock held:
+        boolean ready() {
+            return true;
+        }
+
+        //acquires what is needed to be ready:
+        void prepare() {
+        }
+
+        //adds the next records to the batch with add(), and returns false if there are none after them:
+        abstract boolean fill();
+
+        final boolean isFull() {
+            return size == BATCH;
+        }
+
+        //adds the version of a row's todo as of the iteration's version, if there is one and it is accepted:
+        final void add(int row, Boolean done) {
+            long address = row(row, ROW_ADDRESS);
+            if (address == 0) {
+                return;
+            }
+            long meta = row(row, ROW_META);
+            if ((meta & VERSION_MASK) <= version) {
+                if ((meta & REMOVED) != 0 || done != null && ((meta & IS_DONE) != 0) != done) {
+                    return;
+                }
+            } else {
+                //changed after the iteration's version, so go back to the version it can see:
+                while (address != 0 && slabs.getLong(address, VERSION) > version) {
+                    address = slabs.getLong(address, PREVIOUS);
+                }
+                if (address == 0 || done != null && (slabs.get(address, DONE) != 0) != done) {
+                    return;
+                }
+            }
+            batch[size++] = decode(address);
+        }
+
+        private void checkOpen() {
+            if (snapshot != null && snapshot.isClosed()) {
+                throw new IllegalStateException("The snapshot has been closed.");
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            checkOpen();
+            while (next == size && !exhausted) {
+                Arrays.fill(batch, 0, size, null);
+                size = 0;
+                next = 0;
+                lock.readLock().lock();
+                try {
+                    checkOpen();
+                    if (ready()) {
+                        exhausted = !fill();
+                        continue;
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+                prepare();
+            }
+            return next < size;
+        }
+
+        @Override
+        public TodoRecord next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return batch[next++];
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Walks the rows in creation order, optionally only those with the specified done flag.
+     */
+    private final class RowIterator extends BatchIterator {
+
+        private final long endSeq;
+        private final Boolean done;
+        private long seq; //the last row visited
+        private int row;
+
+        RowIterator(long seq, long endSeq, Boolean done, long version, Snapshot snapshot) {
+            super(version, snapshot);
+            this.seq = seq;
+            this.endSeq = endSeq;
+            this.done = done;
+        }
+
+        @Override
+        boolean fill() {
+            if (seenLayout != layout) {
+                row = position(seq);
+                seenLayout = layout;
+            }
+            for (; row < rowCount && !isFull(); row++) {
+                seq = row(row, ROW_SEQ);
+                if (seq > endSeq) {
+                    return false;
+                }
+                add(row, done);
+            }
+            return row < rowCount;
+        }
+    }
+
+    /**
+     * Walks the rows in creation time order, from the rows themselves if they are in that order and from the sorted
+     * sequence numbers otherwise.
+     */
+    private final class CreatedIterator extends BatchIterator {
+
+        private final long createdBefore;
+        //the last position visited:
+        private long created;
+        private long seq;
+        private boolean sorted;
+        private int cursor;
+
+        CreatedIterator(long created, long seq, long createdBefore, long version, Snapshot snapshot) {
+            super(version, snapshot);
+            this.created = created;
+            this.seq = seq;
+            this.createdBefore = createdBefore;
+        }
+
+        @Override
+        boolean ready() {
+            return rowsByCreated || sortedValid;
+        }
+
+        @Override
+        void prepare() {
+            sortByCreated();
+        }
+
+        @Override
+        boolean fill() {
+            if (created >= createdBefore) {
+                return false;
+            }
+            if (seenLayout != layout) {
+                sorted = !rowsByCreated;
+                cursor = sorted ? sortedPosition() : position(created, seq);
+                seenLayout = layout;
+            }
+            int end = sorted ? sortedSize : rowCount;
+            for (; cursor < end && !isFull(); cursor++) {
+                long c = sorted ? sortedCreated[cursor] : row(cursor, ROW_CREATED);
+                if (c >= createdBefore) {
+                    created = c;
+                    return false;
+                }
+                long s = sorted ? sortedSeq[cursor] : row(cursor, ROW_SEQ);
+                if (c < created || c == created && s <= seq) {
+                    continue; //added out of order after the iteration started
+                }
+                created = c;
+                seq = s;
+                int row = sorted ? row(s) : cursor;
+                if (row >= 0) {
+                    add(row, null);
+                }
+            }
+            return cursor < end;
+        }
+
+        //the first sorted sequence number after (created, seq):
+        private int sortedPosition() {
+            int lo = 0;
+            int hi = sortedSize;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                long c = sortedCreated[mid];
+                if (c < created || c == created && sortedSeq[mid] <= seq) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.store;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Allocates blocks of direct memory, outside of the Java heap, in large slabs.
+ * <p/>
+ * A block is identified by its address: the number of its slab (starting at 1, so that {@code 0} is never a valid
+ * address) in the upper 32 bits, and its offset in the slab in the lower 32 bits.  Blocks are rounded up to a size
+ * class: a multiple of 16 bytes up to 1 KB, and a power of two above that.  Freed blocks are kept on a free list per
+ * size class, linked through their first 8 bytes, and are reused by the next allocation of the same class, so freeing
+ * does not need any memory of its own.  Slabs are never given back.
+ * <p/>
+ * The allocator is not thread-safe.  Its owner must serialize allocations and frees, and make the contents of the
+ * blocks it writes visible to its readers.
+ */
+public class SlabAllocator {
+
+    public static final int DEFAULT_SLAB_SIZE = 64 * 1024 * 1024;
+
+    private static final int ALIGNMENT = 16;
+    private static final int SMALL_LIMIT = 1024;
+    private static final int SMALL_CLASSES = SMALL_LIMIT / ALIGNMENT;
+
+    private final int slabSize;
+    private ByteBuffer[] slabs = new ByteBuffer[16];
+    private int slabCount;
+    private int top; //the start of the unallocated part of the last slab
+
+    //the first free block of each size class, 0 if there is none:
+    private final long[] free;
+
+    private long allocated; //bytes of all blocks currently allocated, by size class
+    private long freeBytes; //bytes of all blocks on the free lists
+
+    /**
+     * @param slabSize the size of each slab in bytes, which is also the largest block that can be allocated.  Must be
+     *                 a power of two of at least 4 KB.
+     */
+    public SlabAllocator(int slabSize) {
+        if (slabSize < 4096 || Integer.bitCount(slabSize) != 1) {
+            throw new IllegalArgumentException("Slab size must be a power of two of at least 4096 bytes.");
+        }
+        this.slabSize = slabSize;
+        this.free = new long[sizeClass(slabSize) + 1];
+        this.top = slabSize; //so that the first allocation adds a slab
+    }
+
+    /**
+     * Returns the number of bytes actually reserved for a block of the specified size.
+     */
+    public static int blockSize(int size) {
+        if (size <= SMALL_LIMIT) {
+            return size <= ALIGNMENT ? ALIGNMENT : (size + ALIGNMENT - 1) & -ALIGNMENT;
+        }
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= SMALL_LIMIT) {
+            return blockSize(size) / ALIGNMENT - 1;
+        }
+        //2 KB is the first class after the small ones:
+        return SMALL_CLASSES + Integer.numberOfTrailingZeros(blockSize(size)) - 11;
+    }
+
+    /**
+     * Allocates a block of at least {@code size} bytes.  Its contents are undefined.
+     *
+     * @param size the number of bytes needed
+     * @return the address of the block.
+     * @throws IllegalArgumentException if the size exceeds the slab size
+     * @throws OutOfMemoryError         if a new slab is needed and the direct memory limit has been reached
+     */
+    public long allocate(int size) {
+        if (size <= 0 || size > slabSize) {
+            throw new IllegalArgumentException("Cannot allocate a block of " + size + " bytes from slabs of " +
+                    slabSize + " bytes.");
+        }
+        int sizeClass = sizeClass(size);
+        int blockSize = blockSize(size);
+        long address = free[sizeClass];
+        if (address != 0) {
+            free[sizeClass] = getLong(address, 0);
+            freeBytes -= blockSize;
+        } else {
+            if (top + blockSize > slabSize) {
+                addSlab();
+            }
+            address = ((long) slabCount << 32) | top;
+            top += blockSize;
+        }
+        allocated += blockSize;
+        return address;
+    }
+
+    /**
+     * Returns a block to its free list.
+     *
+     * @param address the address of the block
+     * @param size    the size the block was allocated with
+     */
+    public void free(long address, int size) {
+        int sizeClass = sizeClass(size);
+        putLong(address, 0, free[sizeClass]);
+        free[sizeClass] = address;
+        int blockSize = blockSize(size);
+        allocated -= blockSize;
+        freeBytes += blockSize;
+    }
+
+    private void addSlab() {
+        if (slabCount == slabs.length) {
+            slabs = Arrays.copyOf(slabs, slabCount * 2);
+        }
+        //the rest of the previous slab is too small for the block, so it is left unused:
+        slabs[slabCount++] = ByteBuffer.allocateDirect(slabSize).order(ByteOrder.nativeOrder());
+        top = 0;
+    }
+
+    /**
+     * Returns the number of bytes of direct memory reserved by the slabs.
+     */
+    public long getCapacity() {
+        return (long) slabCount * slabSize;
+    }
+
+    /**
+     * Returns the number of bytes in allocated blocks, including the padding up to their size class.
+     */
+    public long getAllocated() {
+        return allocated;
+    }
+
+    /**
+     * Returns the number of bytes in freed blocks that are waiting to be reused.
+     */
+    public long getFree() {
+        return freeBytes;
+    }
+
+    private ByteBuffer slab(long address) {
+        return slabs[(int) (address >>> 32) - 1];
+    }
+
+    public long getLong(long address, int offset) {
+        return slab(address).getLong((int) address + offset);
+    }
+
+    public void putLong(long address, int offset, long value) {
+        slab(address).putLong((int) address + offset, value);
+    }
+
+    public int getInt(long address, int offset) {
+        return slab(address).getInt((int) address + offset);
+    }
+
+    public void putInt(long address, int offset, int value) {
+        slab(address).putInt((int) address + offset, value);
+    }
+
+    public byte get(long address, int offset) {
+        return slab(address).get((int) address + offset);
+    }
+
+    public void put(long address, int offset, byte value) {
+        slab(address).put((int) address + offset, value);
+    }
+
+    public void get(long address, int offset, byte[] bytes) {
+        ByteBuffer slab = slab(address);
+        int position = (int) address + offset;
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = slab.get(position + i);
+        }
+    }
+
+    public void put(long address, int offset, byte[] bytes) {
+        ByteBuffer slab = slab(address);
+        int position = (int) address + offset;
+        for (int i = 0; i < bytes.length; i++) {
+            slab.put(position + i, bytes[i]);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Compact binary point-in-time images of the todo store, used to avoid replaying the whole
+ * {@link WriteAheadLog} on startup.
+ * <p/>
+ * A snapshot records the LSN of the last log record it includes.  On startup the newest snapshot is loaded through a
+ * {@link MappedByteBuffer} (no stream copies or read syscalls per record) and only log records after its LSN are
+ * replayed, which allows every log segment and snapshot older than it to be deleted.
+ * <p/>
+ * Snapshots are written to a temporary file, forced to disk and then renamed, so a snapshot file that exists under
+ * its final name is always complete.
+ */
+public class SnapshotStore {
+
+    static final String SNAPSHOT_PREFIX = "snapshot-";
+    static final String SNAPSHOT_SUFFIX = ".snap";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x54444f53; //'TDOS'
+    private static final int FORMAT_VERSION = 2;
+    private static final int COUNT_OFFSET = 4 + 4 + 8;
+
+    private static final Logger log = LoggerFactory.getLogger(SnapshotStore.class);
+
+    /**
+     * Callback that receives each record of a snapshot being loaded.
+     */
+    public interface RecordHandler {
+        void handle(TodoRecord record);
+    }
+
+    private final File directory;
+
+    public SnapshotStore(File directory) {
+        if (directory == null) {
+            throw new IllegalArgumentException("Directory argument cannot be null.");
+        }
+        this.directory = directory;
+    }
+
+    /**
+     * Loads the newest snapshot, if any.
+     *
+     * @param handler the callback that receives every record of the snapshot, in table order
+     * @return the LSN of the loaded snapshot, or {@code 0} if there is no snapshot.
+     * @throws IOException if the snapshot cannot be read
+     */
+    public long load(RecordHandler handler) throws IOException {
+        File[] snapshots = getSnapshots();
+        if (snapshots.length == 0) {
+            return 0;
+        }
+        File file = snapshots[snapshots.length - 1];
+        long start = System.currentTimeMillis();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + file + " exceeds the maximum mappable size of 2GB.");
+            }
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buf.getInt() != MAGIC || buf.getInt() != FORMAT_VERSION) {
+                throw new IOException("File " + file + " is not a todo snapshot of a supported version.");
+            }
+            long lsn = buf.getLong();
+            long count = buf.getLong();
+            try {
+                for (long i = 0; i < count; i++) {
+                    handler.handle(TodoCodec.readRecord(buf));
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Snapshot " + file + " is truncated.", e);
+            }
+            log.info("Loaded {} todos from snapshot {} in {} ms.",
+                    new Object[]{count, file.getName(), System.currentTimeMillis() - start});
+            return lsn;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes a new snapshot.
+     *
+     * @param lsn     the LSN of the last log record reflected in {@code records}
+     * @param records the records to write.  Weakly consistent iterators are fine, as long as every record that
+     *                existed as of {@code lsn} and was not removed afterwards is returned: replaying the log records
+     *                after {@code lsn} converges to the correct state either way.
+     * @return the written snapshot file
+     * @throws IOException if the snapshot cannot be written
+     */
+    public File write(long lsn, Iterator<TodoRecord> records) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create snapshot directory " + directory);
+        }
+        File file = new File(directory, SNAPSHOT_PREFIX + String.format("%020d", lsn) + SNAPSHOT_SUFFIX);
+        File temp = new File(directory, file.getName() + TEMP_SUFFIX);
+
+        long start = System.currentTimeMillis();
+        long count = 0;
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 256 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(lsn);
+            out.writeLong(0); //count, patched below
+            while (records.hasNext()) {
+                TodoCodec.writeRecord(out, records.next());
+                count++;
+            }
+            out.flush();
+            FileChannel channel = fos.getChannel();
+            channel.position(COUNT_OFFSET);
+            ByteBuffer countBuf = ByteBuffer.allocate(8);
+            countBuf.putLong(0, count);
+            channel.write(countBuf);
+            channel.force(true);
+        } finally {
+            fos.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            throw new IOException("Unable to rename snapshot " + temp + " to " + file);
+        }
+        log.info("Wrote {} todos to snapshot {} in {} ms.",
+                new Object[]{count, file.getName(), System.currentTimeMillis() - start});
+        return file;
+    }
+
+    /**
+     * Deletes all snapshots older than the one with the specified LSN.
+     */
+    public void deleteBefore(long lsn) {
+        for (File file : getSnapshots()) {
+            if (getLsn(file) < lsn && !file.delete()) {
+                log.warn("Unable to delete obsolete snapshot {}", file);
+            }
+        }
+    }
+
+    private static long getLsn(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length()));
+    }
+
+    private File[] getSnapshots() {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        //names are zero-padded, so lexical order is LSN order:
+        Arrays.sort(files);
+        return files;
+    }
+}
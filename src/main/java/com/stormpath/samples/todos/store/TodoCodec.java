@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compact binary encoding of {@link TodoRecord}s used by the write-ahead log and snapshots:
+ * <pre>
+ * long    id high
+ * long    id low
+ * long    created (epoch millis)
+ * boolean done
+ * int     name length in bytes (-1 for null)
+ * byte[]  UTF-8 name
+ * </pre>
+ * The owning {@code User} is not encoded: this demo only has a single (simulated) user, which is re-attached when
+ * records are materialized as todos.
+ */
+public final class TodoCodec {
+
+    private static final String CHARSET = "UTF-8";
+
+    private TodoCodec() {
+    }
+
+    public static byte[] toBytes(TodoRecord record) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(64);
+        try {
+            writeRecord(new DataOutputStream(baos), record);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to encode todo.", e); //not possible with a byte array
+        }
+        return baos.toByteArray();
+    }
+
+    public static byte[] toBytes(long idHigh, long idLow) {
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        buf.putLong(idHigh);
+        buf.putLong(idLow);
+        return buf.array();
+    }
+
+    public static void writeRecord(DataOutput out, TodoRecord record) throws IOException {
+        out.writeLong(record.getIdHigh());
+        out.writeLong(record.getIdLow());
+        out.writeLong(record.getCreated());
+        out.writeBoolean(record.isDone());
+        writeString(out, record.getName());
+    }
+
+    /**
+     * Reads a record that has not been added to a {@link TodoTable} yet.
+     */
+    public static TodoRecord readRecord(DataInput in) throws IOException {
+        long high = in.readLong();
+        long low = in.readLong();
+        long created = in.readLong();
+        boolean done = in.readBoolean();
+        return new TodoRecord(high, low, created, readString(in), done);
+    }
+
+    public static TodoRecord readRecord(ByteBuffer buf) throws IOException {
+        long high = buf.getLong();
+        long low = buf.getLong();
+        long created = buf.getLong();
+        boolean done = buf.get() != 0;
+        return new TodoRecord(high, low, created, readString(buf), done);
+    }
+
+    //DataOutput.writeUTF is limited to 64k and cannot represent null, so strings are length-prefixed UTF-8:
+    public static void writeString(DataOutput out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(CHARSET);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, CHARSET);
+    }
+
+    public static String readString(ByteBuffer buf) throws UnsupportedEncodingException {
+        int length = buf.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (buf.hasArray()) {
+            String s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, CHARSET);
+            buf.position(buf.position() + length);
+            return s;
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, CHARSET);
+    }
+}
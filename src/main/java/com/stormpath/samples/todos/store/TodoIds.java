@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.store;
+
+/**
+ * Converts 128 bit todo ids between their two-{@code long} storage form and the 32 character lowercase hex form used
+ * in hrefs.
+ */
+public final class TodoIds {
+
+    public static final int LENGTH = 32;
+
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    private TodoIds() {
+    }
+
+    public static String toString(long high, long low) {
+        char[] chars = new char[LENGTH];
+        write(high, chars, 0);
+        write(low, chars, 16);
+        return new String(chars);
+    }
+
+    private static void write(long value, char[] chars, int offset) {
+        for (int i = offset + 15; i >= offset; i--) {
+            chars[i] = DIGITS[(int) value & 0xF];
+            value >>>= 4;
+        }
+    }
+
+    /**
+     * Returns {@code true} if the specified string is a well-formed id, {@code false} otherwise.  Callers should check
+     * this before calling {@link #high(String)} or {@link #low(String)} on untrusted input.
+     */
+    public static boolean isValid(String id) {
+        if (id == null || id.length() != LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < LENGTH; i++) {
+            if (Character.digit(id.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static long high(String id) {
+        return parse(id, 0);
+    }
+
+    public static long low(String id) {
+        return parse(id, 16);
+    }
+
+    private static long parse(String id, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 16; i++) {
+            int digit = Character.digit(id.charAt(i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid todo id '" + id + "'");
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.store;
+
+/**
+ * Compact storage representation of a todo.
+ * <p/>
+ * The 128 bit id is held as two {@code long}s and the creation timestamp as epoch millis, so a record costs a single
+ * small object plus its name.  Ids are only rendered as (and parsed from) their 32 character hex form by
+ * {@link TodoIds} when a record crosses the service boundary.
+ * <p/>
+ * Records are immutable once a {@link TodoTable} has stored them: a change to a todo stores a new record that links
+ * to the versions before it, which the table keeps for as long as an open snapshot may still read them.
+ */
+public class TodoRecord {
+
+    private final long idHigh;
+    private final long idLow;
+    private final long created;
+
+    private final String name;
+    private final boolean done;
+
+    //assigned by the owning TodoTable before the record is published:
+    long seq;
+    boolean deleted;
+    long version;
+    long modified;
+    //the version this one replaced, until no open snapshot can read it any more:
+    volatile TodoRecord previous;
+
+    public TodoRecord(long idHigh, long idLow, long created, String name, boolean done) {
+        this.idHigh = idHigh;
+        this.idLow = idLow;
+        this.created = created;
+        this.name = name;
+        this.done = done;
+    }
+
+    public long getIdHigh() {
+        return idHigh;
+    }
+
+    public long getIdLow() {
+        return idLow;
+    }
+
+    public String getId() {
+        return TodoIds.toString(idHigh, idLow);
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Returns the position of this record in the creation order of its table.  Sequence numbers increase
+     * monotonically and are never reused while the table exists.
+     *
+     * @return the position of this record in the creation order of its table.
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * Returns the version the owning table gave the change that stored this record.  Versions are unique within a
+     * table and increase with every change.
+     *
+     * @return the version of the change that stored this record.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the time of the change that stored this record in epoch millis.  After a restart this is the time the
+     * record was recovered.
+     *
+     * @return the time of the change that stored this record.
+     */
+    public long getModified() {
+        return modified;
+    }
+
+    public boolean isDeleted() {
+        return deleted;
+    }
+}
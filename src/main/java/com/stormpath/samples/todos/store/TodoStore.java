@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.store;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.SortedMap;
+
+/**
+ * Multi-version storage of {@link TodoRecord}s keyed by their two-{@code long} id, kept in creation order.
+ * <p/>
+ * Every mutation gives the store and the affected record the next version number.  Readers pin a
+ * {@link Snapshot snapshot}, which sees every todo as it was at the snapshot's version for as long as it is open.
+ * Record counts are maintained with every mutation, so they can be read in constant time.
+ * <p/>
+ * An id whose high half is {@code 0} is reserved and cannot be stored.
+ *
+ * @see TodoTable
+ * @see OffHeapTodoTable
+ */
+public interface TodoStore extends Iterable<TodoRecord> {
+
+    int size();
+
+    /**
+     * Returns the version of the latest mutation of this store.  Versions increase with every mutation.
+     *
+     * @return the version of the latest mutation of this store.
+     */
+    long getVersion();
+
+    /**
+     * Returns the time of the latest mutation of this store (or of its creation), in epoch millis.
+     *
+     * @return the time of the latest mutation of this store.
+     */
+    long getLastModified();
+
+    /**
+     * Starts recording all subsequent mutations of this store in a new change log, whose sequence numbers are the
+     * versions of the mutations.
+     *
+     * @param capacity the number of changes the log remembers
+     * @return the new change log.
+     */
+    ChangeLog recordChanges(int capacity);
+
+    /**
+     * Returns the current number of records and of done records as one consistent snapshot.
+     *
+     * @return the current record counts.
+     */
+    Counts counts();
+
+    /**
+     * Returns the number of records created on each day, keyed by the number of days since the epoch (UTC).  Days on
+     * which no remaining record was created are omitted.
+     *
+     * @return the number of records created per day, in order of the day.
+     */
+    SortedMap<Long, Integer> createdPerDay();
+
+    /**
+     * Returns the number of live records with a creation time strictly between {@code createdAfter} and
+     * {@code createdBefore} whose done flag equals {@code done}, the same records
+     * {@link #iteratorCreated(long, long)} returns, but without decoding or visiting any of them.
+     *
+     * @param done          the done flag of the records to count, or {@code null} to count all of them
+     * @param createdAfter  exclusive lower bound of the creation time in epoch millis
+     * @param createdBefore exclusive upper bound of the creation time in epoch millis
+     * @return the number of matching records.
+     */
+    int count(Boolean done, long createdAfter, long createdBefore);
+
+    /**
+     * Returns the latest version of the record with the specified id, or {@code null} if there is no such record.
+     * Two calls return records with the same {@link TodoRecord#getVersion() version} if and only if the todo has not
+     * changed in between.
+     */
+    TodoRecord get(long high, long low);
+
+    /**
+     * Stores the specified record.  If a record with the same id is already present, a new version of it with the
+     * name and done flag of the specified record is stored.  Otherwise the record is added to the end of the store.
+     *
+     * @param record the record to store, which is owned by the store from now on
+     * @return the record as stored, with its sequence number, version and modification time set.
+     */
+    TodoRecord put(TodoRecord record);
+
+    /**
+     * Removes the record with the specified id.  Snapshots pinned before the removal continue to see the record.
+     *
+     * @return the tombstone of the removed record, which has the version of the removal and the name and done flag
+     *         the record had before it, or {@code null} if there is no record with the id.
+     */
+    TodoRecord remove(long high, long low);
+
+    /**
+     * Pins a snapshot of the store at its latest version.
+     *
+     * @return the new snapshot, which must be closed.
+     */
+    Snapshot snapshot();
+
+    /**
+     * Pins a snapshot of the store at an earlier version, typically the version of another snapshot that is still
+     * open, so that a reader can continue where that one left off.
+     *
+     * @param version a version previously obtained from {@link Snapshot#getVersion()}
+     * @return the new snapshot, which must be closed, or {@code null} if the version is no longer available because
+     *         the versions of records it needs may have been reclaimed.
+     * @throws IllegalArgumentException if the store has not reached the version yet
+     */
+    Snapshot snapshot(long version);
+
+    /**
+     * Returns a weakly consistent iterator over the latest versions of all live records in creation order.  The
+     * iterator reflects every record present when it was created and may or may not reflect later changes.
+     */
+    @Override
+    Iterator<TodoRecord> iterator();
+
+    /**
+     * Returns a weakly consistent iterator over the latest versions of the live records with a creation time strictly
+     * between {@code createdAfter} and {@code createdBefore}, ordered by creation time and then by sequence number.
+     *
+     * @param createdAfter  exclusive lower bound of the creation time in epoch millis
+     * @param createdBefore exclusive upper bound of the creation time in epoch millis
+     * @return an iterator over the matching records.
+     */
+    Iterator<TodoRecord> iteratorCreated(long createdAfter, long createdBefore);
+
+    /**
+     * The records of a store as of one of its versions.  None of the mutations made after its version affect what it
+     * reads: records created later are not included, and records changed or removed later are returned as they were.
+     * <p/>
+     * An open snapshot keeps the versions it may read from being reclaimed, so it should be closed as soon as it is
+     * no longer needed.  It may be read any number of times, from any thread, until then.
+     */
+    interface Snapshot extends Iterable<TodoRecord>, Closeable {
+
+        /**
+         * Returns the version of the store the snapshot reflects.
+         */
+        long getVersion();
+
+        /**
+         * Returns the records as of the snapshot's version in creation order.
+         */
+        @Override
+        Iterator<TodoRecord> iterator();
+
+        /**
+         * Returns the records as of the snapshot's version that were created after the record with the specified
+         * sequence number, in creation order.  The record itself does not need to exist anymore.
+         *
+         * @param seq the sequence number of the last record already seen
+         * @return an iterator over the records created after {@code seq}.
+         */
+        Iterator<TodoRecord> iteratorAfter(long seq);
+
+        /**
+         * Returns the records as of the snapshot's version whose done flag equals {@code done}, in creation order.
+         *
+         * @param done the done flag of the records to return
+         * @return an iterator over the matching records.
+         */
+        Iterator<TodoRecord> iterator(boolean done);
+
+        /**
+         * Returns the records as of the snapshot's version whose done flag equals {@code done} and that were created
+         * after the record with the specified sequence number, in creation order.
+         *
+         * @param seq  the sequence number of the last record already seen
+         * @param done the done flag of the records to return
+         * @return an iterator over the matching records.
+         */
+        Iterator<TodoRecord> iteratorAfter(long seq, boolean done);
+
+        /**
+         * Returns the records as of the snapshot's version with a creation time strictly between
+         * {@code createdAfter} and {@code createdBefore}, ordered by creation time and then by sequence number.
+         *
+         * @param createdAfter  exclusive lower bound of the creation time in epoch millis
+         * @param createdBefore exclusive upper bound of the creation time in epoch millis
+         * @return an iterator over the matching records.
+         */
+        Iterator<TodoRecord> iteratorCreated(long createdAfter, long createdBefore);
+
+        /**
+         * Returns the records as of the snapshot's version with a creation time strictly between
+         * {@code createdAfter} and {@code createdBefore} that follow the position {@code (created, seq)} in the order
+         * of {@link #iteratorCreated(long, long)}.  The record at that position does not need to exist anymore.
+         *
+         * @param created       the creation time of the last record already seen
+         * @param seq           the sequence number of the last record already seen
+         * @param createdBefore exclusive upper bound of the creation time in epoch millis
+         * @return an iterator over the matching records.
+         */
+        Iterator<TodoRecord> iteratorCreated(long created, long seq, long createdBefore);
+
+        boolean isClosed();
+
+        /**
+         * Unpins the snapshot, so that the versions only it can read can be reclaimed.  Iterators of a closed
+         * snapshot fail rather than return records that may already have been reclaimed.
+         */
+        @Override
+        void close();
+    }
+
+    /**
+     * Snapshot of the number of records in a store.
+     */
+    final class Counts {
+
+        private final int size;
+        private final int done;
+
+        Counts(int size, int done) {
+            this.size = size;
+            this.done = done;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getDone() {
+            return done;
+        }
+
+        public int getOpen() {
+            return size - done;
+        }
+    }
+}
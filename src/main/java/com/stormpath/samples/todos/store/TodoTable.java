@@ -0,0 +1,1188 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.store;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * In-memory, multi-version table of {@link TodoRecord}s keyed by their two-{@code long} id.
+ * <p/>
+ * Records are found through an open-addressing hash index whose keys are stored inline in a primitive array (linear
+ * probing, no entry objects), and are additionally kept in an append-only array in creation order.  That array is
+ * the table's natural order: it is what iteration and paging walk, and because it is sorted by
+ * {@link TodoRecord#getSeq() sequence number}, a page can be resumed after any previously seen record with a binary
+ * search instead of a scan.
+ * <p/>
+ * Two secondary indexes are maintained along with every mutation:
+ * <ul>
+ * <li>a pair of bitmaps over the rows array, one marking the rows of todos that are done and one marking those that
+ * are not, so either set can be walked in creation order without looking at the records of the other one.</li>
+ * <li>a skip list ordered by creation time (ties broken by sequence number) for creation time range queries.</li>
+ * </ul>
+ * The number of records, of done records and of records created on each (UTC) day are kept up to date the same way,
+ * so they can be read in constant time.
+ * <p/>
+ * Every mutation gives the table and the affected record the next version number, so that clients can tell whether
+ * anything has changed since they last looked.  If {@link #recordChanges(int) changes are recorded}, every mutation
+ * is also appended to a {@link ChangeLog} under its version number.
+ * <p/>
+ * Records are immutable.  A mutation stores a new version of the todo's record, which is linked to the versions
+ * before it, and a removal stores a tombstone.  Readers {@link #snapshot() pin a snapshot} of the table, which sees
+ * every todo as it was at the snapshot's version for as long as it is open, however many pages or requests it is
+ * read over.  Old versions are unlinked by the mutations that follow once no open snapshot can read them any more,
+ * and the indexes cover every version that is still linked, so a reader only has to check each record it finds
+ * against its snapshot.
+ * <p/>
+ * Mutations ({@link #put(TodoRecord)} and {@link #remove(long, long)}) are serialized by a lock.  Lookups, iteration
+ * and pinning snapshots never lock: both arrays are only ever appended to or replaced wholesale, every slot and version
+ * is published with a volatile write after its contents have been written, and a snapshot is pinned by counting it
+ * against its version and checking that the version has not been reclaimed in the meantime.
+ * <p/>
+ * An id whose high half is {@code 0} is reserved to mark empty index slots and cannot be stored.
+ */
+public class TodoTable implements TodoStore {
+
+    private static final int INITIAL_CAPACITY = 1024; //must be a power of two
+    private static final int MIN_COMPACTION = 1024;
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    //the version reads of the current state resolve records at:
+    private static final long LATEST = Long.MAX_VALUE;
+
+    //the number of todos with old versions each mutation reclaims in addition to the one it changes:
+    private static final int RECLAIM_BATCH = 2;
+
+    //the number of times a count is attempted before settling for one that mutations interfered with:
+    private static final int COUNT_ATTEMPTS = 3;
+
+    /**
+     * The entry of a todo in the indexes.  It stays the same for the lifetime of the todo, while its head changes to
+     * every new version of the todo's record.
+     */
+    private static final class Chain {
+
+        final long seq;
+        final long created;
+        volatile TodoRecord head;
+
+        //guarded by the table lock:
+        int row; //position in the table's rows array, changes when the rows are compacted
+        boolean queued; //waiting for older versions to be reclaimed
+        boolean dead; //removed before any open snapshot's version, waiting to be compacted away
+
+        Chain(TodoRecord head) {
+            this.seq = head.seq;
+            this.created = head.getCreated();
+            this.head = head;
+        }
+
+        Chain(long created, long seq) {
+            this.seq = seq;
+            this.created = created;
+        }
+
+        TodoRecord at(long version) {
+            return TodoTable.at(head, version);
+        }
+    }
+
+    private static final class Index {
+
+        final int mask;
+        //[2 * slot] = id high, [2 * slot + 1] = id low.  A slot's key is written once and then never changes until the
+        //index is replaced, which is what makes lock-free probing safe:
+        final AtomicLongArray keys;
+        //null for a key whose todo has been removed:
+        final AtomicReferenceArray<Chain> values;
+        final int threshold;
+        int used; //slots with a key, including removed ones.  Guarded by the table lock.
+
+        Index(int capacity) {
+            this.mask = capacity - 1;
+            this.keys = new AtomicLongArray(capacity * 2);
+            this.values = new AtomicReferenceArray<Chain>(capacity);
+            this.threshold = (int) (capacity * 0.6f);
+        }
+    }
+
+    private static final class Rows {
+
+        final Chain[] chains;
+        //the latest version of each row's todo, so that readers get to it without going through its chain:
+        final AtomicReferenceArray<TodoRecord> heads;
+        //one bit per row, set if any linked version of the todo is (not) done.  A todo that only has tombstones
+        //linked has neither bit set:
+        final AtomicLongArray done;
+        final AtomicLongArray open;
+        //columns of the latest state for counting without visiting any records: the creation time of each row, one
+        //bit per row that is set while its todo is live, and one that is set if the latest version is done.  The bits
+        //are kept in plain int words, which are never torn, and are published by the version written after them.
+        //Each mutation changes a single word that is visible to counts, so a count sees it completely or not at all:
+        final long[] created;
+        final int[] live;
+        final int[] latestDone;
+        //whether the rows are in creation time order as well.  Written before the size that includes a row out of
+        //order:
+        volatile boolean createdOrdered = true;
+        long maxCreated = Long.MIN_VALUE; //guarded by the table lock
+        volatile int size;
+
+        Rows(int capacity) {
+            this.chains = new Chain[capacity];
+            this.heads = new AtomicReferenceArray<TodoRecord>(capacity);
+            int words = (capacity + 63) >>> 6;
+            this.done = new AtomicLongArray(words);
+            this.open = new AtomicLongArray(words);
+            this.created = new long[capacity];
+            this.live = new int[(capacity + 31) >>> 5];
+            this.latestDone = new int[live.length];
+        }
+
+        //must be called with the table lock held:
+        void setCreated(int row, long created) {
+            this.created[row] = created;
+            if (created < maxCreated) {
+                createdOrdered = false;
+            }
+            maxCreated = Math.max(maxCreated, created);
+        }
+
+        //must be called with the table lock held.  Marks the latest version of a row's todo, null if it is removed:
+        void setLatest(int row, TodoRecord latest) {
+            int bit = 1 << row;
+            int word = row >>> 5;
+            if (latest == null) {
+                live[word] &= ~bit;
+                return;
+            }
+            if (latest.isDone()) {
+                latestDone[word] |= bit;
+            } else {
+                latestDone[word] &= ~bit;
+            }
+            live[word] |= bit; //only changes for a new row, which counts cannot see before its done bit
+        }
+
+        //must be called with the table lock held, so there is never more than one writer per word:
+        void mark(int row, boolean isDone, boolean isOpen) {
+            if (isDone) {
+                set(done, row);
+            } else {
+                clear(done, row);
+            }
+            if (isOpen) {
+                set(open, row);
+            } else {
+                clear(open, row);
+            }
+        }
+
+        //must be called with the table lock held:
+        void add(int row, boolean isDone) {
+            set(isDone ? done : open, row);
+        }
+
+        private static void set(AtomicLongArray bits, int row) {
+            int word = row >>> 6;
+            bits.set(word, bits.get(word) | (1L << row));
+        }
+
+        private static void clear(AtomicLongArray bits, int row) {
+            int word = row >>> 6;
+            bits.set(word, bits.get(word) & ~(1L << row));
+        }
+    }
+
+    //orders todos by creation time and then by sequence number, so that no two todos in the table are equal:
+    private static final Comparator<Chain> CREATED_ORDER = new Comparator<Chain>() {
+        @Override
+        public int compare(Chain a, Chain b) {
+            if (a.created != b.created) {
+                return a.created < b.created ? -1 : 1;
+            }
+            return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+        }
+    };
+
+    private final Object lock = new Object();
+
+    private volatile Index index = new Index(INITIAL_CAPACITY);
+    private volatile Rows rows = new Rows(INITIAL_CAPACITY);
+    //the number of records in the high half and the number of done records in the low half, so both can be read
+    //together with a single volatile read:
+    private volatile long counts;
+
+    private final NavigableSet<Chain> byCreated = new ConcurrentSkipListSet<Chain>(CREATED_ORDER);
+
+    //number of records per creation day (days since the epoch, UTC).  Only written with the lock held:
+    private final ConcurrentSkipListMap<Long, AtomicInteger> createdPerDay =
+            new ConcurrentSkipListMap<Long, AtomicInteger>();
+
+    //null unless changes are being recorded:
+    private volatile ChangeLog changes;
+
+    //the version of the latest mutation and when it happened:
+    private volatile long version;
+    private volatile long lastModified;
+
+    //the versions open snapshots are pinned at, shared by all snapshots of the same version:
+    private final ConcurrentSkipListMap<Long, Pin> pins = new ConcurrentSkipListMap<Long, Pin>();
+    //versions before the horizon may have been unlinked, so no snapshot can be pinned before it.  Only ever increases
+    //and is only written with the lock held:
+    private volatile long horizon;
+
+    //guarded by lock:
+    private int dead; //dead todos that are still in the rows array
+    private long lastSeq;
+    private final Queue<Chain> versioned = new ArrayDeque<Chain>(); //todos with more than one linked version
+
+    public TodoTable() {
+        this(0);
+    }
+
+    /**
+     * @param initialVersion the version of the empty table.  The first mutation is given the next higher version.
+     */
+    public TodoTable(long initialVersion) {
+        this.version = initialVersion;
+        this.horizon = initialVersion;
+        this.lastModified = System.currentTimeMillis();
+    }
+
+    @Override
+    public int size() {
+        return (int) (counts >>> 32);
+    }
+
+    /**
+     * Returns the version of the latest mutation of this table.  Versions increase with every mutation.
+     *
+     * @return the version of the latest mutation of this table.
+     */
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the time of the latest mutation of this table (or of its creation), in epoch millis.
+     *
+     * @return the time of the latest mutation of this table.
+     */
+    @Override
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Starts recording all subsequent mutations of this table in a new change log, whose sequence numbers are the
+     * versions of the mutations.
+     *
+     * @param capacity the number of changes the log remembers
+     * @return the new change log.
+     */
+    @Override
+    public ChangeLog recordChanges(int capacity) {
+        synchronized (lock) {
+            ChangeLog log = new ChangeLog(capacity, version);
+            this.changes = log;
+            return log;
+        }
+    }
+
+    /**
+     * Returns the current number of records and of done records as one consistent snapshot.
+     *
+     * @return the current record counts.
+     */
+    @Override
+    public Counts counts() {
+        return new Counts((int) (counts >>> 32), (int) counts);
+    }
+
+    /**
+     * Returns the number of records created on each day, keyed by the number of days since the epoch (UTC).  Days on
+     * which no remaining record was created are omitted.
+     *
+     * @return the number of records created per day, in order of the day.
+     */
+    @Override
+    public SortedMap<Long, Integer> createdPerDay() {
+        SortedMap<Long, Integer> days = new TreeMap<Long, Integer>();
+        for (Map.Entry<Long, AtomicInteger> entry : createdPerDay.entrySet()) {
+            int count = entry.getValue().get();
+            if (count > 0) {
+                days.put(entry.getKey(), count);
+            }
+        }
+        return days;
+    }
+
+    /**
+     * Returns the day, counted from the epoch in UTC, of the specified epoch millis.
+     */
+    public static long toDay(long millis) {
+        long day = millis / MILLIS_PER_DAY;
+        return millis % MILLIS_PER_DAY < 0 ? day - 1 : day;
+    }
+
+    /**
+     * Returns the latest version of the record with the specified id, or {@code null} if there is no such record.
+     */
+    @Override
+    public TodoRecord get(long high, long low) {
+        if (high == 0) {
+            return null;
+        }
+        Index idx = index;
+        int slot = find(idx, high, low);
+        Chain chain = slot >= 0 ? idx.values.get(slot) : null;
+        return chain != null ? chain.at(LATEST) : null;
+    }
+
+    /**
+     * Stores the specified record.  If a record with the same id is already present, a new version of it with the
+     * name and done flag of the specified record is stored and returned.  Otherwise the specified record itself is
+     * added to the end of the table and returned.
+     *
+     * @param record the record to store, which is owned by the table from now on
+     * @return the record as stored in the table
+     */
+    @Override
+    public TodoRecord put(TodoRecord record) {
+        long high = record.getIdHigh();
+        long low = record.getIdLow();
+        if (high == 0) {
+            throw new IllegalArgumentException("Todo ids with a high half of 0 are reserved.");
+        }
+        synchronized (lock) {
+            Index idx = index;
+            int slot = find(idx, high, low);
+            if (slot >= 0) {
+                Chain chain = idx.values.get(slot);
+                if (chain != null) {
+                    TodoRecord current = chain.head;
+                    TodoRecord next = new TodoRecord(high, low, current.getCreated(), record.getName(),
+                            record.isDone());
+                    next.seq = current.seq;
+                    if (current.isDone() != next.isDone()) {
+                        counts += next.isDone() ? 1 : -1;
+                    }
+                    push(chain, next);
+                    return next;
+                }
+                //previously removed id - the key is still in place, so only the value needs to be set:
+                chain = append(record);
+                idx.values.set(slot, chain);
+                commit(record);
+                reclaim(null);
+                return record;
+            }
+
+            if (idx.used + 1 > idx.threshold) {
+                idx = rehash();
+            }
+            slot = hash(high, low) & idx.mask;
+            while (idx.keys.get(slot << 1) != 0) {
+                slot = (slot + 1) & idx.mask;
+            }
+            Chain chain = append(record);
+            idx.values.set(slot, chain);
+            idx.keys.set((slot << 1) + 1, low);
+            idx.keys.set(slot << 1, high); //publishes the slot to concurrent readers
+            idx.used++;
+            commit(record);
+            reclaim(null);
+            return record;
+        }
+    }
+
+    /**
+     * Removes the record with the specified id by storing a tombstone for it.  Snapshots pinned before the removal
+     * continue to see the record.
+     *
+     * @return the tombstone of the removed record, which has the version of the removal and the name and done flag
+     *         the record had before it, or {@code null} if there is no record with the id.
+     */
+    @Override
+    public TodoRecord remove(long high, long low) {
+        if (high == 0) {
+            return null;
+        }
+        synchronized (lock) {
+            Index idx = index;
+            int slot = find(idx, high, low);
+            if (slot < 0) {
+                return null;
+            }
+            Chain chain = idx.values.get(slot);
+            if (chain == null) {
+                return null;
+            }
+            TodoRecord record = chain.head;
+            TodoRecord tombstone = new TodoRecord(high, low, record.getCreated(), record.getName(), record.isDone());
+            tombstone.seq = record.seq;
+            tombstone.deleted = true;
+            idx.values.set(slot, null);
+            Long day = toDay(record.getCreated());
+            if (createdPerDay.get(day).decrementAndGet() == 0) {
+                createdPerDay.remove(day);
+            }
+            counts -= (1L << 32) + (record.isDone() ? 1 : 0);
+            push(chain, tombstone);
+            return tombstone;
+        }
+    }
+
+    /**
+     * Pins a snapshot of the table at its latest version.  This never locks and never waits for writers.
+     *
+     * @return the new snapshot, which must be closed.
+     */
+    @Override
+    public Snapshot snapshot() {
+        for (;;) {
+            Snapshot snapshot = pin(version);
+            if (snapshot != null) {
+                return snapshot;
+            }
+        }
+    }
+
+    /**
+     * Pins a snapshot of the table at an earlier version, typically the version of another snapshot that is still
+     * open, so that a reader can continue where that one left off.
+     *
+     * @param version a version previously obtained from {@link Snapshot#getVersion()}
+     * @return the new snapshot, which must be closed, or {@code null} if the version is no longer available because
+     *         the versions of records it needs may have been reclaimed.
+     */
+    @Override
+    public Snapshot snapshot(long version) {
+        if (version > this.version) {
+            throw new IllegalArgumentException("Version " + version + " has not been reached yet.");
+        }
+        return pin(version);
+    }
+
+    private Snapshot pin(long version) {
+        Long key = version;
+        for (;;) {
+            Pin pin = pins.get(key);
+            if (pin != null && pin.acquire()) {
+                //the pin has been held since it was registered, so the version cannot have been reclaimed:
+                return new Snapshot(this, pin);
+            }
+            Pin created = new Pin(version);
+            if (pin == null ? pins.putIfAbsent(key, created) != null : !pins.replace(key, pin, created)) {
+                continue;
+            }
+            //writers publish the horizon before they look for pins that are older than it, so either they find this
+            //one, or the horizon read here has already moved past it:
+            if (version < horizon) {
+                release(created);
+                return null;
+            }
+            return new Snapshot(this, created);
+        }
+    }
+
+    private void release(Pin pin) {
+        if (pin.refs.decrementAndGet() == 0) {
+            pins.remove(pin.version, pin);
+        }
+    }
+
+    //must be called with the lock held.  Returns the oldest version that may still be read by a snapshot:
+    private long horizon() {
+        long h = Math.min(version, oldestPin());
+        if (h > horizon) {
+            horizon = h;
+        }
+        //a snapshot that was pinned before the new horizon was published and is older than it is found now:
+        return Math.min(h, oldestPin());
+    }
+
+    private long oldestPin() {
+        Map.Entry<Long, Pin> oldest = pins.firstEntry();
+        return oldest != null ? oldest.getKey() : Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns a weakly consistent iterator over the latest versions of all live records in creation order.  The
+     * iterator reflects every record present when it was created and may or may not reflect later changes.
+     */
+    @Override
+    public Iterator<TodoRecord> iterator() {
+        return new RowIterator(rows, 0, LATEST, null);
+    }
+
+    /**
+     * Returns a weakly consistent iterator over the latest versions of the live records created after the record
+     * with the specified sequence number.  The record itself does not need to exist anymore.
+     *
+     * @param seq the sequence number of the last record already seen
+     * @return an iterator over the records created after {@code seq}.
+     */
+    public Iterator<TodoRecord> iteratorAfter(long seq) {
+        Rows r = rows;
+        return new RowIterator(r, position(r, seq), LATEST, null);
+    }
+
+    /**
+     * Returns a weakly consistent iterator over the latest versions of the live records whose done flag equals
+     * {@code done}, in creation order.  Only the rows of matching records are visited.
+     *
+     * @param done the done flag of the records to return
+     * @return an iterator over the matching records.
+     */
+    public Iterator<TodoRecord> iterator(boolean done) {
+        return new BitmapIterator(rows, 0, done, LATEST, null);
+    }
+
+    /**
+     * Returns a weakly consistent iterator over the latest versions of the live records whose done flag equals
+     * {@code done} and that were created after the record with the specified sequence number, in creation order.
+     *
+     * @param seq  the sequence number of the last record already seen
+     * @param done the done flag of the records to return
+     * @return an iterator over the matching records.
+     */
+    public Iterator<TodoRecord> iteratorAfter(long seq, boolean done) {
+        Rows r = rows;
+        return new BitmapIterator(r, position(r, seq), done, LATEST, null);
+    }
+
+    /**
+     * Returns a weakly consistent iterator over the latest versions of the live records with a creation time strictly
+     * between {@code createdAfter} and {@code createdBefore}, ordered by creation time and then by sequence number.
+     *
+     * @param createdAfter  exclusive lower bound of the creation time in epoch millis
+     * @param createdBefore exclusive upper bound of the creation time in epoch millis
+     * @return an iterator over the matching records.
+     */
+    @Override
+    public Iterator<TodoRecord> iteratorCreated(long createdAfter, long createdBefore) {
+        return iteratorCreated(createdAfter, Long.MAX_VALUE, createdBefore);
+    }
+
+    /**
+     * Returns a weakly consistent iterator over the latest versions of the live records with a creation time strictly
+     * between {@code createdAfter} and {@code createdBefore} that follow the position {@code (created, seq)} in the
+     * order of {@link #iteratorCreated(long, long)}.  The record at that position does not need to exist anymore.
+     *
+     * @param created       the creation time of the last record already seen
+     * @param seq           the sequence number of the last record already seen
+     * @param createdBefore exclusive upper bound of the creation time in epoch millis
+     * @return an iterator over the matching records.
+     */
+    public Iterator<TodoRecord> iteratorCreated(long created, long seq, long createdBefore) {
+        return iteratorCreated(created, seq, createdBefore, LATEST, null);
+    }
+
+    /**
+     * Counts the live records with a creation time strictly between {@code createdAfter} and {@code createdBefore}
+     * without visiting any of them.  As long as the rows are in creation time order, which they are unless todos
+     * were added out of order, the rows in the range are found with a binary search of the creation time column and
+     * their bits are counted a word at a time.  Otherwise the creation time column is scanned in full.
+     * <p/>
+     * This never locks.  The count is that of a single version of the table, unless mutations keep interfering with
+     * the scan, in which case it is weakly consistent like the iterators.
+     *
+     * @param done          the done flag of the records to count, or {@code null} to count all of them
+     * @param createdAfter  exclusive lower bound of the creation time in epoch millis
+     * @param createdBefore exclusive upper bound of the creation time in epoch millis
+     * @return the number of matching records.
+     */
+    @Override
+    public int count(Boolean done, long createdAfter, long createdBefore) {
+        if (createdAfter >= createdBefore) {
+            return 0;
+        }
+        int count = 0;
+        for (int attempt = 0; attempt < COUNT_ATTEMPTS; attempt++) {
+            //the columns reflect every mutation up to the version read before them, and a mutation changes the bits
+            //of a single row, so if the version is still the same afterwards, no other version was counted:
+            long before = version;
+            count = count(rows, done, createdAfter, createdBefore);
+            if (version == before) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    private static int count(Rows r, Boolean done, long createdAfter, long createdBefore) {
+        int n = r.size;
+        //the rows counted in a word are live & ((latestDone ^ invert) | any), which selects done, open or all rows:
+        int invert = Boolean.FALSE.equals(done) ? -1 : 0;
+        int any = done == null ? -1 : 0;
+        int[] live = r.live;
+        int[] latestDone = r.latestDone;
+        //read after the size, so that it is false if any of the rows up to it is out of order:
+        if (r.createdOrdered) {
+            int from = firstCreatedAfter(r.created, n, createdAfter);
+            int to = firstCreatedAfter(r.created, n, createdBefore - 1);
+            if (from >= to) {
+                return 0;
+            }
+            int first = from >>> 5;
+            int last = (to - 1) >>> 5;
+            int count = 0;
+            for (int word = first; word <= last; word++) {
+                int rows = live[word] & ((latestDone[word] ^ invert) | any);
+                if (word == first) {
+                    rows &= -1 << from;
+                }
+                if (word == last) {
+                    rows &= -1 >>> (31 - ((to - 1) & 31));
+                }
+                count += Integer.bitCount(rows);
+            }
+            return count;
+        }
+        //from <= created < createdBefore is tested as one unsigned comparison, so the inner loop does not branch:
+        long from = createdAfter + 1;
+        long span = (createdBefore - from) ^ Long.MIN_VALUE;
+        long[] created = r.created;
+        int count = 0;
+        for (int word = 0, words = (n + 31) >>> 5; word < words; word++) {
+            int rows = live[word] & ((latestDone[word] ^ invert) | any);
+            if (rows != 0) {
+                int base = word << 5;
+                int inRange = 0;
+                for (int i = 0; i < 32; i++) {
+                    inRange |= ((created[base + i] - from) ^ Long.MIN_VALUE) < span ? 1 << i : 0;
+                }
+                count += Integer.bitCount(rows & inRange);
+            }
+        }
+        return count;
+    }
+
+    //the first of n rows in creation time order that was created after the specified time:
+    private static int firstCreatedAfter(long[] created, int n, long time) {
+        int lo = 0;
+        int hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (created[mid] <= time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private Iterator<TodoRecord> iteratorCreated(long created, long seq, long createdBefore, long version,
+                                                 Snapshot snapshot) {
+        if (created >= createdBefore) {
+            return Collections.<TodoRecord>emptySet().iterator();
+        }
+        //probes compare before (or after) every todo of the same creation time:
+        Iterator<Chain> chains = byCreated.subSet(new Chain(created, seq), false,
+                new Chain(createdBefore, Long.MIN_VALUE), false).iterator();
+        return new SkipListIterator(chains, version, snapshot);
+    }
+
+    //the position of the first row with a sequence number greater than seq:
+    private static int position(Rows r, long seq) {
+        int lo = 0;
+        int hi = r.size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (r.heads.get(mid).seq <= seq) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    //the version of a todo as of the specified table version, or null if the todo did not exist then:
+    private static TodoRecord at(TodoRecord head, long version) {
+        TodoRecord record = head;
+        while (record != null && record.version > version) {
+            record = record.previous;
+        }
+        return record != null && !record.deleted ? record : null;
+    }
+
+    private static int find(Index idx, long high, long low) {
+        int slot = hash(high, low) & idx.mask;
+        for (;;) {
+            long h = idx.keys.get(slot << 1);
+            if (h == 0) {
+                return -1;
+            }
+            if (h == high && idx.keys.get((slot << 1) + 1) == low) {
+                return slot;
+            }
+            slot = (slot + 1) & idx.mask;
+        }
+    }
+
+    private static int hash(long high, long low) {
+        long h = high ^ low;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    //must be called with the lock held.  Gives a new version of a record the next version number of the table:
+    private void stamp(TodoRecord record) {
+        record.version = version + 1;
+        record.modified = System.currentTimeMillis();
+    }
+
+    //must be called with the lock held, once the stamped version is reachable through the indexes:
+    private void commit(TodoRecord record) {
+        ChangeLog log = changes;
+        if (log != null) {
+            log.append(record.version, record, record.deleted);
+        }
+        lastModified = record.modified;
+        version = record.version; //snapshots pinned from now on see the new version
+    }
+
+    //must be called with the lock held:
+    private void push(Chain chain, TodoRecord next) {
+        stamp(next);
+        next.previous = chain.head;
+        if (!next.deleted) {
+            rows.add(chain.row, next.isDone());
+        }
+        rows.setLatest(chain.row, next.deleted ? null : next);
+        chain.head = next;
+        rows.heads.set(chain.row, next); //publishes the new version to readers of the latest state
+        commit(next);
+        reclaim(chain);
+    }
+
+    //must be called with the lock held:
+    private void reclaim(Chain changed) {
+        long h = horizon();
+        if (changed != null) {
+            trim(changed, h);
+        }
+        for (int i = 0; i < RECLAIM_BATCH && !versioned.isEmpty(); i++) {
+            Chain chain = versioned.poll();
+            chain.queued = false;
+            trim(chain, h);
+        }
+    }
+
+    //must be called with the lock held.  Unlinks the versions of a todo that no snapshot can read any more - all but
+    //the latest one at or before the horizon - and updates the bitmaps to the versions that remain:
+    private void trim(Chain chain, long horizon) {
+        if (chain.dead) {
+            return;
+        }
+        boolean isDone = false;
+        boolean isOpen = false;
+        TodoRecord head = chain.head;
+        for (TodoRecord record = head; record != null; record = record.previous) {
+            if (!record.deleted) {
+                isDone |= record.isDone();
+                isOpen |= !record.isDone();
+            }
+            if (record.version <= horizon) {
+                record.previous = null;
+            }
+        }
+        rows.mark(chain.row, isDone, isOpen);
+        if (head.deleted && head.previous == null) {
+            //removed before the horizon, so no snapshot can see the todo any more:
+            chain.dead = true;
+            byCreated.remove(chain);
+            dead++;
+            if (dead > MIN_COMPACTION && dead > size()) {
+                Rows r = rows;
+                rows = compact(r, r.chains.length);
+            }
+        } else if (head.previous != null && !chain.queued) {
+            chain.queued = true;
+            versioned.add(chain);
+        }
+    }
+
+    //must be called with the lock held:
+    private Index rehash() {
+        Index old = index;
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < (size() + 1) * 3) {
+            capacity <<= 1;
+        }
+        Index idx = new Index(capacity);
+        for (int i = 0; i <= old.mask; i++) {
+            Chain chain = old.values.get(i);
+            if (chain != null) {
+                TodoRecord record = chain.head;
+                int slot = hash(record.getIdHigh(), record.getIdLow()) & idx.mask;
+                while (idx.keys.get(slot << 1) != 0) {
+                    slot = (slot + 1) & idx.mask;
+                }
+                idx.values.set(slot, chain);
+                idx.keys.set((slot << 1) + 1, record.getIdLow());
+                idx.keys.set(slot << 1, record.getIdHigh());
+                idx.used++;
+            }
+        }
+        index = idx;
+        return idx;
+    }
+
+    //must be called with the lock held.  Adds a new todo and stamps its record, which still needs to be committed:
+    private Chain append(TodoRecord record) {
+        record.seq = ++lastSeq;
+        stamp(record);
+        Chain chain = new Chain(record);
+        Rows r = rows;
+        int n = r.size;
+        if (n == r.chains.length) {
+            int capacity = r.chains.length;
+            if (dead < n / 2) {
+                capacity *= 2;
+            }
+            r = compact(r, capacity);
+            rows = r;
+            n = r.size;
+        }
+        r.chains[n] = chain;
+        r.heads.set(n, record);
+        chain.row = n;
+        r.add(n, record.isDone());
+        r.setCreated(n, record.getCreated());
+        r.setLatest(n, record);
+        r.size = n + 1; //publishes the row to concurrent readers
+        byCreated.add(chain);
+        Long day = toDay(record.getCreated());
+        AtomicInteger perDay = createdPerDay.get(day);
+        if (perDay == null) {
+            createdPerDay.put(day, new AtomicInteger(1));
+        } else {
+            perDay.incrementAndGet();
+        }
+        counts += (1L << 32) + (record.isDone() ? 1 : 0);
+        return chain;
+    }
+
+    //must be called with the lock held.  Snapshots that are reading the old rows keep doing so, which is safe because
+    //dead todos are invisible to them anyway:
+    private Rows compact(Rows r, int capacity) {
+        Rows compacted = new Rows(capacity);
+        int n = 0;
+        for (int i = 0; i < r.size; i++) {
+            Chain chain = r.chains[i];
+            if (!chain.dead) {
+                compacted.chains[n] = chain;
+                compacted.heads.set(n, chain.head);
+                compacted.setCreated(n, chain.created);
+                compacted.setLatest(n, chain.head.deleted ? null : chain.head);
+                chain.row = n;
+                for (TodoRecord record = chain.head; record != null; record = record.previous) {
+                    if (!record.deleted) {
+                        compacted.add(n, record.isDone());
+                    }
+                }
+                n++;
+            }
+        }
+        compacted.size = n;
+        dead = 0;
+        return compacted;
+    }
+
+    /**
+     * The records of a table as of one of its versions.  A snapshot is pinned without locking and reads without
+     * locking, and none of the mutations made after its version affect what it reads: records created later are not
+     * included, and records changed or removed later are returned as they were.
+     * <p/>
+     * An open snapshot keeps the versions it may read from being reclaimed, so it should be closed as soon as it is
+     * no longer needed.  It may be read any number of times, from any thread, until then.
+     */
+    public static final class Snapshot implements TodoStore.Snapshot {
+
+        private final TodoTable table;
+        private final Pin pin;
+        private final long version;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Snapshot(TodoTable table, Pin pin) {
+            this.table = table;
+            this.pin = pin;
+            this.version = pin.version;
+        }
+
+        /**
+         * Returns the version of the table the snapshot reflects.
+         */
+        @Override
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Equivalent of {@link TodoTable#iterator()} as of the snapshot's version.
+         */
+        @Override
+        public Iterator<TodoRecord> iterator() {
+            return new RowIterator(table.rows, 0, version, this);
+        }
+
+        /**
+         * Equivalent of {@link TodoTable#iteratorAfter(long)} as of the snapshot's version.
+         */
+        @Override
+        public Iterator<TodoRecord> iteratorAfter(long seq) {
+            Rows r = table.rows;
+            return new RowIterator(r, position(r, seq), version, this);
+        }
+
+        /**
+         * Equivalent of {@link TodoTable#iterator(boolean)} as of the snapshot's version.
+         */
+        @Override
+        public Iterator<TodoRecord> iterator(boolean done) {
+            return new BitmapIterator(table.rows, 0, done, version, this);
+        }
+
+        /**
+         * Equivalent of {@link TodoTable#iteratorAfter(long, boolean)} as of the snapshot's version.
+         */
+        @Override
+        public Iterator<TodoRecord> iteratorAfter(long seq, boolean done) {
+            Rows r = table.rows;
+            return new BitmapIterator(r, position(r, seq), done, version, this);
+        }
+
+        /**
+         * Equivalent of {@link TodoTable#iteratorCreated(long, long)} as of the snapshot's version.
+         */
+        @Override
+        public Iterator<TodoRecord> iteratorCreated(long createdAfter, long createdBefore) {
+            return iteratorCreated(createdAfter, Long.MAX_VALUE, createdBefore);
+        }
+
+        /**
+         * Equivalent of {@link TodoTable#iteratorCreated(long, long, long)} as of the snapshot's version.
+         */
+        @Override
+        public Iterator<TodoRecord> iteratorCreated(long created, long seq, long createdBefore) {
+            return table.iteratorCreated(created, seq, createdBefore, version, this);
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed.get();
+        }
+
+        /**
+         * Unpins the snapshot, so that the versions only it can read are reclaimed by the next mutations.  Iterators
+         * of a closed snapshot fail rather than return records that may already have been reclaimed.
+         */
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                table.release(pin);
+            }
+        }
+    }
+
+    /**
+     * The number of open snapshots of a version.  Once it has dropped to zero the pin is unregistered and cannot be
+     * acquired again, so a pin that can be acquired has been keeping its version from being reclaimed all along.
+     */
+    private static final class Pin {
+
+        final long version;
+        final AtomicInteger refs = new AtomicInteger(1);
+
+        Pin(long version) {
+            this.version = version;
+        }
+
+        boolean acquire() {
+            for (;;) {
+                int n = refs.get();
+                if (n == 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(n, n + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the todos of an iteration that exist as of its version.
+     */
+    private abstract static class ResolvingIterator implements Iterator<TodoRecord> {
+
+        private final long version;
+        //null for reads of the latest state:
+        private final Snapshot snapshot;
+        private TodoRecord next;
+        private boolean advanced;
+
+        ResolvingIterator(long version, Snapshot snapshot) {
+            this.version = version;
+            this.snapshot = snapshot;
+        }
+
+        //the latest version of the next candidate todo, or null if there are no more:
+        protected abstract TodoRecord nextHead();
+
+        //whether the version of a candidate's record belongs in the iteration:
+        protected boolean accept(TodoRecord record) {
+            return true;
+        }
+
+        private void advance() {
+            if (snapshot != null && snapshot.isClosed()) {
+                throw new IllegalStateException("The snapshot has been closed.");
+            }
+            next = null;
+            for (TodoRecord head = nextHead(); head != null; head = nextHead()) {
+                TodoRecord record = at(head, version);
+                if (record != null && accept(record)) {
+                    next = record;
+                    break;
+                }
+            }
+            advanced = true;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!advanced) {
+                advance();
+            }
+            return next != null;
+        }
+
+        @Override
+        public TodoRecord next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            advanced = false;
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class RowIterator extends ResolvingIterator {
+
+        private final Rows rows;
+        private final int end;
+        private int position;
+
+        RowIterator(Rows rows, int position, long version, Snapshot snapshot) {
+            super(version, snapshot);
+            this.rows = rows;
+            this.end = rows.size;
+            this.position = position;
+        }
+
+        @Override
+        protected TodoRecord nextHead() {
+            return position < end ? rows.heads.get(position++) : null;
+        }
+    }
+
+    private static class BitmapIterator extends ResolvingIterator {
+
+        private final Rows rows;
+        private final AtomicLongArray bits;
+        private final boolean done;
+        private final int end;
+        private int word;
+        private long remaining; //the bits of the current word that have not been visited yet
+
+        BitmapIterator(Rows rows, int position, boolean done, long version, Snapshot snapshot) {
+            super(version, snapshot);
+            this.rows = rows;
+            this.bits = done ? rows.done : rows.open;
+            this.done = done;
+            this.end = rows.size;
+            this.word = position >>> 6;
+            if (position < end) {
+                this.remaining = bits.get(word) & (-1L << position);
+            }
+        }
+
+        @Override
+        protected TodoRecord nextHead() {
+            int lastWord = (end - 1) >>> 6;
+            while (end > 0 && word <= lastWord) {
+                if (remaining != 0) {
+                    int row = (word << 6) + Long.numberOfTrailingZeros(remaining);
+                    remaining &= remaining - 1;
+                    return row < end ? rows.heads.get(row) : null;
+                }
+                if (++word <= lastWord) {
+                    remaining = bits.get(word);
+                }
+            }
+            return null;
+        }
+
+        //a row is marked if any linked version matches, so check the version that is read:
+        @Override
+        protected boolean accept(TodoRecord record) {
+            return record.isDone() == done;
+        }
+    }
+
+    private static class SkipListIterator extends ResolvingIterator {
+
+        private final Iterator<Chain> chains;
+
+        SkipListIterator(Iterator<Chain> chains, long version, Snapshot snapshot) {
+            super(version, snapshot);
+            this.chains = chains;
+        }
+
+        @Override
+        protected TodoRecord nextHead() {
+            return chains.hasNext() ? chains.next().head : null;
+        }
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only, segmented binary log of mutations.
+ * <p/>
+ * Every record is assigned a log sequence number (LSN) that increases by one per record, and is stored as:
+ * <pre>
+ * int  payload length
+ * int  CRC32 of type + payload
+ * long LSN
+ * byte type
+ * byte[] payload
+ * </pre>
+ * Writing and forcing are separate steps: {@link #append(byte, byte[])} hands a record to the operating system and
+ * returns its LSN, and {@link #sync(long)} waits until that LSN is durable according to the configured
+ * {@link Durability}.  Callers can therefore append while holding their own locks and wait for durability after
+ * releasing them, which is what allows many concurrent writers to share a single fsync (group commit).
+ * <p/>
+ * When a log is {@link #open(long, RecordHandler) opened}, existing records are replayed in LSN order.  A torn or
+ * corrupt record at the end of the last segment (e.g. from a crash in the middle of a write) is truncated.  Once a
+ * {@link SnapshotStore snapshot} covers a prefix of the log, the segments holding only that prefix can be removed with
+ * {@link #deleteSegmentsBefore(long)}.
+ */
+public class WriteAheadLog {
+
+    public static final long DEFAULT_SYNC_INTERVAL = 10; //millis
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    static final String SEGMENT_PREFIX = "wal-";
+    static final String SEGMENT_SUFFIX = ".log";
+
+    private static final int HEADER_LENGTH = 4 + 4 + 8 + 1;
+    private static final int MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    /**
+     * Callback used to replay existing records when a log is opened.
+     */
+    public interface RecordHandler {
+        void handle(long lsn, byte type, DataInputStream payload) throws IOException;
+    }
+
+    private final File directory;
+    private final Durability durability;
+    private final long syncInterval;
+    private final long segmentSize;
+
+    private final Object writeMonitor = new Object();
+    private final Object syncMonitor = new Object();
+
+    //guarded by writeMonitor:
+    private RandomAccessFile segment;
+    private FileChannel channel;
+    private long segmentLength;
+    private long lastLsn;
+    private long replayedRecords;
+
+    //guarded by syncMonitor:
+    private long syncedLsn;
+    private boolean syncing;
+
+    private ScheduledExecutorService syncer;
+
+    public WriteAheadLog(File directory, Durability durability) {
+        this(directory, durability, DEFAULT_SYNC_INTERVAL, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public WriteAheadLog(File directory, Durability durability, long syncInterval, long segmentSize) {
+        if (directory == null) {
+            throw new IllegalArgumentException("Directory argument cannot be null.");
+        }
+        if (durability == null) {
+            throw new IllegalArgumentException("Durability argument cannot be null.");
+        }
+        if (syncInterval <= 0) {
+            throw new IllegalArgumentException("Sync interval must be greater than zero.");
+        }
+        this.directory = directory;
+        this.durability = durability;
+        this.syncInterval = syncInterval;
+        this.segmentSize = segmentSize;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Replays every existing record after {@code afterLsn} to the specified handler and then opens the log for
+     * appending.  New records are numbered after both the last existing record and {@code afterLsn}.
+     *
+     * @param afterLsn the LSN of the last record already reflected in the caller's state (e.g. by a snapshot), or
+     *                 {@code 0} to replay the whole log
+     * @param handler  the callback that receives existing records in LSN order
+     * @throws IOException if the log cannot be read or a segment other than the last one is corrupt.
+     */
+    public void open(long afterLsn, RecordHandler handler) throws IOException {
+        synchronized (writeMonitor) {
+            if (channel != null) {
+                throw new IllegalStateException("Write-ahead log is already open.");
+            }
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create write-ahead log directory " + directory);
+            }
+
+            long start = System.currentTimeMillis();
+            List<File> segments = getSegments();
+            for (int i = 0; i < segments.size(); i++) {
+                File file = segments.get(i);
+                boolean last = i == segments.size() - 1;
+                long validLength = replay(file, afterLsn, handler);
+                if (validLength < file.length()) {
+                    if (!last) {
+                        throw new IOException("Write-ahead log segment " + file + " is corrupt at offset " +
+                                validLength + " and is not the last segment.  Refusing to continue.");
+                    }
+                    log.warn("Truncating torn write-ahead log tail of {} at offset {}.", file, validLength);
+                    truncate(file, validLength);
+                }
+            }
+            if (replayedRecords > 0) {
+                log.info("Replayed {} write-ahead log records in {} ms.", replayedRecords,
+                        System.currentTimeMillis() - start);
+            }
+
+            lastLsn = Math.max(lastLsn, afterLsn);
+            if (segments.isEmpty()) {
+                openSegment(newSegmentFile(lastLsn + 1));
+            } else {
+                openSegment(segments.get(segments.size() - 1));
+            }
+        }
+
+        synchronized (syncMonitor) {
+            syncedLsn = lastLsn;
+        }
+
+        if (durability == Durability.PERIODIC) {
+            syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "wal-sync");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            syncer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        awaitSync(getLastLsn());
+                    } catch (IOException e) {
+                        log.error("Unable to force write-ahead log to disk.", e);
+                    }
+                }
+            }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Appends a record to the log.  The record is written to the operating system but is not guaranteed to be
+     * durable until {@link #sync(long)} has returned for its LSN.
+     *
+     * @param type    an application-defined record type
+     * @param payload the record payload
+     * @return the LSN assigned to the record
+     * @throws IOException if the record cannot be written
+     */
+    public long append(byte type, byte[] payload) throws IOException {
+        if (payload.length > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Write-ahead log records cannot exceed " + MAX_PAYLOAD_LENGTH + " bytes.");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+        buf.putInt(payload.length);
+        buf.putInt((int) crc.getValue());
+        buf.putLong(0); //LSN placeholder, assigned under the write lock
+        buf.put(type);
+        buf.put(payload);
+        buf.flip();
+
+        synchronized (writeMonitor) {
+            if (channel == null) {
+                throw new IllegalStateException("Write-ahead log is not open.");
+            }
+            long lsn = lastLsn + 1;
+            buf.putLong(8, lsn);
+            if (segmentLength > 0 && segmentLength + buf.remaining() > segmentSize) {
+                roll(lsn);
+            }
+            while (buf.hasRemaining()) {
+                segmentLength += channel.write(buf);
+            }
+            lastLsn = lsn;
+            return lsn;
+        }
+    }
+
+    /**
+     * Waits until the record with the specified LSN is as durable as the configured {@link Durability} requires.
+     *
+     * @param lsn the LSN returned from {@link #append(byte, byte[])}
+     * @throws IOException if the log cannot be forced to disk
+     */
+    public void sync(long lsn) throws IOException {
+        if (durability == Durability.SYNC) {
+            awaitSync(lsn);
+        }
+    }
+
+    public long getLastLsn() {
+        synchronized (writeMonitor) {
+            return lastLsn;
+        }
+    }
+
+    /**
+     * Deletes every segment that only contains records up to and including {@code lsn}.  The segment currently being
+     * appended to is never deleted.
+     *
+     * @param lsn the LSN of the last record that is no longer needed, typically the LSN of a completed snapshot
+     */
+    public void deleteSegmentsBefore(long lsn) {
+        List<File> segments = getSegments();
+        for (int i = 0; i < segments.size() - 1; i++) {
+            //a segment holds the records up to (but excluding) the first LSN of the next segment:
+            if (getFirstLsn(segments.get(i + 1)) - 1 > lsn) {
+                break;
+            }
+            File file = segments.get(i);
+            if (file.delete()) {
+                log.debug("Deleted write-ahead log segment {}", file);
+            } else {
+                log.warn("Unable to delete write-ahead log segment {}", file);
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        if (syncer != null) {
+            syncer.shutdown();
+        }
+        synchronized (writeMonitor) {
+            if (channel != null) {
+                channel.force(true);
+                segment.close();
+                channel = null;
+                segment = null;
+            }
+        }
+    }
+
+    private void awaitSync(long lsn) throws IOException {
+        for (;;) {
+            synchronized (syncMonitor) {
+                while (syncedLsn < lsn && syncing) {
+                    try {
+                        syncMonitor.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for write-ahead log sync.");
+                    }
+                }
+                if (syncedLsn >= lsn) {
+                    return;
+                }
+                syncing = true;
+            }
+
+            //this thread is the leader: a single force covers every record written so far, including the records of
+            //all writers currently waiting on the sync monitor.
+            long target = 0;
+            boolean forced = false;
+            try {
+                FileChannel ch;
+                synchronized (writeMonitor) {
+                    target = lastLsn;
+                    ch = channel;
+                }
+                if (ch != null) {
+                    force(ch);
+                }
+                forced = true;
+            } finally {
+                synchronized (syncMonitor) {
+                    if (forced && target > syncedLsn) {
+                        syncedLsn = target;
+                    }
+                    syncing = false;
+                    syncMonitor.notifyAll();
+                }
+            }
+        }
+    }
+
+    private static void force(FileChannel ch) throws IOException {
+        try {
+            ch.force(false);
+        } catch (ClosedChannelException e) {
+            //the segment was rolled (or the log closed) concurrently, both of which force the channel before closing
+            //it, so there is nothing left to do.
+        }
+    }
+
+    //must be called with the writeMonitor held:
+    private void roll(long nextLsn) throws IOException {
+        channel.force(false);
+        segment.close();
+        openSegment(newSegmentFile(nextLsn));
+    }
+
+    //must be called with the writeMonitor held:
+    private void openSegment(File file) throws IOException {
+        segment = new RandomAccessFile(file, "rw");
+        channel = segment.getChannel();
+        segmentLength = channel.size();
+        channel.position(segmentLength);
+    }
+
+    private long replay(File file, long afterLsn, RecordHandler handler) throws IOException {
+        long validLength = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            CRC32 crc = new CRC32();
+            byte[] payload = new byte[256];
+            for (;;) {
+                int length;
+                int checksum;
+                long lsn;
+                byte type;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    lsn = in.readLong();
+                    type = in.readByte();
+                    if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+                        return validLength;
+                    }
+                    if (payload.length < length) {
+                        payload = new byte[Math.max(length, payload.length * 2)];
+                    }
+                    in.readFully(payload, 0, length);
+                } catch (EOFException e) {
+                    return validLength;
+                }
+                crc.reset();
+                crc.update(type);
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum || (lastLsn != 0 && lsn != lastLsn + 1)) {
+                    return validLength;
+                }
+                if (lsn > afterLsn) {
+                    handler.handle(lsn, type, new DataInputStream(new ByteArrayInputStream(payload, 0, length)));
+                    replayedRecords++;
+                }
+                lastLsn = lsn;
+                validLength += HEADER_LENGTH + length;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private File newSegmentFile(long firstLsn) {
+        return new File(directory, SEGMENT_PREFIX + String.format("%020d", firstLsn) + SEGMENT_SUFFIX);
+    }
+
+    private static long getFirstLsn(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    List<File> getSegments() {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new ArrayList<File>();
+        }
+        //names are zero-padded, so lexical order is LSN order:
+        Arrays.sort(files);
+        return new ArrayList<File>(Arrays.asList(files));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.controller;
+
+import com.stormpath.samples.todos.entity.Todo;
+import com.stormpath.samples.todos.entity.User;
+import com.stormpath.samples.todos.jersey.ObjectMapperProvider;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TodoResourceTest {
+
+    private static final String BASE = "http://localhost:8080";
+
+    private ObjectMapper mapper;
+    private Todo todo;
+
+    @Before
+    public void setUp() {
+        mapper = new ObjectMapperProvider().getContext(Object.class);
+        User user = new User();
+        user.setId("u1");
+        todo = new Todo();
+        todo.setId("t1");
+        todo.setName("Write \"tests\"");
+        todo.setDone(true);
+        todo.setCreated(new Date(1352121330000L));
+        todo.setUser(user);
+    }
+
+    @Test
+    public void testFieldsInOrder() throws IOException {
+        assertEquals("{\"href\":\"" + BASE + "/todos/t1\",\"name\":\"Write \\\"tests\\\"\",\"done\":true," +
+                "\"created\":\"2012-11-05T13:15:30.000Z\",\"user\":{\"href\":\"" + BASE + "/users/u1\"}}",
+                mapper.writeValueAsString(new TodoResource(BASE, todo)));
+    }
+
+    @Test
+    public void testSparseFields() throws IOException {
+        assertEquals("{\"href\":\"" + BASE + "/todos/t1\",\"done\":true}",
+                mapper.writeValueAsString(new TodoResource(BASE, todo, EnumSet.of(TodoField.done))));
+        assertEquals("{\"href\":\"" + BASE + "/todos/t1\"}",
+                mapper.writeValueAsString(new TodoResource(BASE, todo, EnumSet.noneOf(TodoField.class))));
+    }
+
+    @Test
+    public void testNullFieldsAreWritten() throws IOException {
+        Todo empty = new Todo();
+        empty.setId("t2");
+        Map<?, ?> map = mapper.readValue(mapper.writeValueAsString(new TodoResource(BASE, empty,
+                EnumSet.of(TodoField.name, TodoField.created))), Map.class);
+        assertEquals(3, map.size());
+        assertTrue(map.containsKey("name"));
+        assertNull(map.get("name"));
+        assertTrue(map.containsKey("created"));
+        assertNull(map.get("created"));
+    }
+
+    @Test
+    public void testLinks() throws IOException {
+        assertEquals("{\"href\":\"" + BASE + "/todos/t1\"}", mapper.writeValueAsString(new Link(BASE, todo)));
+        assertEquals("{\"href\":\"" + BASE + "/todos\"}", mapper.writeValueAsString(new Link(BASE, Link.TODOS)));
+        assertEquals("{\"href\":\"" + BASE + "/todos?offset=25\"}",
+                mapper.writeValueAsString(new Link(URI.create(BASE + "/todos?offset=25"))));
+    }
+
+    @Test
+    public void testParseFields() {
+        assertEquals(EnumSet.of(TodoField.name, TodoField.done), TodoField.parse("href, name,done,"));
+        assertEquals(EnumSet.noneOf(TodoField.class), TodoField.parse("href"));
+        try {
+            TodoField.parse("name,id");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("'id'"));
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.service;
+
+import com.stormpath.samples.todos.entity.Todo;
+import com.stormpath.samples.todos.store.Durability;
+import com.stormpath.samples.todos.store.SnapshotStore;
+import com.stormpath.samples.todos.store.WriteAheadLog;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DefaultTodoServiceRecoveryTest {
+
+    //small enough for a handful of todos to fill several segments:
+    private static final long SEGMENT_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.newFolder("todos");
+    }
+
+    @Test
+    public void testRecoversFromLog() throws IOException {
+        WriteAheadLog wal = newLog();
+        DefaultTodoService service = new DefaultTodoService(wal);
+        List<String> ids = saveAll(service, 20);
+        update(service, ids.get(3), "renamed", true);
+        service.deleteById(ids.get(5));
+        wal.close();
+
+        wal = newLog();
+        DefaultTodoService recovered = new DefaultTodoService(wal);
+        assertEquals(19, recovered.countTodos(new TodoFilter(null, null, null)));
+        assertNull(recovered.getById(ids.get(5)));
+        Todo renamed = recovered.getById(ids.get(3));
+        assertEquals("renamed", renamed.getName());
+        assertTrue(renamed.isDone());
+        assertEquals("todo 7", recovered.getById(ids.get(7)).getName());
+        wal.close();
+    }
+
+    @Test
+    public void testSnapshotCompactsLog() throws IOException {
+        WriteAheadLog wal = newLog();
+        DefaultTodoService service = new DefaultTodoService(wal, new SnapshotStore(dir));
+        List<String> ids = saveAll(service, 50);
+        int segments = listFiles("wal-").length;
+        assertTrue("expected the log to roll over to several segments", segments > 2);
+
+        service.snapshot();
+        assertEquals(1, listFiles("snapshot-").length);
+        assertTrue(listFiles("wal-").length < segments);
+
+        //changes after the snapshot are only in the log:
+        update(service, ids.get(0), "after snapshot", false);
+        service.deleteById(ids.get(1));
+        Todo added = saveTodo(service, "added");
+        wal.close();
+
+        wal = newLog();
+        DefaultTodoService recovered = new DefaultTodoService(wal, new SnapshotStore(dir));
+        assertEquals(50, recovered.countTodos(new TodoFilter(null, null, null)));
+        assertEquals("after snapshot", recovered.getById(ids.get(0)).getName());
+        assertNull(recovered.getById(ids.get(1)));
+        assertEquals("added", recovered.getById(added.getId()).getName());
+        assertEquals("todo 49", recovered.getById(ids.get(49)).getName());
+
+        //a second snapshot replaces the first:
+        recovered.snapshot();
+        assertEquals(1, listFiles("snapshot-").length);
+        wal.close();
+
+        wal = newLog();
+        recovered = new DefaultTodoService(wal, new SnapshotStore(dir));
+        assertEquals(50, recovered.countTodos(new TodoFilter(null, null, null)));
+        assertEquals("after snapshot", recovered.getById(ids.get(0)).getName());
+        wal.close();
+    }
+
+    @Test
+    public void testVersionsAfterRecoveryAreNewer() throws Exception {
+        WriteAheadLog wal = newLog();
+        DefaultTodoService service = new DefaultTodoService(wal);
+        Todo todo = saveTodo(service, "versioned");
+        Todo updated = update(service, todo.getId(), "versioned", true);
+        assertTrue(updated.getVersion() > todo.getVersion());
+        wal.close();
+        //versions restart from the time of the restart in microseconds, so a restart needs to be a millisecond later:
+        Thread.sleep(2);
+
+        wal = newLog();
+        DefaultTodoService recovered = new DefaultTodoService(wal);
+        //an ETag handed out before the restart can never match a recovered todo:
+        assertTrue(recovered.getById(todo.getId()).getVersion() > updated.getVersion());
+        wal.close();
+    }
+
+    private WriteAheadLog newLog() {
+        return new WriteAheadLog(dir, Durability.SYNC, WriteAheadLog.DEFAULT_SYNC_INTERVAL, SEGMENT_SIZE);
+    }
+
+    private File[] listFiles(final String prefix) {
+        return dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix);
+            }
+        });
+    }
+
+    private static List<String> saveAll(TodoService service, int count) {
+        List<String> ids = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(saveTodo(service, "todo " + i).getId());
+        }
+        return ids;
+    }
+
+    private static Todo saveTodo(TodoService service, String name) {
+        Todo todo = new Todo();
+        todo.setName(name);
+        return service.save(todo);
+    }
+
+    private static Todo update(TodoService service, String id, final String name, final boolean done) {
+        return service.update(id, new TodoMutator() {
+            @Override
+            public void mutate(Todo todo) {
+                todo.setName(name);
+                todo.setDone(done);
+            }
+        });
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.service;
+
+import com.stormpath.samples.todos.store.TodoIds;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class TimeOrderedIdGeneratorTest {
+
+    private static final long NOW = 1352121330000L;
+
+    @Test
+    public void testTimestampPrefix() {
+        UUID id = new FixedClockIdGenerator(NOW).generate();
+        assertEquals(NOW, id.getMostSignificantBits() >>> 16);
+        assertTrue(id.getMostSignificantBits() != 0);
+    }
+
+    @Test
+    public void testIncreasingWithinMillisecond() {
+        IdGenerator generator = new FixedClockIdGenerator(NOW);
+        String previous = TodoIds.toString(1, 0);
+        for (int i = 0; i < 100000; i++) {
+            UUID id = generator.generate();
+            String s = TodoIds.toString(id.getMostSignificantBits(), id.getLeastSignificantBits());
+            assertTrue(s.compareTo(previous) > 0);
+            previous = s;
+        }
+    }
+
+    @Test
+    public void testIncreasingWhenClockMovesBackwards() {
+        FixedClockIdGenerator generator = new FixedClockIdGenerator(NOW);
+        UUID before = generator.generate();
+        generator.millis = NOW - 1000;
+        UUID after = generator.generate();
+        assertTrue(compareUnsigned(after, before) > 0);
+        assertEquals(NOW, after.getMostSignificantBits() >>> 16);
+
+        generator.millis = NOW + 1;
+        UUID later = generator.generate();
+        assertEquals(NOW + 1, later.getMostSignificantBits() >>> 16);
+        assertTrue(compareUnsigned(later, after) > 0);
+    }
+
+    @Test
+    public void testUniqueAcrossThreads() throws Exception {
+        final IdGenerator generator = new TimeOrderedIdGenerator();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<UUID>>> futures = new ArrayList<Future<List<UUID>>>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(new Callable<List<UUID>>() {
+                    @Override
+                    public List<UUID> call() {
+                        List<UUID> ids = new ArrayList<UUID>();
+                        for (int i = 0; i < 50000; i++) {
+                            ids.add(generator.generate());
+                        }
+                        return ids;
+                    }
+                }));
+            }
+            Set<UUID> all = new HashSet<UUID>();
+            for (Future<List<UUID>> future : futures) {
+                List<UUID> ids = future.get();
+                for (int i = 1; i < ids.size(); i++) {
+                    assertTrue(compareUnsigned(ids.get(i), ids.get(i - 1)) > 0);
+                }
+                all.addAll(ids);
+            }
+            assertEquals(200000, all.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static int compareUnsigned(UUID a, UUID b) {
+        int c = compareUnsigned(a.getMostSignificantBits(), b.getMostSignificantBits());
+        return c != 0 ? c : compareUnsigned(a.getLeastSignificantBits(), b.getLeastSignificantBits());
+    }
+
+    private static int compareUnsigned(long a, long b) {
+        a += Long.MIN_VALUE;
+        b += Long.MIN_VALUE;
+        return a < b ? -1 : a > b ? 1 : 0;
+    }
+
+    private static class FixedClockIdGenerator extends TimeOrderedIdGenerator {
+
+        private volatile long millis;
+
+        FixedClockIdGenerator(long millis) {
+            this.millis = millis;
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return millis;
+        }
+    }
+}
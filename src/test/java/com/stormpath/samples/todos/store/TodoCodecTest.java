@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.store;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class TodoCodecTest {
+
+    @Test
+    public void testIdRoundTrip() {
+        long[][] ids = {{1, 0}, {-1, -1}, {Long.MIN_VALUE, Long.MAX_VALUE}, {0x0123456789abcdefL, 0xfedcba9876543210L}};
+        for (long[] id : ids) {
+            String s = TodoIds.toString(id[0], id[1]);
+            assertEquals(TodoIds.LENGTH, s.length());
+            assertTrue(TodoIds.isValid(s));
+            assertEquals(id[0], TodoIds.high(s));
+            assertEquals(id[1], TodoIds.low(s));
+        }
+        assertEquals("0123456789abcdeffedcba9876543210", TodoIds.toString(0x0123456789abcdefL, 0xfedcba9876543210L));
+    }
+
+    @Test
+    public void testInvalidIds() {
+        assertFalse(TodoIds.isValid(null));
+        assertFalse(TodoIds.isValid(""));
+        assertFalse(TodoIds.isValid("0123456789abcdeffedcba987654321"));
+        assertFalse(TodoIds.isValid("0123456789abcdeffedcba987654321g"));
+        //legacy UUID ids with dashes:
+        assertFalse(TodoIds.isValid("01234567-89ab-cdef-fedc-ba9876543210"));
+    }
+
+    @Test
+    public void testRecordRoundTrip() throws IOException {
+        TodoRecord[] records = {
+                new TodoRecord(1, 2, 1352121330000L, "plain", false),
+                new TodoRecord(-1, Long.MIN_VALUE, -1, "ünïcöde ✓ 😀", true),
+                new TodoRecord(3, 4, 0, null, false),
+                new TodoRecord(5, 6, 0, "", true)
+        };
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        for (TodoRecord record : records) {
+            TodoCodec.writeRecord(out, record);
+        }
+        out.flush();
+        byte[] bytes = baos.toByteArray();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        for (TodoRecord record : records) {
+            assertRecordEquals(record, TodoCodec.readRecord(in));
+            assertRecordEquals(record, TodoCodec.readRecord(buf));
+            assertRecordEquals(record, TodoCodec.readRecord(direct));
+        }
+        assertFalse(buf.hasRemaining());
+        assertFalse(direct.hasRemaining());
+    }
+
+    private static void assertRecordEquals(TodoRecord expected, TodoRecord actual) {
+        assertEquals(expected.getIdHigh(), actual.getIdHigh());
+        assertEquals(expected.getIdLow(), actual.getIdLow());
+        assertEquals(expected.getCreated(), actual.getCreated());
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.isDone(), actual.isDone());
+    }
+}
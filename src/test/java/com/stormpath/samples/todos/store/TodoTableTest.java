@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.store;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TodoTableTest {
+
+    @Test
+    public void testPutGetRemove() {
+        TodoTable table = new TodoTable(1000);
+        TodoRecord stored = table.put(new TodoRecord(1, 2, 10, "first", false));
+        assertEquals(1, table.size());
+        assertEquals(1001, stored.getVersion());
+        assertEquals(1001, table.getVersion());
+
+        TodoRecord found = table.get(1, 2);
+        assertSame(stored, found);
+        assertEquals("first", found.getName());
+        assertEquals(10, found.getCreated());
+        assertNull(table.get(1, 3));
+        assertNull(table.get(2, 2));
+
+        TodoRecord tombstone = table.remove(1, 2);
+        assertTrue(tombstone.isDeleted());
+        assertEquals("first", tombstone.getName());
+        assertEquals(1002, tombstone.getVersion());
+        assertNull(table.get(1, 2));
+        assertNull(table.remove(1, 2));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testPutOfExistingIdStoresNewVersion() {
+        TodoTable table = new TodoTable(0);
+        TodoRecord first = table.put(new TodoRecord(1, 2, 10, "first", false));
+        TodoRecord second = table.put(new TodoRecord(1, 2, 99, "second", true));
+        assertNotSame(first, second);
+        assertEquals(1, table.size());
+        assertEquals(first.getSeq(), second.getSeq());
+        assertTrue(second.getVersion() > first.getVersion());
+        //the creation time is the one of the original record:
+        assertEquals(10, second.getCreated());
+        assertEquals("second", table.get(1, 2).getName());
+        assertEquals(1, table.counts().getDone());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReservedIdIsRejected() {
+        new TodoTable(0).put(new TodoRecord(0, 1, 0, "reserved", false));
+    }
+
+    @Test
+    public void testCollidingIdsAreProbed() {
+        //ids hash by high ^ low, so these all land in the same slot:
+        TodoTable table = new TodoTable(0);
+        for (long i = 1; i <= 64; i++) {
+            table.put(new TodoRecord(i, i ^ 0x5a5a, i, "todo " + i, false));
+        }
+        for (long i = 1; i <= 64; i++) {
+            assertEquals("todo " + i, table.get(i, i ^ 0x5a5a).getName());
+        }
+        //removing one in the middle of the probe sequence must not hide the ones after it:
+        table.remove(10, 10 ^ 0x5a5a);
+        assertNull(table.get(10, 10 ^ 0x5a5a));
+        for (long i = 11; i <= 64; i++) {
+            assertEquals("todo " + i, table.get(i, i ^ 0x5a5a).getName());
+        }
+        //and the removed id can be stored again:
+        table.put(new TodoRecord(10, 10 ^ 0x5a5a, 10, "again", false));
+        assertEquals("again", table.get(10, 10 ^ 0x5a5a).getName());
+        assertEquals(64, table.size());
+    }
+
+    @Test
+    public void testGrowsAndKeepsCreationOrder() {
+        TodoTable table = new TodoTable(0);
+        Random random = new Random(42);
+        List<long[]> ids = new ArrayList<long[]>();
+        for (int i = 0; i < 50000; i++) {
+            long[] id = {random.nextLong() | 1L << 62, random.nextLong()};
+            ids.add(id);
+            table.put(new TodoRecord(id[0], id[1], i, "todo " + i, i % 3 == 0));
+        }
+        //remove every other one, which leaves holes for the table to compact:
+        for (int i = 0; i < ids.size(); i += 2) {
+            long[] id = ids.get(i);
+            assertNotNull(table.remove(id[0], id[1]));
+        }
+        assertEquals(25000, table.size());
+
+        int expected = 1;
+        long seq = -1;
+        for (TodoRecord record : table) {
+            assertEquals("todo " + expected, record.getName());
+            assertTrue(record.getSeq() > seq);
+            seq = record.getSeq();
+            expected += 2;
+        }
+        assertEquals(50001, expected);
+
+        for (int i = 0; i < ids.size(); i++) {
+            long[] id = ids.get(i);
+            TodoRecord record = table.get(id[0], id[1]);
+            if (i % 2 == 0) {
+                assertNull(record);
+            } else {
+                assertEquals("todo " + i, record.getName());
+            }
+        }
+    }
+
+    @Test
+    public void testIteratorAfterSeq() {
+        TodoTable table = new TodoTable(0);
+        List<TodoRecord> stored = new ArrayList<TodoRecord>();
+        for (int i = 1; i <= 10; i++) {
+            stored.add(table.put(new TodoRecord(i, i, i, "todo " + i, false)));
+        }
+        Iterator<TodoRecord> i = table.iteratorAfter(stored.get(6).getSeq());
+        assertEquals("todo 8", i.next().getName());
+        assertEquals("todo 9", i.next().getName());
+        assertEquals("todo 10", i.next().getName());
+        assertFalse(i.hasNext());
+    }
+
+    @Test
+    public void testCountsFollowMutations() {
+        TodoTable table = new TodoTable(0);
+        Random random = new Random(7);
+        Map<Long, Boolean> expected = new HashMap<Long, Boolean>();
+        for (int i = 0; i < 10000; i++) {
+            long id = 1 + random.nextInt(500);
+            if (random.nextInt(4) == 0) {
+                table.remove(id, id);
+                expected.remove(id);
+            } else {
+                boolean done = random.nextBoolean();
+                table.put(new TodoRecord(id, id, i, "todo", done));
+                expected.put(id, done);
+            }
+        }
+        int done = 0;
+        for (Boolean d : expected.values()) {
+            done += d ? 1 : 0;
+        }
+        TodoStore.Counts counts = table.counts();
+        assertEquals(expected.size(), counts.getSize());
+        assertEquals(done, counts.getDone());
+        assertEquals(expected.size() - done, counts.getOpen());
+        assertEquals(expected.size(), table.size());
+    }
+}
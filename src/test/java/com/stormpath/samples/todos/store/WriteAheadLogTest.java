@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2012 Stormpath, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stormpath.samples.todos.store;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WriteAheadLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.newFolder("wal");
+    }
+
+    @Test
+    public void testReplayInLsnOrder() throws IOException {
+        WriteAheadLog wal = open(256, new Recorder());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i + 1, wal.append((byte) 1, payload(i)));
+        }
+        wal.close();
+        assertTrue("expected the log to roll over to several segments", wal.getSegments().size() > 1);
+
+        Recorder recorder = new Recorder();
+        wal = open(256, recorder);
+        assertEquals(100, recorder.lsns.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i + 1, (long) recorder.lsns.get(i));
+            assertEquals(i, (int) recorder.values.get(i));
+        }
+        //new records continue the sequence:
+        assertEquals(101, wal.append((byte) 1, payload(100)));
+        wal.close();
+    }
+
+    @Test
+    public void testReplayAfterLsn() throws IOException {
+        WriteAheadLog wal = open(WriteAheadLog.DEFAULT_SEGMENT_SIZE, new Recorder());
+        for (int i = 0; i < 10; i++) {
+            wal.append((byte) 1, payload(i));
+        }
+        wal.close();
+
+        Recorder recorder = new Recorder();
+        wal = new WriteAheadLog(dir, Durability.SYNC);
+        wal.open(7, recorder);
+        assertEquals(3, recorder.lsns.size());
+        assertEquals(8, (long) recorder.lsns.get(0));
+        assertEquals(11, wal.append((byte) 1, payload(10)));
+        wal.close();
+    }
+
+    @Test
+    public void testNumbersAfterSnapshotLsnOfEmptyLog() throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(dir, Durability.SYNC);
+        wal.open(42, new Recorder());
+        assertEquals(43, wal.append((byte) 1, payload(0)));
+        wal.close();
+    }
+
+    @Test
+    public void testTornTailIsTruncated() throws IOException {
+        WriteAheadLog wal = open(WriteAheadLog.DEFAULT_SEGMENT_SIZE, new Recorder());
+        for (int i = 0; i < 5; i++) {
+            wal.append((byte) 1, payload(i));
+        }
+        wal.close();
+
+        //a crash in the middle of the last write:
+        File segment = wal.getSegments().get(0);
+        long intact = segment.length();
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.seek(intact);
+            raf.writeInt(4);
+            raf.writeInt(0xcafe);
+        } finally {
+            raf.close();
+        }
+
+        Recorder recorder = new Recorder();
+        wal = open(WriteAheadLog.DEFAULT_SEGMENT_SIZE, recorder);
+        assertEquals(5, recorder.lsns.size());
+        assertEquals(intact, segment.length());
+        assertEquals(6, wal.append((byte) 1, payload(5)));
+        wal.close();
+    }
+
+    @Test
+    public void testCorruptRecordEndsReplay() throws IOException {
+        WriteAheadLog wal = open(WriteAheadLog.DEFAULT_SEGMENT_SIZE, new Recorder());
+        for (int i = 0; i < 5; i++) {
+            wal.append((byte) 1, payload(i));
+        }
+        wal.close();
+
+        //flip a payload byte of the last record, so that its checksum no longer matches:
+        File segment = wal.getSegments().get(0);
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.seek(raf.length() - 1);
+            int b = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+
+        Recorder recorder = new Recorder();
+        wal = open(WriteAheadLog.DEFAULT_SEGMENT_SIZE, recorder);
+        assertEquals(4, recorder.lsns.size());
+        assertEquals(5, wal.append((byte) 1, payload(4)));
+        wal.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptSegmentBeforeLastFails() throws IOException {
+        WriteAheadLog wal = open(256, new Recorder());
+        for (int i = 0; i < 100; i++) {
+            wal.append((byte) 1, payload(i));
+        }
+        wal.close();
+
+        File first = wal.getSegments().get(0);
+        RandomAccessFile raf = new RandomAccessFile(first, "rw");
+        try {
+            raf.setLength(raf.length() - 1);
+        } finally {
+            raf.close();
+        }
+        open(256, new Recorder());
+    }
+
+    @Test
+    public void testDeleteSegmentsBefore() throws IOException {
+        WriteAheadLog wal = open(256, new Recorder());
+        for (int i = 0; i < 100; i++) {
+            wal.append((byte) 1, payload(i));
+        }
+        int segments = wal.getSegments().size();
+        assertTrue(segments > 2);
+
+        //nothing is deleted that still holds a record after the LSN:
+        wal.deleteSegmentsBefore(0);
+        assertEquals(segments, wal.getSegments().size());
+
+        wal.deleteSegmentsBefore(50);
+        List<File> remaining = wal.getSegments();
+        assertTrue(remaining.size() < segments);
+        wal.close();
+
+        Recorder recorder = new Recorder();
+        wal = open(256, recorder);
+        assertTrue(recorder.lsns.get(0) <= 51);
+        assertEquals(100, (long) recorder.lsns.get(recorder.lsns.size() - 1));
+
+        //the segment being appended to is kept, even if every record in it is covered:
+        wal.deleteSegmentsBefore(wal.getLastLsn());
+        assertEquals(1, wal.getSegments().size());
+        assertEquals(101, wal.append((byte) 1, payload(100)));
+        wal.close();
+    }
+
+    private WriteAheadLog open(long segmentSize, WriteAheadLog.RecordHandler handler) throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(dir, Durability.SYNC, WriteAheadLog.DEFAULT_SYNC_INTERVAL, segmentSize);
+        wal.open(0, handler);
+        return wal;
+    }
+
+    private static byte[] payload(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    private static class Recorder implements WriteAheadLog.RecordHandler {
+
+        private final List<Long> lsns = new ArrayList<Long>();
+        private final List<Integer> values = new ArrayList<Integer>();
+
+        @Override
+        public void handle(long lsn, byte type, DataInputStream payload) throws IOException {
+            lsns.add(lsn);
+            values.add(payload.readInt());
+        }
+    }
+}